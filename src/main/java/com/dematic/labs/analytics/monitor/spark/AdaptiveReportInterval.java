@@ -0,0 +1,70 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+/**
+ * Stretches the reporting interval while the push gateway struggles and shrinks it back once it recovers, so
+ * hundreds of executors don't keep hammering an overloaded gateway at the base rate.
+ * <p>
+ * The reporter keeps ticking at the base period and skips ticks until the current interval has passed. A failed
+ * or slow push doubles the interval up to the cap, a fast one halves it down to the base period.
+ * Not thread safe, only used from the reporter thread.
+ */
+public class AdaptiveReportInterval {
+    private final long basePeriodMillis;
+    private final long maxPeriodMillis;
+    private final long slowPushMillis;
+
+    private long currentPeriodMillis;
+    private long nextReportMillis;
+
+    /**
+     * @param basePeriodMillis period the reporter is scheduled at
+     * @param maxPeriodMillis cap of the stretched interval
+     * @param slowPushMillis pushes taking longer count as a struggling gateway
+     */
+    public AdaptiveReportInterval(long basePeriodMillis, long maxPeriodMillis, long slowPushMillis) {
+        this.basePeriodMillis = basePeriodMillis;
+        this.maxPeriodMillis = Math.max(basePeriodMillis, maxPeriodMillis);
+        this.slowPushMillis = slowPushMillis;
+        this.currentPeriodMillis = basePeriodMillis;
+    }
+
+    /**
+     * @return whether the scheduled tick at this time should report
+     */
+    public boolean isDue(long nowMillis) {
+        return nowMillis >= nextReportMillis;
+    }
+
+    /**
+     * Adapt the interval to the outcome of the push that started at startMillis.
+     *
+     * @return true if the interval changed
+     */
+    public boolean onReport(long startMillis, boolean success, long latencyMillis) {
+        long previous = currentPeriodMillis;
+        if (!success || latencyMillis > slowPushMillis) {
+            currentPeriodMillis = Math.min(maxPeriodMillis, currentPeriodMillis * 2);
+        } else if (latencyMillis <= slowPushMillis / 2) {
+            currentPeriodMillis = Math.max(basePeriodMillis, currentPeriodMillis / 2);
+        }
+        // half a base period of slack so scheduling jitter doesn't skip an extra tick
+        nextReportMillis = startMillis + currentPeriodMillis - basePeriodMillis / 2;
+        return previous != currentPeriodMillis;
+    }
+
+    public long getCurrentPeriodMillis() {
+        return currentPeriodMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveReportInterval{" +
+                "basePeriodMillis=" + basePeriodMillis +
+                ", maxPeriodMillis=" + maxPeriodMillis +
+                ", slowPushMillis=" + slowPushMillis +
+                ", currentPeriodMillis=" + currentPeriodMillis + '}';
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.Collector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pushes metrics from a single background worker so callers, i.e. the spark listener bus, never block on the
+ * push gateway. Callers only update their collectors and call {@link #signal()}.
+ * <p>
+ * At most one push is pending at any time: signals arriving while a push is already pending are coalesced into it,
+ * and consecutive pushes are at least the configured minimum interval apart. The worker always pushes the latest
+ * state of the collectors, so nothing but intermediate values is lost by coalescing.
+ * <p>
+ * The pusher is itself a collector exporting how many signals were coalesced or dropped and how many pushes failed.
+ */
+public class AsyncMetricsPusher extends Collector implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncMetricsPusher.class);
+
+    public static final long DEFAULT_MIN_INTERVAL_MS = 1000;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+    private static final List<String> LABEL_NAMES = Collections.singletonList("pusher");
+
+    /**
+     * The actual push, run on the worker thread only.
+     */
+    public interface PushAction {
+        void push() throws IOException;
+    }
+
+    private final String name;
+    private final PushAction action;
+    private final long minIntervalMillis;
+    private final Thread worker;
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private boolean pending;
+    private boolean closed;
+    private long lastPushMillis;
+
+    // only written by the worker or under lock, read by collect()
+    private volatile long signals;
+    private volatile long coalesced;
+    private volatile long dropped;
+    private volatile long pushes;
+    private volatile long failures;
+
+    /**
+     * @param name used for the worker thread name and the pusher label
+     * @param minIntervalMillis minimum time between two pushes
+     * @param action push to run on the worker thread
+     */
+    public AsyncMetricsPusher(String name, long minIntervalMillis, PushAction action) {
+        this.name = name;
+        this.action = action;
+        this.minIntervalMillis = Math.max(0, minIntervalMillis);
+        this.lastPushMillis = System.currentTimeMillis() - this.minIntervalMillis;
+
+        worker = new Thread(this::runWorker, "prometheus-push-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return minimum push interval from {@link MonitorConsts#SPARK_QUERY_MONITOR_PUSH_MIN_INTERVAL_MS} or the default
+     */
+    public static long getConfiguredMinIntervalMillis() {
+        return MonitorProperties.getLong(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_MIN_INTERVAL_MS, DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    /**
+     * Request a push of the current collector state, never blocks on the push itself.
+     */
+    public void signal() {
+        synchronized (lock) {
+            signals++;
+            if (closed) {
+                dropped++;
+            } else if (pending) {
+                coalesced++;
+            } else {
+                pending = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void runWorker() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (!pending && !closed) {
+                        lock.wait();
+                    }
+                    if (!pending) {
+                        return;
+                    }
+                    // keep coalescing until the minimum interval has passed, unless we are flushing on close
+                    long waitMillis = lastPushMillis + minIntervalMillis - System.currentTimeMillis();
+                    while (waitMillis > 0 && !closed) {
+                        lock.wait(waitMillis);
+                        waitMillis = lastPushMillis + minIntervalMillis - System.currentTimeMillis();
+                    }
+                    pending = false;
+                }
+                push();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void push() {
+        try {
+            action.push();
+        } catch (PushGatewayClient.CircuitOpenException e) {
+            failures++;
+            LOGGER.debug(e.getMessage());
+        } catch (Exception e) {
+            failures++;
+            LOGGER.error("Error pushing metrics for " + name + " with error  \n" + e.getMessage());
+        } finally {
+            pushes++;
+            synchronized (lock) {
+                lastPushMillis = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting signals, flushes a pending push and waits a bounded time for the worker to finish.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            worker.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    public long getSignalCount() {
+        return signals;
+    }
+
+    public long getCoalescedCount() {
+        return coalesced;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    public long getPushCount() {
+        return pushes;
+    }
+
+    public long getFailureCount() {
+        return failures;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<String> labelValues = Collections.singletonList(name);
+        List<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>(5);
+        mfSamples.add(counter("push_signals_total", "Push requests signalled.", labelValues, signals));
+        mfSamples.add(counter("push_signals_coalesced_total", "Push requests merged into an already pending push.",
+                labelValues, coalesced));
+        mfSamples.add(counter("push_signals_dropped_total", "Push requests dropped after the pusher was closed.",
+                labelValues, dropped));
+        mfSamples.add(counter("pushes_total", "Pushes attempted.", labelValues, pushes));
+        mfSamples.add(counter("push_failures_total", "Pushes failed.", labelValues, failures));
+        return mfSamples;
+    }
+
+    private static MetricFamilySamples counter(String suffix, String help, List<String> labelValues, long value) {
+        String metricName = PrometheusConfig.MONITOR_METRIC_PREFIX + suffix;
+        return new MetricFamilySamples(metricName, Type.COUNTER, help, Arrays.asList(
+                new MetricFamilySamples.Sample(metricName, LABEL_NAMES, labelValues, value)));
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncMetricsPusher{" +
+                "name='" + name + '\'' +
+                ", minIntervalMillis=" + minIntervalMillis +
+                ", signals=" + signals +
+                ", coalesced=" + coalesced +
+                ", dropped=" + dropped +
+                ", pushes=" + pushes +
+                ", failures=" + failures + '}';
+    }
+}
@@ -0,0 +1,111 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+/**
+ * Tells whether a streaming query keeps up with its input from the recent batches: rows arriving faster than they
+ * are processed while batches take longer than the trigger interval means the backlog grows.
+ * <p>
+ * The window is a primitive ring buffer with running sums, so every batch is constant time. The backlog itself is
+ * estimated by integrating arrival minus processing rate between batches, it is not the real kafka lag but
+ * shows the trend and how long draining takes at the current rates. Not thread safe.
+ */
+final class BacklogDetector {
+    static final int DEFAULT_WINDOW_BATCHES = 10;
+
+    private final long triggerIntervalMillis;
+    private final double[] netRates;
+    private final boolean[] overruns;
+    private int next;
+    private int size;
+    private double netRateSum;
+    private int overrunCount;
+
+    private long lastBatchMillis = Long.MIN_VALUE;
+    private double lastNetRate;
+    private double backlogRows;
+
+    /**
+     * @param triggerIntervalMillis trigger interval of the query, 0 for as fast as possible
+     */
+    BacklogDetector(int windowBatches, long triggerIntervalMillis) {
+        this.triggerIntervalMillis = triggerIntervalMillis;
+        netRates = new double[Math.max(1, windowBatches)];
+        overruns = new boolean[netRates.length];
+    }
+
+    /**
+     * @param batchMillis when the batch was triggered
+     */
+    void add(long batchMillis, double inputRowsPerSecond, double processedRowsPerSecond, long triggerMillis) {
+        // the first batch and batches without rows report NaN or infinite rates
+        double netRate = isFinite(inputRowsPerSecond) && isFinite(processedRowsPerSecond)
+                ? inputRowsPerSecond - processedRowsPerSecond : 0;
+        // a trigger interval of 0 runs batches back to back, they always overrun
+        boolean overrun = triggerMillis > triggerIntervalMillis;
+
+        if (size == netRates.length) {
+            netRateSum -= netRates[next];
+            if (overruns[next]) {
+                overrunCount--;
+            }
+        } else {
+            size++;
+        }
+        netRates[next] = netRate;
+        overruns[next] = overrun;
+        netRateSum += netRate;
+        if (overrun) {
+            overrunCount++;
+        }
+        next = (next + 1) % netRates.length;
+
+        // the previous batch's rates held until this one was triggered
+        if (lastBatchMillis != Long.MIN_VALUE && batchMillis > lastBatchMillis) {
+            backlogRows = Math.max(0, backlogRows + lastNetRate * (batchMillis - lastBatchMillis) / 1000.0);
+        }
+        lastBatchMillis = batchMillis;
+        lastNetRate = netRate;
+    }
+
+    /**
+     * @return mean rows per second the input outpaced processing over the window, negative while catching up
+     */
+    double getBacklogGrowthRate() {
+        return size == 0 ? 0 : netRateSum / size;
+    }
+
+    /**
+     * @return fraction of the window's batches that took longer than the trigger interval
+     */
+    double getOverrunRatio() {
+        return size == 0 ? 0 : (double) overrunCount / size;
+    }
+
+    double getBacklogRows() {
+        return backlogRows;
+    }
+
+    /**
+     * @return seconds until the estimated backlog is processed at the current rates, infinite while it grows
+     */
+    double getTimeToDrainSeconds() {
+        if (backlogRows == 0) {
+            return 0;
+        }
+        double growth = getBacklogGrowthRate();
+        return growth >= 0 ? Double.POSITIVE_INFINITY : backlogRows / -growth;
+    }
+
+    /**
+     * @return input outpaces processing and most batches overrun the trigger interval
+     */
+    boolean isFallingBehind() {
+        return getBacklogGrowthRate() > 0 && overrunCount * 2 > size;
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+}
@@ -0,0 +1,61 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Http server of the endpoints embedded in the driver or an executor. Requests are handled on a small pool of daemon
+ * threads so a forgotten endpoint never keeps the JVM from exiting.
+ */
+final class EmbeddedHttpServer implements Closeable {
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param port port to listen on, 0 for an ephemeral port
+     * @param threadName name of the request threads
+     * @param threads number of request threads
+     * @throws IOException if the port can't be bound
+     */
+    EmbeddedHttpServer(int port, String threadName, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+    }
+
+    void createContext(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and gives the running ones a second to finish.
+     */
+    @Override
+    public void close() {
+        server.stop(STOP_DELAY_SECONDS);
+        executor.shutdownNow();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+}
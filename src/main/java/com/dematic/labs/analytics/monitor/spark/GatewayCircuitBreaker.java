@@ -0,0 +1,156 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker of the pushes to one gateway. After a number of consecutive failures it opens and push attempts are
+ * skipped instead of each waiting for the connect timeout. While open a single probe is let through after a backoff
+ * doubling with every failed probe up to a maximum, a successful push closes it again.
+ * <p>
+ * The backoff is jittered between half and all of its value, so executors losing the gateway at the same moment don't
+ * all come back at the same moment.
+ */
+public class GatewayCircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayCircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_BASE_BACKOFF_MS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 60000;
+
+    private final int failureThreshold;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final LongSupplier clock;
+    private final Random random;
+
+    // guarded by this
+    private int consecutiveFailures;
+    // number of times opened without a success in between, drives the backoff
+    private int openings;
+    private boolean open;
+    private boolean probing;
+    private long nextProbeMillis;
+
+    // read by collect()
+    private volatile long opened;
+    private volatile long skipped;
+
+    public GatewayCircuitBreaker(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+        this(failureThreshold, baseBackoffMillis, maxBackoffMillis, System::currentTimeMillis, new Random());
+    }
+
+    GatewayCircuitBreaker(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis, LongSupplier clock,
+                          Random random) {
+        if (failureThreshold < 1 || baseBackoffMillis < 1 || maxBackoffMillis < baseBackoffMillis) {
+            throw new IllegalArgumentException("Invalid circuit breaker, failures " + failureThreshold
+                    + ", backoff " + baseBackoffMillis + " to " + maxBackoffMillis + " ms");
+        }
+        this.failureThreshold = failureThreshold;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * @return breaker from the dematiclabs.monitor.pushGateway.breaker* system properties in {@link MonitorConsts},
+     * null if disabled with a failure threshold of 0
+     */
+    public static GatewayCircuitBreaker fromSystemProperties() {
+        int failures = MonitorProperties.getInt(
+                MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_BREAKER_FAILURES, DEFAULT_FAILURE_THRESHOLD);
+        if (failures <= 0) {
+            return null;
+        }
+        long base = MonitorProperties.getLong(
+                MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_BREAKER_BASE_BACKOFF_MS, DEFAULT_BASE_BACKOFF_MS);
+        long max = MonitorProperties.getLong(
+                MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_BREAKER_MAX_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+        return new GatewayCircuitBreaker(failures, Math.max(1, base), Math.max(Math.max(1, base), max));
+    }
+
+    /**
+     * @return true if the push should be attempted, while open only for the one probe that is due
+     */
+    public synchronized boolean allowRequest() {
+        if (!open) {
+            return true;
+        }
+        if (probing || clock.getAsLong() < nextProbeMillis) {
+            skipped++;
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    /**
+     * The request granted by {@link #allowRequest()} was never sent, i.e. rendering the body failed. Neither a
+     * success nor a failure, a pending probe is due again right away.
+     */
+    public synchronized void releaseProbe() {
+        probing = false;
+    }
+
+    public synchronized void onSuccess() {
+        if (open) {
+            LOGGER.info("Closed circuit to the push gateway");
+        }
+        consecutiveFailures = 0;
+        openings = 0;
+        open = false;
+        probing = false;
+    }
+
+    /**
+     * Only failures of the gateway itself count, not pushes it rejected.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (probing || (!open && consecutiveFailures >= failureThreshold)) {
+            probing = false;
+            open = true;
+            openings++;
+            opened++;
+            long backoff = jitteredBackoff();
+            nextProbeMillis = clock.getAsLong() + backoff;
+            LOGGER.warn("Opened circuit to the push gateway after " + consecutiveFailures
+                    + " failed pushes, next attempt in " + backoff + " ms");
+        }
+    }
+
+    private long jitteredBackoff() {
+        long backoff = baseBackoffMillis << Math.min(openings - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffMillis) {
+            backoff = maxBackoffMillis;
+        }
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return ms until the next probe, 0 if closed or due
+     */
+    public synchronized long getMillisUntilProbe() {
+        return open ? Math.max(0, nextProbeMillis - clock.getAsLong()) : 0;
+    }
+
+    public long getOpenedCount() {
+        return opened;
+    }
+
+    public long getSkippedCount() {
+        return skipped;
+    }
+}
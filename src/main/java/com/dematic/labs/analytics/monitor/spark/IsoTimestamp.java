@@ -0,0 +1,99 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+/**
+ * Parses the ISO 8601 timestamps of the streaming progress, i.e. <code>2017-09-01T17:00:28.174Z</code>, straight to
+ * epoch millis without formatter, calendar or intermediate objects, it runs several times per batch.
+ */
+final class IsoTimestamp {
+    static final long INVALID = Long.MIN_VALUE;
+
+    private IsoTimestamp() {
+    }
+
+    /**
+     * @param text yyyy-MM-ddTHH:mm:ss with optional fraction and Z or +/-HH:mm offset, spark always writes
+     *             millis in UTC
+     * @return epoch millis or {@link #INVALID}
+     */
+    static long parseMillis(CharSequence text) {
+        if (text == null || text.length() < 19 || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return INVALID;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return INVALID;
+        }
+
+        int pos = 19;
+        int millis = 0;
+        if (pos < text.length() && text.charAt(pos) == '.') {
+            pos++;
+            int scale = 100;
+            int start = pos;
+            while (pos < text.length() && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+                // digits beyond millis are truncated
+                millis += (text.charAt(pos) - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+            if (pos == start) {
+                return INVALID;
+            }
+        }
+
+        int offsetMinutes = 0;
+        if (pos < text.length()) {
+            char zone = text.charAt(pos);
+            if (zone == 'Z' && pos + 1 == text.length()) {
+                pos++;
+            } else if ((zone == '+' || zone == '-') && pos + 6 == text.length() && text.charAt(pos + 3) == ':') {
+                int offsetHours = digits(text, pos + 1, 2);
+                int offsetMins = digits(text, pos + 4, 2);
+                if (offsetHours < 0 || offsetMins < 0) {
+                    return INVALID;
+                }
+                offsetMinutes = (offsetHours * 60 + offsetMins) * (zone == '-' ? -1 : 1);
+            } else {
+                return INVALID;
+            }
+        }
+
+        long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second
+                - offsetMinutes * 60L;
+        return seconds * 1000L + millis;
+    }
+
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 of a proleptic gregorian date, see http://howardhinnant.github.io/date_algorithms.html
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
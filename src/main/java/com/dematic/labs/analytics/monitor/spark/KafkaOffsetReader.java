@@ -0,0 +1,251 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import java.util.Arrays;
+
+/**
+ * Reads the kafka start and end offsets of a source progress, i.e.
+ * <code>{"topic":{"0":282407697,"1":282407640}}</code>, into reusable primitive arrays without building a json tree.
+ * <p>
+ * One reader per source, reading the same topics every batch, so topic names are kept and matched in place and a
+ * steady state read allocates nothing. Not thread safe.
+ */
+final class KafkaOffsetReader {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // topic table kept across reads, indices are stable for the life of the reader
+    private String[] topics = new String[2];
+    private int topicCount;
+
+    // start offsets
+    private int[] startTopics = new int[INITIAL_CAPACITY];
+    private int[] startPartitions = new int[INITIAL_CAPACITY];
+    private long[] startOffsets = new long[INITIAL_CAPACITY];
+    private int startSize;
+
+    // end offsets and the advance since the start offset of the same partition
+    private int[] endTopics = new int[INITIAL_CAPACITY];
+    private int[] endPartitions = new int[INITIAL_CAPACITY];
+    private long[] endOffsets = new long[INITIAL_CAPACITY];
+    private long[] advances = new long[INITIAL_CAPACITY];
+    private int endSize;
+
+    private String json;
+    private int pos;
+
+    /**
+     * @return false if either offset is missing or not shaped like kafka offsets, the reader is then empty
+     */
+    boolean read(String startOffsetJson, String endOffsetJson) {
+        startSize = 0;
+        endSize = 0;
+        if (startOffsetJson == null || endOffsetJson == null) {
+            return false;
+        }
+        if (!parse(startOffsetJson, true) || !parse(endOffsetJson, false)) {
+            startSize = 0;
+            endSize = 0;
+            return false;
+        }
+        for (int i = 0; i < endSize; i++) {
+            int start = indexOfStart(endTopics[i], endPartitions[i], i);
+            // new partitions have no start offset, a reset offset goes backwards, neither is an advance
+            advances[i] = start < 0 ? -1 : Math.max(-1, endOffsets[i] - startOffsets[start]);
+        }
+        return true;
+    }
+
+    /**
+     * @return number of partitions in the end offsets
+     */
+    int size() {
+        return endSize;
+    }
+
+    int topic(int i) {
+        return endTopics[i];
+    }
+
+    int partition(int i) {
+        return endPartitions[i];
+    }
+
+    long endOffset(int i) {
+        return endOffsets[i];
+    }
+
+    /**
+     * @return offsets consumed from the partition in this batch, -1 if unknown
+     */
+    long advance(int i) {
+        return advances[i];
+    }
+
+    int topicCount() {
+        return topicCount;
+    }
+
+    String topicName(int topic) {
+        return topics[topic];
+    }
+
+    // spark writes the partitions of both offsets in the same order, so the same index is checked first
+    private int indexOfStart(int topic, int partition, int hint) {
+        if (hint < startSize && startTopics[hint] == topic && startPartitions[hint] == partition) {
+            return hint;
+        }
+        for (int i = 0; i < startSize; i++) {
+            if (startTopics[i] == topic && startPartitions[i] == partition) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean parse(String offsetJson, boolean start) {
+        json = offsetJson;
+        pos = 0;
+        try {
+            if (!consume('{')) {
+                return false;
+            }
+            if (!consume('}')) {
+                do {
+                    int topic = readTopic();
+                    if (topic < 0 || !consume(':') || !consume('{')) {
+                        return false;
+                    }
+                    if (!consume('}')) {
+                        do {
+                            int partition = readPartition();
+                            if (partition < 0 || !consume(':')) {
+                                return false;
+                            }
+                            skipWhitespace();
+                            int numberStart = pos;
+                            long offset = readLong();
+                            if (pos == numberStart || json.charAt(pos - 1) == '-') {
+                                return false;
+                            }
+                            add(start, topic, partition, offset);
+                        } while (consume(','));
+                        if (!consume('}')) {
+                            return false;
+                        }
+                    }
+                } while (consume(','));
+                if (!consume('}')) {
+                    return false;
+                }
+            }
+            skipWhitespace();
+            return pos == json.length();
+        } finally {
+            json = null;
+        }
+    }
+
+    private void add(boolean start, int topic, int partition, long offset) {
+        if (start) {
+            if (startSize == startOffsets.length) {
+                startTopics = Arrays.copyOf(startTopics, startSize * 2);
+                startPartitions = Arrays.copyOf(startPartitions, startSize * 2);
+                startOffsets = Arrays.copyOf(startOffsets, startSize * 2);
+            }
+            startTopics[startSize] = topic;
+            startPartitions[startSize] = partition;
+            startOffsets[startSize++] = offset;
+        } else {
+            if (endSize == endOffsets.length) {
+                endTopics = Arrays.copyOf(endTopics, endSize * 2);
+                endPartitions = Arrays.copyOf(endPartitions, endSize * 2);
+                endOffsets = Arrays.copyOf(endOffsets, endSize * 2);
+                advances = Arrays.copyOf(advances, endSize * 2);
+            }
+            endTopics[endSize] = topic;
+            endPartitions[endSize] = partition;
+            endOffsets[endSize++] = offset;
+        }
+    }
+
+    /**
+     * @return index of the topic in the table, -1 if not a plain string
+     */
+    private int readTopic() {
+        if (!consume('"')) {
+            return -1;
+        }
+        int nameStart = pos;
+        while (pos < json.length() && json.charAt(pos) != '"') {
+            // kafka topic names never need escaping
+            if (json.charAt(pos) == '\\') {
+                return -1;
+            }
+            pos++;
+        }
+        if (pos == json.length()) {
+            return -1;
+        }
+        int length = pos - nameStart;
+        pos++;
+        for (int i = 0; i < topicCount; i++) {
+            if (topics[i].length() == length && json.regionMatches(nameStart, topics[i], 0, length)) {
+                return i;
+            }
+        }
+        if (topicCount == topics.length) {
+            topics = Arrays.copyOf(topics, topicCount * 2);
+        }
+        topics[topicCount] = json.substring(nameStart, nameStart + length);
+        return topicCount++;
+    }
+
+    /**
+     * @return partition number written as a json key, -1 if not one
+     */
+    private int readPartition() {
+        if (!consume('"')) {
+            return -1;
+        }
+        int partition = 0;
+        int digits = 0;
+        while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+            partition = partition * 10 + (json.charAt(pos++) - '0');
+            digits++;
+        }
+        if (digits == 0 || pos == json.length() || json.charAt(pos) != '"') {
+            return -1;
+        }
+        pos++;
+        return partition;
+    }
+
+    private long readLong() {
+        boolean negative = pos < json.length() && json.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        long value = 0;
+        while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+            value = value * 10 + (json.charAt(pos++) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (pos < json.length() && json.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+}
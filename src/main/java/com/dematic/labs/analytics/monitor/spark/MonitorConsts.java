@@ -11,7 +11,46 @@ public interface MonitorConsts {
     String SPARK_CLUSTER_ID="dematiclabs.spark.cluster_id";
     String SPARK_DRIVER_KEY="dematiclabs.spark.driver.key";
     String SPARK_QUERY_MONITOR_PUSH_GATEWAY = "dematiclabs.monitor.pushGateway.address";
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_CONNECT_TIMEOUT_MS = "dematiclabs.monitor.pushGateway.connectTimeoutMs";
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_READ_TIMEOUT_MS = "dematiclabs.monitor.pushGateway.readTimeoutMs";
+    // gzip push bodies of at least gzipMinBytes
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_GZIP = "dematiclabs.monitor.pushGateway.gzip";
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_GZIP_MIN_BYTES = "dematiclabs.monitor.pushGateway.gzipMinBytes";
+    // consecutive failed pushes opening the circuit to the gateway, 0 disables the circuit breaker
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_BREAKER_FAILURES = "dematiclabs.monitor.pushGateway.breakerFailures";
+    // first backoff of an open circuit before probing the gateway, doubled with every failed probe
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_BREAKER_BASE_BACKOFF_MS = "dematiclabs.monitor.pushGateway.breakerBaseBackoffMs";
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_BREAKER_MAX_BACKOFF_MS = "dematiclabs.monitor.pushGateway.breakerMaxBackoffMs";
+    // directory of the spool file for pushes failing while the gateway is unreachable, no spool if unset
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_SPOOL_DIR = "dematiclabs.monitor.pushGateway.spoolDir";
+    // size of the spool file, the oldest payloads are evicted when full
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_SPOOL_MAX_BYTES = "dematiclabs.monitor.pushGateway.spoolMaxBytes";
+    // spooled payloads replayed at most per push, so a recovering gateway isn't flooded by every executor at once
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_SPOOL_REPLAY_PER_PUSH = "dematiclabs.monitor.pushGateway.spoolReplayPerPush";
+    // comma separated labels making up the push gateway group, default driver,cluster_id,instance,job_id,executor,component
+    String SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY = "dematiclabs.monitor.pushGateway.groupingKey";
     String SPARK_QUERY_MONITOR_COLLECTOR_JOB_NAME = "dematiclabs.monitor.collector.job.name";
+    // minimum time between two asynchronous pushes, progress events in between are coalesced
+    String SPARK_QUERY_MONITOR_PUSH_MIN_INTERVAL_MS = "dematiclabs.monitor.push.minIntervalMs";
+
+    // comma separated upper bounds in ms of the query stage duration histogram buckets
+    String SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS = "dematiclabs.monitor.query.durationBucketsMs";
+    // number of recent batches the state store growth rate is computed over
+    String SPARK_QUERY_MONITOR_STATE_GROWTH_WINDOW_BATCHES = "dematiclabs.monitor.query.stateGrowthWindowBatches";
+    // trigger interval of the queries, batches taking longer overrun it, 0 for back to back batches
+    String SPARK_QUERY_MONITOR_TRIGGER_INTERVAL_MS = "dematiclabs.monitor.query.triggerIntervalMs";
+    // number of recent batches the backlog detector looks at
+    String SPARK_QUERY_MONITOR_BACKLOG_WINDOW_BATCHES = "dematiclabs.monitor.query.backlogWindowBatches";
+    // number of recent batches kept per query for rolling statistics
+    String SPARK_QUERY_MONITOR_HISTORY_BATCHES = "dematiclabs.monitor.query.historyBatches";
+    // port of the json progress history endpoint, not served if unset
+    String SPARK_QUERY_MONITOR_HISTORY_PORT = "dematiclabs.monitor.query.historyPort";
+    // refresh interval of the medium tier jvm collectors, process cpu and fds and class loading, 0 for every push
+    String SPARK_MONITOR_JVM_MEDIUM_TIER_MS = "dematiclabs.monitor.jvm.mediumTierMs";
+    // refresh interval of the slow tier jvm collectors, thread states and deadlock detection and version info
+    String SPARK_MONITOR_JVM_SLOW_TIER_MS = "dematiclabs.monitor.jvm.slowTierMs";
+    // tasks slower than this multiple of their stage's median task duration count as stragglers
+    String SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE = "dematiclabs.monitor.task.stragglerMultiple";
 
     // optional for segregating metric sets without time
     String SPARK_DRIVER_UNIQUE_RUN_ID= "dematiclabs.spark.driver.unique.run.id";
@@ -25,4 +64,10 @@ public interface MonitorConsts {
     String SPARK_DURATION_KEY_GET_OFFSET="getOffset";
     String SPARK_DURATION_KEY_GET_BATCH="getBatch";
     String SPARK_DURATION_KEY_QUERY_PLANNING="queryPlanning";
+    String SPARK_DURATION_KEY_ADD_BATCH="addBatch";
+    String SPARK_DURATION_KEY_WAL_COMMIT="walCommit";
+
+    // query event time hash map key
+    String SPARK_EVENT_TIME_KEY_MAX="max";
+    String SPARK_EVENT_TIME_KEY_WATERMARK="watermark";
 }
@@ -0,0 +1,57 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the numeric system properties in {@link MonitorConsts}, an unset property or one that doesn't parse gives
+ * the default, the latter logged as an error.
+ */
+final class MonitorProperties {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MonitorProperties.class);
+
+    private MonitorProperties() {
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid " + key + "=" + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid " + key + "=" + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static double getDouble(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid " + key + "=" + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.apache.spark.sql.streaming.StreamingQueryProgress;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The last n batches of one streaming query as parallel primitive arrays, for rolling statistics without an
+ * external time series database. Memory is fixed when the history is created, adding a batch allocates nothing.
+ * <p>
+ * Written by the listener bus, read by collectors and the json endpoint, all access is synchronized.
+ */
+final class ProgressHistory {
+    static final int DEFAULT_BATCHES = 100;
+
+    static final int SERIES_INPUT_ROWS = 0;
+    static final int SERIES_INPUT_ROWS_PER_SECOND = 1;
+    static final int SERIES_PROCESSED_ROWS_PER_SECOND = 2;
+    // stage durations follow, in the order of STAGES
+    static final int SERIES_FIRST_STAGE = 3;
+    static final String[] STAGES = {MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION,
+            MonitorConsts.SPARK_DURATION_KEY_GET_OFFSET, MonitorConsts.SPARK_DURATION_KEY_GET_BATCH,
+            MonitorConsts.SPARK_DURATION_KEY_ADD_BATCH, MonitorConsts.SPARK_DURATION_KEY_WAL_COMMIT,
+            MonitorConsts.SPARK_DURATION_KEY_QUERY_PLANNING};
+    static final int SERIES_COUNT = SERIES_FIRST_STAGE + STAGES.length;
+
+    // index of the statistics in the array filled by stats()
+    static final int STAT_MEAN = 0;
+    static final int STAT_P50 = 1;
+    static final int STAT_P95 = 2;
+    static final int STAT_MAX = 3;
+    static final String[] STAT_NAMES = {"mean", "p50", "p95", "max"};
+
+    private final String queryName;
+    private final String queryId;
+    private final long[] batchIds;
+    // [series][slot], NaN where the batch had no value, i.e. a stage that didn't run
+    private final double[][] series;
+    private final double[] scratch;
+    private int next;
+    private int size;
+
+    ProgressHistory(String queryName, String queryId, int batches) {
+        this.queryName = queryName;
+        this.queryId = queryId;
+        int capacity = Math.max(1, batches);
+        batchIds = new long[capacity];
+        series = new double[SERIES_COUNT][capacity];
+        scratch = new double[capacity];
+    }
+
+    synchronized void add(StreamingQueryProgress progress) {
+        batchIds[next] = progress.batchId();
+        series[SERIES_INPUT_ROWS][next] = progress.numInputRows();
+        series[SERIES_INPUT_ROWS_PER_SECOND][next] = progress.inputRowsPerSecond();
+        series[SERIES_PROCESSED_ROWS_PER_SECOND][next] = progress.processedRowsPerSecond();
+        Map<String, Long> durationByStage = progress.durationMs();
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            Long duration = durationByStage == null ? null : durationByStage.get(STAGES[stage]);
+            series[SERIES_FIRST_STAGE + stage][next] = duration == null ? Double.NaN : duration;
+        }
+        next = (next + 1) % batchIds.length;
+        if (size < batchIds.length) {
+            size++;
+        }
+    }
+
+    String getQueryName() {
+        return queryName;
+    }
+
+    String getQueryId() {
+        return queryId;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long getFirstBatchId() {
+        return size == 0 ? -1 : batchIds[(next - size + batchIds.length) % batchIds.length];
+    }
+
+    synchronized long getLastBatchId() {
+        return size == 0 ? -1 : batchIds[(next - 1 + batchIds.length) % batchIds.length];
+    }
+
+    /**
+     * Fills stats with mean, p50, p95 and max of the series over the history, NaN if it has no values.
+     *
+     * @return number of values the stats are computed from
+     */
+    synchronized int stats(int seriesIndex, double[] stats) {
+        double[] values = series[seriesIndex];
+        int count = 0;
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            double value = values[i];
+            // the first batch reports NaN or infinite rates
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                scratch[count++] = value;
+                sum += value;
+            }
+        }
+        if (count == 0) {
+            Arrays.fill(stats, 0, STAT_NAMES.length, Double.NaN);
+            return 0;
+        }
+        Arrays.sort(scratch, 0, count);
+        stats[STAT_MEAN] = sum / count;
+        stats[STAT_P50] = percentile(count, 0.5);
+        stats[STAT_P95] = percentile(count, 0.95);
+        stats[STAT_MAX] = scratch[count - 1];
+        return count;
+    }
+
+    // nearest rank on the sorted scratch values
+    private double percentile(int count, double quantile) {
+        int rank = (int) Math.ceil(quantile * count);
+        return scratch[Math.max(0, rank - 1)];
+    }
+}
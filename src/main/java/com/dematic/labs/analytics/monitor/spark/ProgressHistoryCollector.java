@@ -0,0 +1,196 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_METRIC_PREFIX;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_ID;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_NAME;
+
+/**
+ * Rolling mean, p50, p95 and max over the {@link ProgressHistory} of every running query, as prometheus gauges and
+ * as json for {@link ProgressHistoryEndpoint}.
+ */
+final class ProgressHistoryCollector extends Collector {
+    static final String LABEL_STAT = "stat";
+    private static final List<String> QUERY_LABELS = Arrays.asList(LABEL_QUERY_NAME, LABEL_QUERY_ID);
+    private static final List<String> STAT_LABELS = Arrays.asList(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_STAT);
+    private static final List<String> STAGE_LABELS = Arrays.asList(LABEL_QUERY_NAME, LABEL_QUERY_ID,
+            PrometheusStreamingQueryListener.LABEL_STAGE, LABEL_STAT);
+    private static final String[] SERIES_JSON_NAMES = {"inputRows", "inputRowsPerSecond", "processedRowsPerSecond"};
+
+    private final int batches;
+    private final ConcurrentMap<String, ProgressHistory> histories = new ConcurrentHashMap<String, ProgressHistory>();
+
+    /**
+     * @param batches history length of every query
+     */
+    ProgressHistoryCollector(int batches) {
+        this.batches = batches;
+    }
+
+    /**
+     * @return window from {@link MonitorConsts#SPARK_QUERY_MONITOR_HISTORY_BATCHES}
+     */
+    static int getConfiguredBatches() {
+        return MonitorProperties.getInt(MonitorConsts.SPARK_QUERY_MONITOR_HISTORY_BATCHES,
+                ProgressHistory.DEFAULT_BATCHES);
+    }
+
+    ProgressHistory forQuery(String queryName, String queryId) {
+        ProgressHistory history = new ProgressHistory(queryName, queryId, batches);
+        histories.put(queryId, history);
+        return history;
+    }
+
+    void remove(String queryId) {
+        histories.remove(queryId);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> sizes = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> inputRows = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> inputRates = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> processedRates = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> stageDurations = new ArrayList<MetricFamilySamples.Sample>();
+        double[] stats = new double[ProgressHistory.STAT_NAMES.length];
+
+        for (ProgressHistory history : histories.values()) {
+            String name = history.getQueryName();
+            String id = history.getQueryId();
+            sizes.add(new MetricFamilySamples.Sample(SPARK_METRIC_PREFIX + "history_batches", QUERY_LABELS,
+                    Arrays.asList(name, id), history.size()));
+            addStats(inputRows, SPARK_METRIC_PREFIX + "history_input_rows", history,
+                    ProgressHistory.SERIES_INPUT_ROWS, stats);
+            addStats(inputRates, SPARK_METRIC_PREFIX + "history_input_rows_per_second", history,
+                    ProgressHistory.SERIES_INPUT_ROWS_PER_SECOND, stats);
+            addStats(processedRates, SPARK_METRIC_PREFIX + "history_processed_rows_per_second", history,
+                    ProgressHistory.SERIES_PROCESSED_ROWS_PER_SECOND, stats);
+            for (int stage = 0; stage < ProgressHistory.STAGES.length; stage++) {
+                if (history.stats(ProgressHistory.SERIES_FIRST_STAGE + stage, stats) == 0) {
+                    continue;
+                }
+                for (int stat = 0; stat < stats.length; stat++) {
+                    stageDurations.add(new MetricFamilySamples.Sample(
+                            SPARK_METRIC_PREFIX + "history_stage_duration_ms", STAGE_LABELS,
+                            Arrays.asList(name, id, ProgressHistory.STAGES[stage], ProgressHistory.STAT_NAMES[stat]),
+                            stats[stat]));
+                }
+            }
+        }
+
+        List<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>(5);
+        mfSamples.add(new MetricFamilySamples(SPARK_METRIC_PREFIX + "history_batches", Type.GAUGE,
+                "Batches in the rolling progress history.", sizes));
+        mfSamples.add(new MetricFamilySamples(SPARK_METRIC_PREFIX + "history_input_rows", Type.GAUGE,
+                "Input rows per batch over the rolling progress history.", inputRows));
+        mfSamples.add(new MetricFamilySamples(SPARK_METRIC_PREFIX + "history_input_rows_per_second", Type.GAUGE,
+                "Input rows per second over the rolling progress history.", inputRates));
+        mfSamples.add(new MetricFamilySamples(SPARK_METRIC_PREFIX + "history_processed_rows_per_second", Type.GAUGE,
+                "Processed rows per second over the rolling progress history.", processedRates));
+        mfSamples.add(new MetricFamilySamples(SPARK_METRIC_PREFIX + "history_stage_duration_ms", Type.GAUGE,
+                "Stage duration in ms over the rolling progress history.", stageDurations));
+        return mfSamples;
+    }
+
+    private static void addStats(List<MetricFamilySamples.Sample> samples, String metricName, ProgressHistory history,
+                                 int series, double[] stats) {
+        if (history.stats(series, stats) == 0) {
+            return;
+        }
+        for (int stat = 0; stat < stats.length; stat++) {
+            samples.add(new MetricFamilySamples.Sample(metricName, STAT_LABELS,
+                    Arrays.asList(history.getQueryName(), history.getQueryId(), ProgressHistory.STAT_NAMES[stat]),
+                    stats[stat]));
+        }
+    }
+
+    /**
+     * Writes the statistics of all queries as a json array, series without values are left out.
+     */
+    void writeJson(Writer writer) throws IOException {
+        double[] stats = new double[ProgressHistory.STAT_NAMES.length];
+        List<ProgressHistory> queries = new ArrayList<ProgressHistory>(histories.values());
+        Collections.sort(queries, (a, b) -> a.getQueryName().compareTo(b.getQueryName()));
+        writer.write('[');
+        for (int q = 0; q < queries.size(); q++) {
+            ProgressHistory history = queries.get(q);
+            if (q > 0) {
+                writer.write(',');
+            }
+            writer.write("{\"name\":");
+            writeString(writer, history.getQueryName());
+            writer.write(",\"id\":");
+            writeString(writer, history.getQueryId());
+            writer.write(",\"batches\":" + history.size() + ",\"firstBatchId\":" + history.getFirstBatchId()
+                    + ",\"lastBatchId\":" + history.getLastBatchId());
+            for (int series = 0; series < SERIES_JSON_NAMES.length; series++) {
+                writeStats(writer, SERIES_JSON_NAMES[series], history, series, stats);
+            }
+            writer.write(",\"durationMs\":{");
+            boolean first = true;
+            for (int stage = 0; stage < ProgressHistory.STAGES.length; stage++) {
+                if (history.stats(ProgressHistory.SERIES_FIRST_STAGE + stage, stats) == 0) {
+                    continue;
+                }
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeString(writer, ProgressHistory.STAGES[stage]);
+                writer.write(':');
+                writeStatsObject(writer, stats);
+            }
+            writer.write("}}");
+        }
+        writer.write(']');
+    }
+
+    private static void writeStats(Writer writer, String name, ProgressHistory history, int series, double[] stats)
+            throws IOException {
+        if (history.stats(series, stats) == 0) {
+            return;
+        }
+        writer.write(",\"" + name + "\":");
+        writeStatsObject(writer, stats);
+    }
+
+    private static void writeStatsObject(Writer writer, double[] stats) throws IOException {
+        writer.write('{');
+        for (int stat = 0; stat < stats.length; stat++) {
+            if (stat > 0) {
+                writer.write(',');
+            }
+            writer.write("\"" + ProgressHistory.STAT_NAMES[stat] + "\":" + stats[stat]);
+        }
+        writer.write('}');
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the rolling progress statistics of the driver's queries as json, for a quick look without prometheus.
+ */
+public class ProgressHistoryEndpoint implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProgressHistoryEndpoint.class);
+
+    public static final String DEFAULT_PATH = "/history";
+
+    private final EmbeddedHttpServer server;
+
+    /**
+     * @param port port to listen on, 0 for an ephemeral port
+     * @throws IOException if the port can't be bound
+     */
+    ProgressHistoryEndpoint(int port, ProgressHistoryCollector history) throws IOException {
+        server = new EmbeddedHttpServer(port, "progress-history", 1);
+        server.createContext(DEFAULT_PATH, exchange -> {
+            try {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+                history.writeJson(writer);
+                writer.flush();
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.size());
+                OutputStream out = exchange.getResponseBody();
+                body.writeTo(out);
+                out.close();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Error writing progress history with error  \n" + e.getMessage());
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Serving streaming query progress history on port " + getPort() + DEFAULT_PATH);
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+
+    /**
+     * @return the bound port, useful with an ephemeral port
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+}
@@ -4,7 +4,12 @@
 package com.dematic.labs.analytics.monitor.spark;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.hotspot.DefaultExports;
+import io.prometheus.client.hotspot.ClassLoadingExports;
+import io.prometheus.client.hotspot.GarbageCollectorExports;
+import io.prometheus.client.hotspot.MemoryPoolsExports;
+import io.prometheus.client.hotspot.StandardExports;
+import io.prometheus.client.hotspot.ThreadExports;
+import io.prometheus.client.hotspot.VersionInfoExports;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,13 +17,26 @@ import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
  * Stores configuration for prometheus push gateway integration
+ *
+ * Every component gets its own collector registry, so the sink, the listeners and the reporter in one driver JVM
+ * never clear or collide with each other's collectors. The standard jvm collectors live in one registry shared by
+ * the JVM, see {@link #getJvmCollectorRegistry()}, and are pushed alongside a component's own registry.
+ *
+ * The grouping key is immutable, {@link #setGroupingLabel} swaps in a copy, and only holds the labels configured in
+ * dematiclabs.monitor.pushGateway.groupingKey, by default all of them so every executor is its own group. Pushes of
+ * executors keep the executor in their group whatever is configured, see {@link #setRequiredGroupingLabel}, and so
+ * do the driver listeners with their component, a push replacing its group never touches another component's series.
  */
 
 public class PrometheusConfig {
@@ -29,13 +47,20 @@ public class PrometheusConfig {
     public static String JOB_NAME = "spark-push-gateway";
     public static String SPARK_METRIC_PREFIX = "spark_structured_streaming_";
     public static String LABEL_EXECUTOR = "executor";
+    // tells apart the listeners and the sink of one driver, each pushing its own metric names
+    public static String LABEL_COMPONENT = "component";
+    // metrics about the monitor itself
+    public static String MONITOR_METRIC_PREFIX = "dsp_monitor_";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusConfig.class);
     private String push_gateway_host;
     private String appName;
 
-    private Map<String, String> groupingKey = new HashMap<String, String>();
-    private CollectorRegistry collectorRegistry;
+    // labels allowed in the grouping key, in url order, replaced under this
+    private volatile Set<String> groupingLabels;
+    // never modified, replaced as a whole
+    private volatile Map<String, String> groupingKey = Collections.emptyMap();
+    private final CollectorRegistry collectorRegistry = new CollectorRegistry(true);
 
     /**
      * @param app_name
@@ -44,24 +69,27 @@ public class PrometheusConfig {
 
         this.push_gateway_host = System.getProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY);
         this.appName = app_name;
-        collectorRegistry = CollectorRegistry.defaultRegistry;
-        collectorRegistry.clear();
+        this.groupingLabels = getConfiguredGroupingLabels();
 
-        groupingKey.put(PrometheusConfig.LABEL_DRIVER_NAME, app_name);
+        Map<String, String> key = new LinkedHashMap<String, String>();
+        key.put(PrometheusConfig.LABEL_DRIVER_NAME, app_name);
 
         // graceful default so callers can set parameters later
-        groupingKey.put(PrometheusConfig.LABEL_CLUSTER_ID, System.getProperty(MonitorConsts.SPARK_CLUSTER_ID, "undefined"));
+        key.put(PrometheusConfig.LABEL_CLUSTER_ID, System.getProperty(MonitorConsts.SPARK_CLUSTER_ID, "undefined"));
 
-        groupingKey.put(PrometheusConfig.LABEL_INSTANCE, getLocalAddress().getHostAddress());
+        // graceful default on hosts without a site local address
+        if (groupingLabels.contains(PrometheusConfig.LABEL_INSTANCE)) {
+            InetAddress localAddress = getLocalAddress();
+            key.put(PrometheusConfig.LABEL_INSTANCE, localAddress == null ? "undefined" : localAddress.getHostAddress());
+        }
 
         // graceful default so callers can set parameters later
         if (System.getProperty(MonitorConsts.SPARK_DRIVER_UNIQUE_RUN_ID)!=null) {
-            groupingKey.put(PrometheusConfig.LABEL_JOB_ID, System.getProperty(MonitorConsts.SPARK_DRIVER_UNIQUE_RUN_ID));
+            key.put(PrometheusConfig.LABEL_JOB_ID, System.getProperty(MonitorConsts.SPARK_DRIVER_UNIQUE_RUN_ID));
         }
+        groupingKey = freeze(key);
 
         // NOTE MonitorConsts.SPARK_EXECUTOR_ID is only available inside SparkConf which is not available here...
-        // add all standard jvm collectors - memory, gc, machine, etc..
-        DefaultExports.initialize();
         LOGGER.info("Prometheus Metrics initialized with " + this.toString());
     }
 
@@ -87,14 +115,125 @@ public class PrometheusConfig {
         return push_gateway_host;
     }
 
+    /**
+     * @return client shared by everything in this JVM pushing to the configured gateway
+     */
+    public PushGatewayClient getPushGatewayClient() {
+        if (push_gateway_host == null) {
+            throw new IllegalStateException("Set " + MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY + " to push metrics");
+        }
+        return PushGatewayClient.forAddress(push_gateway_host);
+    }
+
+    /**
+     * @return collectors of the component owning this config only
+     */
     public CollectorRegistry getCollectorRegistry() {
         return collectorRegistry;
     }
 
+    /**
+     * @return all standard jvm collectors - memory, gc, threads, class loading, etc.. - registered on first use and
+     * shared by every component in the JVM. Memory and gc are collected on every push, the more expensive ones are
+     * {@link TieredCollector}s refreshed at a fixed rate.
+     */
+    public static CollectorRegistry getJvmCollectorRegistry() {
+        return JvmCollectors.REGISTRY;
+    }
+
+    // lazy holder, the jvm collectors are only created by the first component pushing them
+    private static final class JvmCollectors {
+        private static final CollectorRegistry REGISTRY = new CollectorRegistry(true);
+
+        static {
+            long medium = TieredCollector.getConfiguredTierMillis(MonitorConsts.SPARK_MONITOR_JVM_MEDIUM_TIER_MS,
+                    TieredCollector.DEFAULT_MEDIUM_TIER_MS);
+            long slow = TieredCollector.getConfiguredTierMillis(MonitorConsts.SPARK_MONITOR_JVM_SLOW_TIER_MS,
+                    TieredCollector.DEFAULT_SLOW_TIER_MS);
+            new MemoryPoolsExports().register(REGISTRY);
+            new GarbageCollectorExports().register(REGISTRY);
+            new TieredCollector(new StandardExports(), medium).register(REGISTRY);
+            new TieredCollector(new ClassLoadingExports(), medium).register(REGISTRY);
+            // thread states and deadlock detection walk every thread
+            new TieredCollector(new ThreadExports(), slow).register(REGISTRY);
+            new TieredCollector(new VersionInfoExports(), slow).register(REGISTRY);
+        }
+    }
+
+    /**
+     * @return labels of the push gateway group, immutable
+     */
     public Map<String, String> getGroupingKey() {
         return groupingKey;
     }
 
+    /**
+     * Adds or replaces a label of the grouping key, i.e. the executor once it is known. Ignored if the label is not
+     * configured to be part of the group.
+     */
+    public synchronized void setGroupingLabel(String label, String value) {
+        if (!groupingLabels.contains(label)) {
+            return;
+        }
+        Map<String, String> key = new LinkedHashMap<String, String>(groupingKey);
+        key.put(label, value);
+        groupingKey = freeze(key);
+    }
+
+    /**
+     * Adds or replaces a label of the grouping key even if it is not configured to be part of the group. For labels
+     * telling apart pushes sharing a group otherwise, i.e. the executor, without them the executors would replace
+     * each other's pushes and all but one would be lost.
+     *
+     * @return true if the label is not part of the configured grouping key and was added
+     */
+    public synchronized boolean setRequiredGroupingLabel(String label, String value) {
+        boolean added = !groupingLabels.contains(label);
+        if (added) {
+            Set<String> labels = new LinkedHashSet<String>(groupingLabels);
+            labels.add(label);
+            groupingLabels = Collections.unmodifiableSet(labels);
+        }
+        setGroupingLabel(label, value);
+        return added;
+    }
+
+    // only the configured labels in configured order, then unmodifiable
+    private Map<String, String> freeze(Map<String, String> key) {
+        Map<String, String> frozen = new LinkedHashMap<String, String>();
+        for (String label : groupingLabels) {
+            String value = key.get(label);
+            if (value != null) {
+                frozen.put(label, value);
+            }
+        }
+        return Collections.unmodifiableMap(frozen);
+    }
+
+    /**
+     * @return labels of the grouping key from dematiclabs.monitor.pushGateway.groupingKey, all of them by default
+     */
+    static Set<String> getConfiguredGroupingLabels() {
+        Set<String> all = new LinkedHashSet<String>(Arrays.asList(LABEL_DRIVER_NAME, LABEL_CLUSTER_ID, LABEL_INSTANCE,
+                LABEL_JOB_ID, LABEL_EXECUTOR, LABEL_COMPONENT));
+        String configured = System.getProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY);
+        if (configured == null || configured.trim().isEmpty()) {
+            return Collections.unmodifiableSet(all);
+        }
+        Set<String> labels = new LinkedHashSet<String>();
+        for (String label : configured.split(",")) {
+            String trimmed = label.trim();
+            if (all.contains(trimmed)) {
+                labels.add(trimmed);
+            } else if (!trimmed.isEmpty()) {
+                LOGGER.error("Invalid " + MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY + "=" + configured
+                        + ", using " + all);
+                return Collections.unmodifiableSet(all);
+            }
+        }
+        return Collections.unmodifiableSet(labels);
+    }
+
     public String getMetricsURLBase() {
         return "http://" + push_gateway_host + "/metrics/job/";
     }
@@ -12,14 +12,21 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.BucketLayout;
 import com.dematic.labs.analytics.monitor.spark.dropwizard.DropwizardSparkExports;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.MetricNameTemplate;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.PushGateway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -27,14 +34,44 @@ import java.util.concurrent.TimeUnit;
  */
 public class PrometheusMetricsReporter extends ScheduledReporter {
     private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusMetricsReporter.class);
+    // executor id spark gives the driver in metric names
+    private static final String DRIVER_EXECUTOR = "driver";
+    // every reporter of an executor finds the grouping key without executor, tell once
+    private static final AtomicBoolean EXECUTOR_LABEL_ADDED_LOGGED = new AtomicBoolean();
+    public static final int DEFAULT_DELTA_FULL_REFRESH_CYCLES = 30;
     private PrometheusConfig promConfig;
     private final MetricRegistry registry;
     private DropwizardSparkExports dropwizardExports;
+    private CollectorRegistry sparkCollectorRegistry;
+    // null to find the executor the original way, from names starting with "application"
+    private final MetricNameTemplate nameTemplate;
+    private volatile boolean executorFound;
+
+    // delta mode only pushes changed dropwizard families, with a full push every deltaFullRefreshCycles
+    private boolean deltaMode;
+    private double deltaEpsilon;
+    private int deltaFullRefreshCycles = DEFAULT_DELTA_FULL_REFRESH_CYCLES;
+    private long deltaCycles;
+
+    // null unless the sink asked for an adaptive interval
+    private AdaptiveReportInterval adaptiveInterval;
 
     public PrometheusMetricsReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit) {
+        this(registry, name, filter, rateUnit, durationUnit, null);
+    }
+
+    /**
+     * @param nameTemplate exports application, executor and namespace of matching dropwizard names as labels, null
+     *                     to keep them in the name
+     */
+    public PrometheusMetricsReporter(MetricRegistry registry, String name, MetricFilter filter, TimeUnit rateUnit,
+                                     TimeUnit durationUnit, MetricNameTemplate nameTemplate) {
         super(registry, name, filter, rateUnit, durationUnit);
         this.registry = registry;
-        dropwizardExports = new DropwizardSparkExports(registry);
+        this.nameTemplate = nameTemplate;
+        dropwizardExports = new DropwizardSparkExports(registry, nameTemplate);
+        sparkCollectorRegistry = new CollectorRegistry(false);
+        sparkCollectorRegistry.register(dropwizardExports);
 
         initializePrometheus(name);
     }
@@ -47,14 +84,19 @@ public class PrometheusMetricsReporter extends ScheduledReporter {
      */
     private void initializePrometheus(String appName) {
         promConfig = new PrometheusConfig(appName);
+        if (promConfig.getPushGatewayHost() != null) {
+            // bandwidth report of the shared client goes out with the executor metrics. Not in sparkCollectorRegistry,
+            // delta mode only pushes the changed dropwizard families instead of that registry
+            promConfig.getCollectorRegistry().register(promConfig.getPushGatewayClient());
+        }
         registry.addListener(new MetricRegistryListener.Base() {
             @Override
             public void onGaugeAdded(String name, Gauge<?> gauge) {
-                if (!promConfig.getGroupingKey().containsKey(PrometheusConfig.LABEL_EXECUTOR)) {
-                    if (name.startsWith("application")) {
-                        String[] names = name.split("\\.");
-                        String executor = names[1];
-                        promConfig.getGroupingKey().put(PrometheusConfig.LABEL_EXECUTOR, executor);
+                if (!executorFound) {
+                    String executor = findExecutor(name);
+                    if (executor != null) {
+                        executorFound = true;
+                        setExecutorGroupingLabel(executor);
                     }
                 }
             }
@@ -62,40 +104,160 @@ public class PrometheusMetricsReporter extends ScheduledReporter {
     }
 
 
+    private void setExecutorGroupingLabel(String executor) {
+        if (DRIVER_EXECUTOR.equals(executor) || ("<" + DRIVER_EXECUTOR + ">").equals(executor)) {
+            // a single JVM, the configured grouping key applies
+            promConfig.setGroupingLabel(PrometheusConfig.LABEL_EXECUTOR, executor);
+            return;
+        }
+        // every executor pushes the same names, sharing a group they'd overwrite each other
+        if (promConfig.setRequiredGroupingLabel(PrometheusConfig.LABEL_EXECUTOR, executor)
+                && promConfig.getPushGatewayHost() != null && !EXECUTOR_LABEL_ADDED_LOGGED.getAndSet(true)) {
+            LOGGER.info(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY + "="
+                    + System.getProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY)
+                    + " leaves out " + PrometheusConfig.LABEL_EXECUTOR + ", executors push with it anyway");
+        }
+    }
+
+    private String findExecutor(String name) {
+        if (nameTemplate != null) {
+            MetricNameTemplate.Parsed parsed = nameTemplate.parse(name);
+            return parsed == null ? null : parsed.executor;
+        }
+        if (name.startsWith("application")) {
+            String[] names = name.split("\\.");
+            return names.length > 1 ? names[1] : null;
+        }
+        return null;
+    }
+
     protected PrometheusConfig getPrometheusConfig() {
         return promConfig;
     }
 
+    /**
+     * @return standard jvm and dropwizard registries, what a scrape of this reporter should render
+     */
+    protected CollectorRegistry[] getCollectorRegistries() {
+        return new CollectorRegistry[]{promConfig.getCollectorRegistry(), PrometheusConfig.getJvmCollectorRegistry(),
+                sparkCollectorRegistry};
+    }
+
 
     /**
-     * standard jvm makes graphing easier
+     * Only push dropwizard families that changed since the last successful push.
+     *
+     * @param epsilon absolute change below which a value counts as unchanged
+     * @param fullRefreshCycles every that many cycles everything is pushed so the gateway state converges
      */
-    private void pushStandardMetricsToPrometheusGateway() {
-        PushGateway pg = new PushGateway(promConfig.getPushGatewayHost());
-        try {
-            pg.pushAdd(promConfig.getCollectorRegistry(), PrometheusConfig.JOB_NAME, promConfig.getGroupingKey());
-        } catch (Exception e) {
-            LOGGER.error("Error writing metrics to " + promConfig + " with error  \n" + e.getMessage());
-        }
+    public void setDeltaMode(boolean deltaMode, double epsilon, int fullRefreshCycles) {
+        this.deltaMode = deltaMode;
+        this.deltaEpsilon = epsilon;
+        this.deltaFullRefreshCycles = Math.max(1, fullRefreshCycles);
+    }
+
+    /**
+     * Stretch the interval while pushes fail or are slow, the reporter must be started at the base period.
+     */
+    public void setAdaptiveInterval(AdaptiveReportInterval adaptiveInterval) {
+        this.adaptiveInterval = adaptiveInterval;
+    }
+
+    AdaptiveReportInterval getAdaptiveInterval() {
+        return adaptiveInterval;
     }
 
+    /**
+     * Evaluate dropwizard gauges under a time budget per report, slow ones export their last known value.
+     *
+     * @param budgetMillis 0 to evaluate them inline
+     */
+    public void setGaugeBudget(long budgetMillis, int threads) {
+        dropwizardExports.setGaugeBudget(budgetMillis, threads);
+    }
+
+    /**
+     * Export dropwizard timers and histograms as prometheus histograms instead of summaries.
+     *
+     * @param timerBuckets bounds in seconds, null for both to export summaries
+     * @param histogramBuckets bounds in the recorded unit
+     */
+    public void setHistogramBuckets(BucketLayout timerBuckets, BucketLayout histogramBuckets) {
+        dropwizardExports.setHistogramBuckets(timerBuckets, histogramBuckets);
+    }
+
+    DropwizardSparkExports getDropwizardExports() {
+        return dropwizardExports;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        dropwizardExports.close();
+    }
+
+    /**
+     * Scheduled tick, in adaptive mode ticks inside the current interval are skipped.
+     */
     @Override
     public void report() {
-        pushStandardMetricsToPrometheusGateway();
+        if (adaptiveInterval == null) {
+            push();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        if (!adaptiveInterval.isDue(start)) {
+            return;
+        }
+        boolean success = push();
+        if (adaptiveInterval.onReport(start, success, System.currentTimeMillis() - start)) {
+            LOGGER.info("Prometheus push interval now " + adaptiveInterval.getCurrentPeriodMillis() + " ms");
+        }
+    }
+
+    /**
+     * Push right away regardless of the adaptive interval, i.e. the final report when spark stops.
+     */
+    public void reportNow() {
+        push();
+    }
 
-        PushGateway pg = new PushGateway(promConfig.getPushGatewayHost());
+    /**
+     * One push per cycle combining the standard jvm metrics, which make graphing easier, with the dropwizard ones.
+     *
+     * @return false if the push failed
+     */
+    private boolean push() {
         try {
-            CollectorRegistry sparkCollectorRegistry = new CollectorRegistry(false);
-            LOGGER.info("Pushing dropwizard metrics to gateway " );
-            // causes metric to be checked twice here.
-            dropwizardExports.collect();
-            sparkCollectorRegistry.register(dropwizardExports);
-            pg.pushAdd(sparkCollectorRegistry, PrometheusConfig.JOB_NAME, promConfig.getGroupingKey());
+            PushGatewayClient client = promConfig.getPushGatewayClient();
+            if (deltaMode) {
+                pushChanged(client);
+            } else {
+                client.pushAdd(PrometheusConfig.JOB_NAME, promConfig.getGroupingKey(), getCollectorRegistries());
+            }
+            LOGGER.info("Pushed jvm and dropwizard metrics to gateway, " + client.getCompressionReport());
+            return true;
+        } catch (PushGatewayClient.CircuitOpenException e) {
+            // already logged when the circuit opened
+            LOGGER.debug(e.getMessage());
+            return false;
         } catch (Exception e) {
             LOGGER.error("Error writing metrics to " + promConfig + " with error  \n" + e.getMessage());
+            return false;
         }
     }
 
+    private void pushChanged(PushGatewayClient client) throws IOException {
+        boolean fullRefresh = deltaCycles++ % deltaFullRefreshCycles == 0;
+        List<Collector.MetricFamilySamples> changed = dropwizardExports.collectChanged(deltaEpsilon, fullRefresh);
+        client.pushAdd(PrometheusConfig.JOB_NAME, promConfig.getGroupingKey(), Arrays.asList(
+                promConfig.getCollectorRegistry().metricFamilySamples(),
+                PrometheusConfig.getJvmCollectorRegistry().metricFamilySamples(), Collections.enumeration(changed)));
+        // only now the gateway has them, a failed push leaves them changed for the next cycle
+        dropwizardExports.commitChanged();
+        LOGGER.debug("Pushed " + changed.size() + " changed dropwizard families" + (fullRefresh ? " (full refresh)" : ""));
+    }
+
     @Override
     public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
           throw new RuntimeException("ScheduledReporter should NOT call this method since we have overridden report()");
@@ -4,47 +4,152 @@
 package com.dematic.labs.analytics.monitor.spark;
 
 import com.codahale.metrics.MetricRegistry;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.BucketLayout;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.MetricNameTemplate;
 import org.apache.spark.SecurityManager;
 import org.apache.spark.metrics.sink.Sink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Instantiated by Spark adding to a metrics property file.
+ * <p>
+ * By default metrics are pushed to the push gateway, with <code>*.sink.prometheus.mode=pull</code> they are served
+ * from an embedded <code>/metrics</code> endpoint instead, see {@link PrometheusScrapeEndpoint}.
  */
 public class PrometheusMetricsSink implements Sink {
     private static final long SINK_DEFAULT_PERIOD = 10;
     private static final TimeUnit SINK_DEFAULT_UNIT = TimeUnit.SECONDS;
     private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusMetricsSink.class);
 
+    // sink properties, i.e. *.sink.prometheus.mode=pull
+    public static final String SINK_KEY_PERIOD = "period";
+    public static final String SINK_KEY_UNIT = "unit";
+    public static final String SINK_KEY_ADAPTIVE = "adaptive";
+    public static final String SINK_KEY_MAX_PERIOD = "maxPeriod";
+    public static final String SINK_KEY_SLOW_PUSH_MS = "slowPushMs";
+    public static final String SINK_KEY_MODE = "mode";
+    public static final String SINK_KEY_PORT = "port";
+    public static final String SINK_KEY_PATH = "path";
+    public static final String SINK_KEY_SCRAPE_CACHE_MS = "scrapeCacheMs";
+    public static final String SINK_KEY_DELTA = "delta";
+    public static final String SINK_KEY_DELTA_EPSILON = "deltaEpsilon";
+    public static final String SINK_KEY_DELTA_FULL_REFRESH_CYCLES = "deltaFullRefreshCycles";
+    public static final String SINK_KEY_GAUGE_BUDGET_MS = "gaugeBudgetMs";
+    public static final String SINK_KEY_GAUGE_THREADS = "gaugeThreads";
+    public static final String SINK_KEY_HISTOGRAMS = "histograms";
+    public static final String SINK_KEY_TIMER_BUCKETS = "timerBuckets";
+    public static final String SINK_KEY_HISTOGRAM_BUCKETS = "histogramBuckets";
+    public static final String SINK_KEY_NAME_TEMPLATE = "nameTemplate";
+
+    public static final String SINK_MODE_PUSH = "push";
+    public static final String SINK_MODE_PULL = "pull";
+    public static final String SINK_HISTOGRAMS_SUMMARY = "summary";
+    public static final String SINK_HISTOGRAMS_BUCKETS = "buckets";
+    // ephemeral port, several executors may share a host
+    private static final int SINK_DEFAULT_PORT = 0;
+    private static final long SINK_DEFAULT_SCRAPE_CACHE_MS = 1000;
+    // adaptive mode backs off to at most this many base periods by default
+    private static final int SINK_DEFAULT_MAX_PERIOD_FACTOR = 6;
+    private static final int SINK_DEFAULT_GAUGE_THREADS = 2;
+
     PrometheusMetricsReporter reporter;
+    PrometheusScrapeEndpoint scrapeEndpoint;
 
     private long pollPeriod;
     private TimeUnit pollUnit;
+    private boolean pullMode;
 
 
     public PrometheusMetricsSink(Properties property,
                                  MetricRegistry registry,
                                  SecurityManager securityMgr) {
-        // todo parameterize if this thing works
-        pollPeriod = SINK_DEFAULT_PERIOD;
-        pollUnit= SINK_DEFAULT_UNIT;
+        // same keys and checks as the sinks shipped with spark
+        pollPeriod = Long.parseLong(property.getProperty(SINK_KEY_PERIOD, String.valueOf(SINK_DEFAULT_PERIOD)).trim());
+        pollUnit = TimeUnit.valueOf(property.getProperty(SINK_KEY_UNIT, SINK_DEFAULT_UNIT.name())
+                .trim().toUpperCase(Locale.ROOT));
+        if (pollUnit.toSeconds(pollPeriod) < 1) {
+            throw new IllegalArgumentException("Polling period " + pollPeriod + " " + pollUnit
+                    + " is below the minimal polling period of 1 second");
+        }
 
         LOGGER.info("PrometheusMetricsSink creating with:" + property);
         LOGGER.info(registry.toString());
 
         String app_name= System.getProperty(MonitorConsts.SPARK_DRIVER_KEY, "undefined");
 
+        // by default application and executor stay in the name and the executor in the grouping key
+        String nameTemplate = property.getProperty(SINK_KEY_NAME_TEMPLATE);
         reporter = new PrometheusMetricsReporter(registry,app_name,null,
                 TimeUnit.MILLISECONDS,
-                TimeUnit.SECONDS);
+                TimeUnit.SECONDS,
+                nameTemplate == null ? null : MetricNameTemplate.compile(nameTemplate));
+
+        // off by default, gauges are evaluated on the reporting thread
+        long gaugeBudgetMillis = Long.parseLong(property.getProperty(SINK_KEY_GAUGE_BUDGET_MS, "0").trim());
+        if (gaugeBudgetMillis > 0) {
+            reporter.setGaugeBudget(gaugeBudgetMillis, Integer.parseInt(property.getProperty(SINK_KEY_GAUGE_THREADS,
+                    String.valueOf(SINK_DEFAULT_GAUGE_THREADS)).trim()));
+        }
+
+        String histograms = property.getProperty(SINK_KEY_HISTOGRAMS, SINK_HISTOGRAMS_SUMMARY).trim();
+        if (SINK_HISTOGRAMS_BUCKETS.equalsIgnoreCase(histograms)) {
+            String timerBuckets = property.getProperty(SINK_KEY_TIMER_BUCKETS);
+            String histogramBuckets = property.getProperty(SINK_KEY_HISTOGRAM_BUCKETS);
+            reporter.setHistogramBuckets(
+                    timerBuckets == null ? BucketLayout.DEFAULT_TIMER_SECONDS : BucketLayout.parse(timerBuckets),
+                    histogramBuckets == null ? BucketLayout.DEFAULT_HISTOGRAM : BucketLayout.parse(histogramBuckets));
+        } else if (!SINK_HISTOGRAMS_SUMMARY.equalsIgnoreCase(histograms)) {
+            throw new IllegalArgumentException("Unknown histogram export " + histograms + ", use "
+                    + SINK_HISTOGRAMS_SUMMARY + " or " + SINK_HISTOGRAMS_BUCKETS);
+        }
+
+        String mode = property.getProperty(SINK_KEY_MODE, SINK_MODE_PUSH).trim();
+        pullMode = SINK_MODE_PULL.equalsIgnoreCase(mode);
+        if (pullMode) {
+            int port = Integer.parseInt(property.getProperty(SINK_KEY_PORT, String.valueOf(SINK_DEFAULT_PORT)).trim());
+            String path = property.getProperty(SINK_KEY_PATH, PrometheusScrapeEndpoint.DEFAULT_PATH).trim();
+            long cacheMillis = Long.parseLong(property.getProperty(SINK_KEY_SCRAPE_CACHE_MS,
+                    String.valueOf(SINK_DEFAULT_SCRAPE_CACHE_MS)).trim());
+            try {
+                scrapeEndpoint = new PrometheusScrapeEndpoint(port, path, cacheMillis,
+                        reporter.getCollectorRegistries());
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't bind prometheus scrape endpoint to port " + port, e);
+            }
+        } else if (!SINK_MODE_PUSH.equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Unknown prometheus sink mode " + mode + ", use "
+                    + SINK_MODE_PUSH + " or " + SINK_MODE_PULL);
+        } else if (Boolean.parseBoolean(property.getProperty(SINK_KEY_DELTA, "false").trim())) {
+            reporter.setDeltaMode(true,
+                    Double.parseDouble(property.getProperty(SINK_KEY_DELTA_EPSILON, "0").trim()),
+                    Integer.parseInt(property.getProperty(SINK_KEY_DELTA_FULL_REFRESH_CYCLES,
+                            String.valueOf(PrometheusMetricsReporter.DEFAULT_DELTA_FULL_REFRESH_CYCLES)).trim()));
+        }
+        if (!pullMode && Boolean.parseBoolean(property.getProperty(SINK_KEY_ADAPTIVE, "false").trim())) {
+            long basePeriodMillis = pollUnit.toMillis(pollPeriod);
+            long maxPeriod = Long.parseLong(property.getProperty(SINK_KEY_MAX_PERIOD,
+                    String.valueOf(pollPeriod * SINK_DEFAULT_MAX_PERIOD_FACTOR)).trim());
+            long slowPushMillis = Long.parseLong(property.getProperty(SINK_KEY_SLOW_PUSH_MS,
+                    String.valueOf(basePeriodMillis / 4)).trim());
+            AdaptiveReportInterval interval = new AdaptiveReportInterval(basePeriodMillis,
+                    pollUnit.toMillis(maxPeriod), slowPushMillis);
+            LOGGER.info("Adaptive push interval " + interval);
+            reporter.setAdaptiveInterval(interval);
+        }
     }
 
     @Override
     public void start() {
+        if (pullMode) {
+            scrapeEndpoint.start();
+            return;
+        }
         //long period, TimeUnit unit)
         LOGGER.info("Starting PrometheusMetricsReporter at intervals of " + pollPeriod + " " + pollUnit);
         reporter.start(pollPeriod, pollUnit);
@@ -52,11 +157,18 @@ public class PrometheusMetricsSink implements Sink {
 
     @Override
     public void stop() {
+        if (pullMode) {
+            scrapeEndpoint.close();
+        }
+        // in pull mode only stops the gauge workers
         reporter.stop();
     }
 
     @Override
     public void report() {
-        reporter.report();
+        // in pull mode prometheus decides when to collect
+        if (!pullMode) {
+            reporter.reportNow();
+        }
     }
 }
@@ -0,0 +1,130 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the given registries in the prometheus text format from an embedded http server, the pull alternative to
+ * pushing everything to one push gateway.
+ * <p>
+ * A rendered snapshot is reused for the configured time so a burst of concurrent scrapes only collects once, only
+ * one scrape renders while the others wait for its result.
+ */
+public class PrometheusScrapeEndpoint implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusScrapeEndpoint.class);
+
+    public static final String DEFAULT_PATH = "/metrics";
+    private static final int SERVER_THREADS = 2;
+
+    private final CollectorRegistry[] registries;
+    private final long cacheMillis;
+    private final EmbeddedHttpServer server;
+
+    private final Object renderLock = new Object();
+    private volatile byte[] snapshot;
+    private volatile long snapshotMillis;
+    private volatile long renders;
+
+    /**
+     * @param port port to listen on, 0 for an ephemeral port
+     * @param path context path of the scrape endpoint
+     * @param cacheMillis how long a rendered snapshot is served before collecting again
+     * @param registries registries rendered in order
+     * @throws IOException if the port can't be bound
+     */
+    public PrometheusScrapeEndpoint(int port, String path, long cacheMillis, CollectorRegistry... registries)
+            throws IOException {
+        this.registries = registries;
+        this.cacheMillis = Math.max(0, cacheMillis);
+        this.server = new EmbeddedHttpServer(port, "prometheus-scrape", SERVER_THREADS);
+        server.createContext(path, new ScrapeHandler());
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Serving prometheus metrics on port " + getPort() + " with snapshot cache of " + cacheMillis + " ms");
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+
+    /**
+     * @return the bound port, useful with an ephemeral port
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @return number of times the registries were actually collected
+     */
+    public long getRenderCount() {
+        return renders;
+    }
+
+    /**
+     * @return the current exposition, rendered again only if the cached one expired
+     */
+    byte[] snapshot() throws IOException {
+        byte[] current = snapshot;
+        if (current != null && System.currentTimeMillis() - snapshotMillis < cacheMillis) {
+            return current;
+        }
+        synchronized (renderLock) {
+            // another scrape may have rendered while we waited
+            if (snapshot != null && System.currentTimeMillis() - snapshotMillis < cacheMillis) {
+                return snapshot;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(current == null ? 8192 : current.length);
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (CollectorRegistry registry : registries) {
+                TextFormat.write004(writer, registry.metricFamilySamples());
+            }
+            writer.flush();
+            renders++;
+            snapshot = out.toByteArray();
+            snapshotMillis = System.currentTimeMillis();
+            return snapshot;
+        }
+    }
+
+    private class ScrapeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body;
+                try {
+                    body = snapshot();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Error collecting prometheus metrics with error  \n" + e.getMessage());
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.spark.SparkConf;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerApplicationEnd;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.scheduler.TaskInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the metrics of every finished task on the driver into histograms labeled by stage name, what we
+ * otherwise scrape from the spark ui: task duration, executor run time, gc time, input, shuffle read and write and
+ * spill bytes. Add to the driver with <code>spark.extraListeners</code> or <code>sparkContext.addSparkListener</code>.
+ * <p>
+ * Stages are labeled by name, i.e. <code>start at StructuredStreamingSignalAggregation.scala:42</code>, as stage ids
+ * grow forever in a streaming driver. A task end costs one primitive keyed lookup of its stage and the observations
+ * on cached histogram children, whose striped adders keep collection off the listener bus. Pushes go through an
+ * {@link AsyncMetricsPusher}, task ends only signal it.
+ * <p>
+ * A {@link StageSkewTracker} keeps quantile sketches of the successful tasks of running stages for skew ratios, p99
+ * task duration and straggler counts, released when the stage completes.
+ */
+public class PrometheusSparkTaskListener extends SparkListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusSparkTaskListener.class);
+
+    public static final String SPARK_TASK_METRIC_PREFIX = "spark_task_";
+    public static final String LABEL_STAGE = "stage";
+    public static final String LABEL_STATUS = "status";
+    // tasks ending after their stage completed, i.e. killed speculative attempts
+    static final String UNKNOWN_STAGE = "unknown";
+    // own push gateway group next to the query and streaming listeners of the driver
+    static final String COMPONENT = "task_listener";
+    static final double[] DURATION_BUCKETS_MS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000,
+            60000, 300000};
+    // 1KB to 1GB in steps of 4
+    static final double[] BYTES_BUCKETS = {1L << 10, 1L << 12, 1L << 14, 1L << 16, 1L << 18, 1L << 20, 1L << 22,
+            1L << 24, 1L << 26, 1L << 28, 1L << 30};
+
+    private final PrometheusConfig promConfig;
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private final AsyncMetricsPusher pusher;
+
+    private final Counter tasks;
+    private final Histogram taskDuration;
+    private final Histogram executorRunTime;
+    private final Histogram gcTime;
+    private final Histogram inputBytes;
+    private final Histogram shuffleReadBytes;
+    private final Histogram shuffleWriteBytes;
+    private final Histogram spillBytes;
+    private final StageSkewTracker skew;
+
+    // only touched from the listener bus
+    private final IntObjectMap<StageMetrics> activeStages = new IntObjectMap<StageMetrics>();
+    private final Map<String, StageMetrics> stagesByName = new HashMap<String, StageMetrics>();
+
+    /**
+     * Used by spark.extraListeners.
+     */
+    public PrometheusSparkTaskListener(SparkConf conf) {
+        this(conf, conf.get(MonitorConsts.SPARK_APP_NAME, "undefined"));
+    }
+
+    public PrometheusSparkTaskListener(SparkConf conf, String spark_app_name) {
+        promConfig = new PrometheusConfig(spark_app_name);
+        promConfig.setRequiredGroupingLabel(PrometheusConfig.LABEL_COMPONENT, COMPONENT);
+
+        tasks = Counter.build().name(SPARK_TASK_METRIC_PREFIX + "ended_total")
+                .help("Tasks ended by stage and status.").labelNames(LABEL_STAGE, LABEL_STATUS).register(registry);
+        taskDuration = histogram("duration_ms", "Task duration from launch to finish in ms.", DURATION_BUCKETS_MS);
+        executorRunTime = histogram("executor_run_time_ms", "Time the executor spent running the task in ms.",
+                DURATION_BUCKETS_MS);
+        gcTime = histogram("gc_time_ms", "Jvm garbage collection time while running the task in ms.",
+                DURATION_BUCKETS_MS);
+        inputBytes = histogram("input_bytes", "Bytes read from input by the task.", BYTES_BUCKETS);
+        shuffleReadBytes = histogram("shuffle_read_bytes", "Local and remote shuffle bytes read by the task.",
+                BYTES_BUCKETS);
+        shuffleWriteBytes = histogram("shuffle_write_bytes", "Shuffle bytes written by the task.", BYTES_BUCKETS);
+        spillBytes = histogram("spill_bytes", "Bytes spilled to disk by the task.", BYTES_BUCKETS);
+        skew = new StageSkewTracker(QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+                StageSkewTracker.getConfiguredStragglerMultiple()).register(registry);
+
+        pusher = new AsyncMetricsPusher("tasks-" + spark_app_name, AsyncMetricsPusher.getConfiguredMinIntervalMillis(),
+                () -> promConfig.getPushGatewayClient().pushAdd(PrometheusConfig.JOB_NAME, promConfig.getGroupingKey(),
+                        registry));
+        pusher.register(registry);
+    }
+
+    private Histogram histogram(String name, String help, double[] buckets) {
+        return Histogram.build().name(SPARK_TASK_METRIC_PREFIX + name).help(help).buckets(buckets)
+                .labelNames(LABEL_STAGE).register(registry);
+    }
+
+    @Override
+    public void onStageSubmitted(SparkListenerStageSubmitted stageSubmitted) {
+        StageMetrics stage = getStageMetrics(stageSubmitted.stageInfo().name());
+        activeStages.put(stageSubmitted.stageInfo().stageId(), stage);
+        skew.stageSubmitted(stageSubmitted.stageInfo().stageId(), stage.name);
+    }
+
+    @Override
+    public void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+        StageMetrics stage = activeStages.get(taskEnd.stageId());
+        if (stage == null) {
+            stage = getStageMetrics(UNKNOWN_STAGE);
+        }
+        TaskInfo info = taskEnd.taskInfo();
+        double duration = Double.NaN;
+        if (info != null) {
+            (info.successful() ? stage.succeeded : stage.failed).inc();
+            if (info.finishTime() > 0) {
+                duration = info.duration();
+                stage.duration.observe(duration);
+            }
+        }
+        // failed tasks may have no metrics
+        TaskMetrics metrics = taskEnd.taskMetrics();
+        if (metrics != null) {
+            long input = metrics.inputMetrics().bytesRead();
+            long shuffleRead = metrics.shuffleReadMetrics().totalBytesRead();
+            stage.executorRunTime.observe(metrics.executorRunTime());
+            stage.gcTime.observe(metrics.jvmGCTime());
+            stage.inputBytes.observe(input);
+            stage.shuffleReadBytes.observe(shuffleRead);
+            stage.shuffleWriteBytes.observe(metrics.shuffleWriteMetrics().bytesWritten());
+            stage.spillBytes.observe(metrics.diskBytesSpilled());
+            // stragglers of successful tasks only, failures end early or late for other reasons
+            if (info != null && info.successful() && !Double.isNaN(duration)) {
+                skew.taskEnded(taskEnd.stageId(), duration, input, shuffleRead);
+            }
+        }
+        pusher.signal();
+    }
+
+    @Override
+    public void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+        activeStages.remove(stageCompleted.stageInfo().stageId());
+        skew.stageCompleted(stageCompleted.stageInfo().stageId());
+        pusher.signal();
+    }
+
+    @Override
+    public void onApplicationEnd(SparkListenerApplicationEnd applicationEnd) {
+        close();
+    }
+
+    /**
+     * Flushes pending metrics and stops the background push worker.
+     */
+    public void close() {
+        pusher.close();
+    }
+
+    CollectorRegistry getCollectorRegistry() {
+        return registry;
+    }
+
+    PrometheusConfig getPrometheusConfig() {
+        return promConfig;
+    }
+
+    int getActiveStageCount() {
+        return activeStages.size();
+    }
+
+    StageSkewTracker getSkewTracker() {
+        return skew;
+    }
+
+    private StageMetrics getStageMetrics(String name) {
+        String stageName = name == null ? UNKNOWN_STAGE : name;
+        StageMetrics stage = stagesByName.get(stageName);
+        if (stage == null) {
+            LOGGER.debug("Registering prometheus task metrics for stage " + stageName);
+            stage = new StageMetrics(stageName);
+            stagesByName.put(stageName, stage);
+        }
+        return stage;
+    }
+
+    /**
+     * Children of all stages sharing a name.
+     */
+    private final class StageMetrics {
+        private final String name;
+        private final Counter.Child succeeded;
+        private final Counter.Child failed;
+        private final Histogram.Child duration;
+        private final Histogram.Child executorRunTime;
+        private final Histogram.Child gcTime;
+        private final Histogram.Child inputBytes;
+        private final Histogram.Child shuffleReadBytes;
+        private final Histogram.Child shuffleWriteBytes;
+        private final Histogram.Child spillBytes;
+
+        private StageMetrics(String name) {
+            this.name = name;
+            succeeded = tasks.labels(name, "success");
+            failed = tasks.labels(name, "failed");
+            duration = taskDuration.labels(name);
+            executorRunTime = PrometheusSparkTaskListener.this.executorRunTime.labels(name);
+            gcTime = PrometheusSparkTaskListener.this.gcTime.labels(name);
+            inputBytes = PrometheusSparkTaskListener.this.inputBytes.labels(name);
+            shuffleReadBytes = PrometheusSparkTaskListener.this.shuffleReadBytes.labels(name);
+            shuffleWriteBytes = PrometheusSparkTaskListener.this.shuffleWriteBytes.labels(name);
+            spillBytes = PrometheusSparkTaskListener.this.spillBytes.labels(name);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import org.apache.spark.SparkConf;
+import org.apache.spark.streaming.scheduler.BatchInfo;
+import org.apache.spark.streaming.scheduler.ReceiverInfo;
+import org.apache.spark.streaming.scheduler.StreamInputInfo;
+import org.apache.spark.streaming.scheduler.StreamingListener;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchSubmitted;
+import org.apache.spark.streaming.scheduler.StreamingListenerOutputOperationCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerOutputOperationStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverError;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStopped;
+import org.apache.spark.streaming.scheduler.StreamingListenerStreamingStarted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Option;
+import scala.Tuple2;
+import scala.collection.Iterator;
+
+/**
+ * Counterpart of {@link PrometheusStreamingQueryListener} for DStream jobs, add it with
+ * <code>streamingContext.addStreamingListener</code>.
+ *
+ * The backpressure signals of a DStream job are the delays of every batch: scheduling delay, how long the batch
+ * waited for the previous ones, processing delay and their sum, the total delay. Each is observed into one histogram
+ * labeled by delay and kept as the value of the last batch. A processing delay above the batch interval means the
+ * job can't keep up, the scheduling delay of the following batches grows.
+ *
+ * Input records are counted per input stream, receiver errors per receiver. Direct streams, i.e. kafka, have no
+ * receivers and only show up as input streams.
+ *
+ * Like the structured streaming listener events only update the collectors, the push is done by an
+ * {@link AsyncMetricsPusher} coalescing the events of a batch.
+ */
+public class PrometheusStreamingListener implements StreamingListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusStreamingListener.class);
+
+    public static final String SPARK_DSTREAM_METRIC_PREFIX = "spark_streaming_";
+    public static final String LABEL_DELAY = "delay";
+    public static final String LABEL_STREAM_ID = "stream_id";
+    public static final String LABEL_RECEIVER = "receiver";
+    static final String DELAY_SCHEDULING = "scheduling";
+    static final String DELAY_PROCESSING = "processing";
+    static final String DELAY_TOTAL = "total";
+    // grouping key label of the DStream series
+    static final String COMPONENT = "streaming_listener";
+
+    private final PrometheusConfig promConfig;
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private final AsyncMetricsPusher pusher;
+
+    private final Counter batches;
+    private final Gauge batchesQueued;
+    private final Gauge batchInterval;
+    private final Gauge processingDelayRatio;
+    private final Counter inputRecords;
+    private final Gauge batchInputRecords;
+    private final Counter receiverErrors;
+    private final Gauge receiverActive;
+    private final Counter outputOperationFailures;
+
+    private final Histogram.Child schedulingDelay;
+    private final Histogram.Child processingDelay;
+    private final Histogram.Child totalDelay;
+    private final Gauge.Child lastSchedulingDelay;
+    private final Gauge.Child lastProcessingDelay;
+    private final Gauge.Child lastTotalDelay;
+
+    // only touched from the streaming listener bus
+    private final IntObjectMap<StreamMetrics> streams = new IntObjectMap<StreamMetrics>();
+    private long batchIntervalMillis;
+    private final boolean inferBatchInterval;
+    private long lastBatchTimeMillis = -1;
+    private int queued;
+
+    public PrometheusStreamingListener(SparkConf conf, String spark_app_name) {
+        this(conf, spark_app_name, 0);
+    }
+
+    /**
+     * @param batchIntervalMillis batch interval of the streaming context, 0 to infer it from the batch times
+     */
+    public PrometheusStreamingListener(SparkConf conf, String spark_app_name, long batchIntervalMillis) {
+        promConfig = new PrometheusConfig(spark_app_name);
+        promConfig.setRequiredGroupingLabel(PrometheusConfig.LABEL_COMPONENT, COMPONENT);
+        this.batchIntervalMillis = batchIntervalMillis;
+        inferBatchInterval = batchIntervalMillis <= 0;
+
+        batches = Counter.build().name(SPARK_DSTREAM_METRIC_PREFIX + "batches_total")
+                .help("Total number of completed batches.").register(registry);
+        batchesQueued = Gauge.build().name(SPARK_DSTREAM_METRIC_PREFIX + "batches_queued")
+                .help("Batches submitted but not yet started.").register(registry);
+        Histogram delay = Histogram.build().name(SPARK_DSTREAM_METRIC_PREFIX + "batch_delay_ms")
+                .help("Scheduling, processing and total delay of each batch in ms.")
+                .buckets(PrometheusStreamingQueryListener.getConfiguredDurationBuckets())
+                .labelNames(LABEL_DELAY).register(registry);
+        Gauge lastDelay = Gauge.build().name(SPARK_DSTREAM_METRIC_PREFIX + "last_batch_delay_ms")
+                .help("Scheduling, processing and total delay of the last completed batch in ms.")
+                .labelNames(LABEL_DELAY).register(registry);
+        batchInterval = Gauge.build().name(SPARK_DSTREAM_METRIC_PREFIX + "batch_interval_ms")
+                .help("Batch interval of the streaming context in ms.").register(registry);
+        processingDelayRatio = Gauge.build().name(SPARK_DSTREAM_METRIC_PREFIX + "processing_delay_ratio")
+                .help("Processing delay of the last batch over the batch interval, above 1 the job falls behind.")
+                .register(registry);
+        inputRecords = Counter.build().name(SPARK_DSTREAM_METRIC_PREFIX + "input_records_total")
+                .help("Total number of records received by the input stream.").labelNames(LABEL_STREAM_ID)
+                .register(registry);
+        batchInputRecords = Gauge.build().name(SPARK_DSTREAM_METRIC_PREFIX + "batch_input_records")
+                .help("Records of the input stream in the last completed batch.").labelNames(LABEL_STREAM_ID)
+                .register(registry);
+        receiverErrors = Counter.build().name(SPARK_DSTREAM_METRIC_PREFIX + "receiver_errors_total")
+                .help("Errors reported by the receiver.").labelNames(LABEL_STREAM_ID, LABEL_RECEIVER)
+                .register(registry);
+        receiverActive = Gauge.build().name(SPARK_DSTREAM_METRIC_PREFIX + "receiver_active")
+                .help("1 while the receiver is running.").labelNames(LABEL_STREAM_ID, LABEL_RECEIVER)
+                .register(registry);
+        outputOperationFailures = Counter.build().name(SPARK_DSTREAM_METRIC_PREFIX + "output_operation_failures_total")
+                .help("Failed output operations of batches.").register(registry);
+
+        schedulingDelay = delay.labels(DELAY_SCHEDULING);
+        processingDelay = delay.labels(DELAY_PROCESSING);
+        totalDelay = delay.labels(DELAY_TOTAL);
+        lastSchedulingDelay = lastDelay.labels(DELAY_SCHEDULING);
+        lastProcessingDelay = lastDelay.labels(DELAY_PROCESSING);
+        lastTotalDelay = lastDelay.labels(DELAY_TOTAL);
+        if (!inferBatchInterval) {
+            batchInterval.set(batchIntervalMillis);
+        }
+
+        pusher = new AsyncMetricsPusher("dstream-" + spark_app_name, AsyncMetricsPusher.getConfiguredMinIntervalMillis(),
+                () -> promConfig.getPushGatewayClient().pushAdd(PrometheusConfig.JOB_NAME, promConfig.getGroupingKey(),
+                        registry));
+        pusher.register(registry);
+    }
+
+    @Override
+    public void onStreamingStarted(StreamingListenerStreamingStarted streamingStarted) {
+    }
+
+    @Override
+    public void onReceiverStarted(StreamingListenerReceiverStarted receiverStarted) {
+        ReceiverInfo receiver = receiverStarted.receiverInfo();
+        LOGGER.info("Registering prometheus metrics for receiver " + receiver.name() + " of stream "
+                + receiver.streamId());
+        getStreamMetrics(receiver.streamId()).receiver(receiver.name()).active.set(1);
+        pusher.signal();
+    }
+
+    @Override
+    public void onReceiverError(StreamingListenerReceiverError receiverError) {
+        ReceiverInfo receiver = receiverError.receiverInfo();
+        getStreamMetrics(receiver.streamId()).receiver(receiver.name()).errors.inc();
+        pusher.signal();
+    }
+
+    @Override
+    public void onReceiverStopped(StreamingListenerReceiverStopped receiverStopped) {
+        ReceiverInfo receiver = receiverStopped.receiverInfo();
+        getStreamMetrics(receiver.streamId()).receiver(receiver.name()).active.set(0);
+        pusher.signal();
+    }
+
+    @Override
+    public void onBatchSubmitted(StreamingListenerBatchSubmitted batchSubmitted) {
+        batchesQueued.set(++queued);
+    }
+
+    @Override
+    public void onBatchStarted(StreamingListenerBatchStarted batchStarted) {
+        batchesQueued.set(queued = Math.max(0, queued - 1));
+    }
+
+    @Override
+    public void onBatchCompleted(StreamingListenerBatchCompleted batchCompleted) {
+        BatchInfo batch = batchCompleted.batchInfo();
+        batches.inc();
+        LOGGER.info("Preparing spark streaming metrics for prometheus with batch "
+                + batch.batchTime().milliseconds());
+
+        long scheduling = millis(batch.schedulingDelay());
+        long processing = millis(batch.processingDelay());
+        long total = millis(batch.totalDelay());
+        if (scheduling >= 0) {
+            schedulingDelay.observe(scheduling);
+            lastSchedulingDelay.set(scheduling);
+        }
+        if (processing >= 0) {
+            processingDelay.observe(processing);
+            lastProcessingDelay.set(processing);
+        }
+        if (total >= 0) {
+            totalDelay.observe(total);
+            lastTotalDelay.set(total);
+        }
+
+        updateBatchInterval(batch.batchTime().milliseconds());
+        if (processing >= 0 && batchIntervalMillis > 0) {
+            processingDelayRatio.set((double) processing / batchIntervalMillis);
+        }
+
+        Iterator<Tuple2<Object, StreamInputInfo>> inputs = batch.streamIdToInputInfo().iterator();
+        while (inputs.hasNext()) {
+            StreamInputInfo input = inputs.next()._2();
+            StreamMetrics stream = getStreamMetrics(input.inputStreamId());
+            stream.inputRecords.inc(input.numRecords());
+            stream.batchInputRecords.set(input.numRecords());
+        }
+
+        // never push on the listener bus thread
+        pusher.signal();
+    }
+
+    @Override
+    public void onOutputOperationStarted(StreamingListenerOutputOperationStarted outputOperationStarted) {
+    }
+
+    @Override
+    public void onOutputOperationCompleted(StreamingListenerOutputOperationCompleted outputOperationCompleted) {
+        if (outputOperationCompleted.outputOperationInfo().failureReason().isDefined()) {
+            outputOperationFailures.inc();
+        }
+    }
+
+    /**
+     * Flushes pending metrics and stops the background push worker, call after stopping the streaming context.
+     */
+    public void close() {
+        pusher.close();
+    }
+
+    CollectorRegistry getCollectorRegistry() {
+        return registry;
+    }
+
+    PrometheusConfig getPrometheusConfig() {
+        return promConfig;
+    }
+
+    long getBatchIntervalMillis() {
+        return batchIntervalMillis;
+    }
+
+    // batch times are multiples of the interval, the smallest step between completed batches is the interval
+    private void updateBatchInterval(long batchTimeMillis) {
+        if (inferBatchInterval && lastBatchTimeMillis >= 0) {
+            long step = batchTimeMillis - lastBatchTimeMillis;
+            if (step > 0 && (batchIntervalMillis <= 0 || step < batchIntervalMillis)) {
+                batchIntervalMillis = step;
+                batchInterval.set(step);
+            }
+        }
+        lastBatchTimeMillis = batchTimeMillis;
+    }
+
+    // scala Option[Long] of the batch info, -1 while unknown
+    private static long millis(Option<Object> value) {
+        return value.isDefined() ? (Long) value.get() : -1;
+    }
+
+    private StreamMetrics getStreamMetrics(int streamId) {
+        StreamMetrics stream = streams.get(streamId);
+        if (stream == null) {
+            stream = new StreamMetrics(Integer.toString(streamId));
+            streams.put(streamId, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Children of an input stream and its receiver, created on first use.
+     */
+    private final class StreamMetrics {
+        private final String streamId;
+        private final Counter.Child inputRecords;
+        private final Gauge.Child batchInputRecords;
+        private ReceiverMetrics receiver;
+
+        private StreamMetrics(String streamId) {
+            this.streamId = streamId;
+            inputRecords = PrometheusStreamingListener.this.inputRecords.labels(streamId);
+            batchInputRecords = PrometheusStreamingListener.this.batchInputRecords.labels(streamId);
+        }
+
+        // a restarted receiver keeps its name
+        private ReceiverMetrics receiver(String name) {
+            String receiverName = name == null ? "undefined" : name;
+            if (receiver == null || !receiver.name.equals(receiverName)) {
+                receiver = new ReceiverMetrics(streamId, receiverName);
+            }
+            return receiver;
+        }
+    }
+
+    private final class ReceiverMetrics {
+        private final String name;
+        private final Counter.Child errors;
+        private final Gauge.Child active;
+
+        private ReceiverMetrics(String streamId, String name) {
+            this.name = name;
+            errors = receiverErrors.labels(streamId, name);
+            active = receiverActive.labels(streamId, name);
+        }
+    }
+}
@@ -3,16 +3,22 @@
 
 package com.dematic.labs.analytics.monitor.spark;
 
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import io.prometheus.client.exporter.PushGateway;
+import io.prometheus.client.Histogram;
 import org.apache.spark.SparkConf;
 import org.apache.spark.sql.streaming.StreamingQueryListener;
+import org.apache.spark.sql.streaming.StreamingQueryProgress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_METRIC_PREFIX;
 
@@ -20,6 +26,27 @@ import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_ME
  * Uses prometheus java client https://github.com/prometheus/client_java
  * to register structured streaming query stats to a push gateway.
  *
+ * Progress events only update the collectors, the push itself is done by an {@link AsyncMetricsPusher} so a slow or
+ * unreachable gateway never blocks the spark listener bus. Bursts of progress events are coalesced into one push.
+ *
+ * All series are labeled by query name and id so concurrent queries in one driver don't overwrite each other. The
+ * labeled children of a query are created once when it starts and removed when it terminates, so drivers starting
+ * and stopping queries don't accumulate stale series. The gateway ignores metrics pushed without any series, so when
+ * a terminated query had the last series of a metric the next push replaces the whole group instead of adding to it.
+ * The group is the listener's own, its {@link PrometheusConfig#LABEL_COMPONENT} keeps the task and streaming listeners
+ * of the driver out of it.
+ *
+ * Every stage in durationMs, triggerExecution= getOffset + getBatch + addBatch and whatever else the spark version
+ * reports, is observed into one histogram labeled by stage so latency percentiles can be computed over any window.
+ *
+ * Freshness comes from eventTime: how far the newest event of the batch is behind the wall clock and how far the
+ * watermark trails the newest event.
+ *
+ * A {@link BacklogDetector} per query flags queries that can't keep up with their input.
+ *
+ * The last batches of every query are kept in a fixed size {@link ProgressHistory} for rolling mean, p50, p95 and
+ * max, also served as json when {@link MonitorConsts#SPARK_QUERY_MONITOR_HISTORY_PORT} is set.
+ *
  * Example query result in json looks like this:
 
  [2017-09-01 17:00:31,048] INFO Streaming query made progress: {
@@ -96,19 +123,51 @@ import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_ME
  */
 
 public class PrometheusStreamingQueryListener extends StreamingQueryListener {
+    public static final String LABEL_QUERY_NAME = "query_name";
+    public static final String LABEL_QUERY_ID = "query_id";
+    public static final String LABEL_STAGE = "stage";
+    // ms, from sub second planning up to batches stuck for minutes
+    // component of the grouping key
+    static final String COMPONENT = "query_listener";
+    static final double[] DEFAULT_DURATION_BUCKETS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000,
+            60000, 120000};
+    // metrics a query can have series of, see QueryMetrics#getSeriesOwned
+    private static final int SERIES_QUERY = 1;
+    private static final int SERIES_STAGES = 1 << 1;
+    private static final int SERIES_SOURCES = 1 << 2;
+    private static final int SERIES_PARTITIONS = 1 << 3;
+    private static final int SERIES_STATE_OPERATORS = 1 << 4;
+    private static final int SERIES_HISTORY = 1 << 5;
 
     private PrometheusConfig promConfig;
+    private AsyncMetricsPusher pusher;
 
-    // collectors for spark streaming interactive query stats
+    // collectors for spark streaming interactive query stats, labeled by query name and id
     private Counter total_batches;
     private Counter total_input_rows;
     private Counter completed_non_empty_jobs;
     private Gauge num_input_rows_for_job;
     private Gauge processedRowsPerSecond;
     private Gauge inputRowsPerSecond;
-    private Gauge query_total_duration_ms;
-    private Gauge query_duration_get_batch_ms;
-    private Gauge query_duration_get_offset_ms;
+    private Histogram query_stage_duration_ms;
+    private Gauge event_time_lag_ms;
+    private Gauge watermark_lag_ms;
+    private Gauge backlog_growth_rows_per_second;
+    private Gauge backlog_rows;
+    private Gauge backlog_time_to_drain_seconds;
+    private Gauge trigger_overrun_ratio;
+    private Gauge falling_behind;
+    private int backlogWindowBatches;
+    private long triggerIntervalMillis;
+    private SourceProgressMetrics sourceMetrics;
+    private StateOperatorMetrics stateMetrics;
+    private ProgressHistoryCollector historyCollector;
+    private ProgressHistoryEndpoint historyEndpoint;
+
+    // children of every running query, looked up once per progress event
+    private final ConcurrentMap<UUID, QueryMetrics> queries = new ConcurrentHashMap<UUID, QueryMetrics>();
+    // set when metrics were left without series, read by the push worker
+    private volatile boolean replaceGroup;
 
     private boolean addSparkQueryStats = true;
 
@@ -117,36 +176,80 @@ public class PrometheusStreamingQueryListener extends StreamingQueryListener {
     public PrometheusStreamingQueryListener(SparkConf conf, String spark_app_name) {
         // SparkConf holds spark variables and not system. keep around so I don't have to change Michael's code again.
         promConfig= new PrometheusConfig(spark_app_name);
+        promConfig.setRequiredGroupingLabel(PrometheusConfig.LABEL_COMPONENT, COMPONENT);
+        CollectorRegistry registry = promConfig.getCollectorRegistry();
 
         total_batches = Counter.build().name(SPARK_METRIC_PREFIX + "batches_total")
-                    .help("Total number of batches.").register();
+                    .help("Total number of batches.").labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
 
         completed_non_empty_jobs = Counter.build().name(SPARK_METRIC_PREFIX + "completed_non_empty_jobs")
-                .help("Total number of non-zero jobs.").register();
+                .help("Total number of non-zero jobs.").labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
 
         total_input_rows = Counter.build().name(SPARK_METRIC_PREFIX + "input_rows_total")
-                .help("Total number of input events.").register();
+                .help("Total number of input events.").labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
 
         num_input_rows_for_job = Gauge.build().name(SPARK_METRIC_PREFIX + "num_input_rows_for_job")
-                .help("Input rows fetched per job").register();
+                .help("Input rows fetched per job").labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
         inputRowsPerSecond = Gauge.build().name(SPARK_METRIC_PREFIX + "input_rows_per_second")
-                .help("Input rows fetched per second").register();
+                .help("Input rows fetched per second").labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
         processedRowsPerSecond = Gauge.build().name(SPARK_METRIC_PREFIX + "processed_rows_per_second")
-                .help("Rows processed per second").register();
-
-        query_total_duration_ms = Gauge.build().name(SPARK_METRIC_PREFIX + "query_duration_ms")
-                .help("Total duration.").register();
-
-        query_duration_get_batch_ms = Gauge.build().name(SPARK_METRIC_PREFIX + "query_duration_get_batch_ms")
-                .help("Duration to get batch in ms.").register();
+                .help("Rows processed per second").labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+
+        query_stage_duration_ms = Histogram.build().name(SPARK_METRIC_PREFIX + "query_stage_duration_ms")
+                .help("Duration of each query stage per batch in ms.").buckets(getConfiguredDurationBuckets())
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_STAGE).register(registry);
+
+        event_time_lag_ms = Gauge.build().name(SPARK_METRIC_PREFIX + "event_time_lag_ms")
+                .help("Wall clock minus the newest event time seen in ms.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+        watermark_lag_ms = Gauge.build().name(SPARK_METRIC_PREFIX + "watermark_lag_ms")
+                .help("Max event time of the last batch minus the watermark in ms.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+
+        backlog_growth_rows_per_second = Gauge.build().name(SPARK_METRIC_PREFIX + "backlog_growth_rows_per_second")
+                .help("Mean input minus processed rows per second over the recent batches.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+        backlog_rows = Gauge.build().name(SPARK_METRIC_PREFIX + "backlog_rows")
+                .help("Estimated rows arrived but not yet processed.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+        backlog_time_to_drain_seconds = Gauge.build().name(SPARK_METRIC_PREFIX + "backlog_time_to_drain_seconds")
+                .help("Estimated seconds to process the backlog at the current rates, +Inf while it grows.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+        trigger_overrun_ratio = Gauge.build().name(SPARK_METRIC_PREFIX + "trigger_overrun_ratio")
+                .help("Fraction of the recent batches taking longer than the trigger interval.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+        falling_behind = Gauge.build().name(SPARK_METRIC_PREFIX + "falling_behind")
+                .help("1 if input outpaces processing and most recent batches overrun the trigger interval.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID).register(registry);
+        backlogWindowBatches = MonitorProperties.getInt(
+                MonitorConsts.SPARK_QUERY_MONITOR_BACKLOG_WINDOW_BATCHES, BacklogDetector.DEFAULT_WINDOW_BATCHES);
+        triggerIntervalMillis = MonitorProperties.getLong(MonitorConsts.SPARK_QUERY_MONITOR_TRIGGER_INTERVAL_MS, 0);
+
+        sourceMetrics = new SourceProgressMetrics(registry);
+        stateMetrics = new StateOperatorMetrics(StateOperatorMetrics.getConfiguredGrowthWindowBatches(), registry);
+
+        historyCollector = new ProgressHistoryCollector(ProgressHistoryCollector.getConfiguredBatches());
+        historyCollector.register(registry);
+        String historyPort = System.getProperty(MonitorConsts.SPARK_QUERY_MONITOR_HISTORY_PORT);
+        if (historyPort != null) {
+            try {
+                historyEndpoint = new ProgressHistoryEndpoint(Integer.parseInt(historyPort.trim()), historyCollector);
+                historyEndpoint.start();
+            } catch (IOException | NumberFormatException e) {
+                LOGGER.error("Error starting progress history endpoint on port " + historyPort + " with error  \n"
+                        + e.getMessage());
+            }
+        }
 
-        query_duration_get_offset_ms = Gauge.build().name(SPARK_METRIC_PREFIX + "query_duration_get_offset_ms")
-                .help("Duration to get offset in ms.").register();
+        pusher = new AsyncMetricsPusher(spark_app_name, AsyncMetricsPusher.getConfiguredMinIntervalMillis(),
+                this::push);
+        pusher.register(registry);
     }
 
     @Override
     public void onQueryStarted(QueryStartedEvent event) {
-
+        LOGGER.info("Registering prometheus metrics for query " + event.name() + " " + event.id());
+        queries.put(event.id(), new QueryMetrics(event.name(), event.id()));
     }
 
     public void setAddSparkQueryStats(boolean addSparkQueryStats) {
@@ -157,52 +260,305 @@ public class PrometheusStreamingQueryListener extends StreamingQueryListener {
 
     @Override
     public void onQueryProgress(QueryProgressEvent event) {
-        PushGateway pg = new PushGateway(promConfig.getPushGatewayHost());
-        try {
-            total_batches.inc();
+        if (event != null) {
+            StreamingQueryProgress progress = event.progress();
+            QueryMetrics query = getQueryMetrics(progress);
+            query.batches.inc();
+            query.history.add(progress);
             if (addSparkQueryStats) {
-                LOGGER.info("Preparing spark query metrics for prometheus with batch " + event.progress().batchId()) ;
-                total_input_rows.inc(event.progress().numInputRows());
-                num_input_rows_for_job.set(event.progress().numInputRows());
+                LOGGER.info("Preparing spark query metrics for prometheus with batch " + progress.batchId()) ;
+                query.inputRows.inc(progress.numInputRows());
+                query.inputRowsForJob.set(progress.numInputRows());
 
                 // rates
-                processedRowsPerSecond.set(event.progress().processedRowsPerSecond());
-                inputRowsPerSecond.set(event.progress().inputRowsPerSecond());
+                query.processedRowsPerSecond.set(progress.processedRowsPerSecond());
+                query.inputRowsPerSecond.set(progress.inputRowsPerSecond());
 
-                if (event.progress().numInputRows()>0) {
-                    completed_non_empty_jobs.inc();
+                if (progress.numInputRows()>0) {
+                    query.nonEmptyJobs.inc();
                 }
 
                 // see https://stackoverflow.com/questions/45642904/spark-structured-streaming-multiple-sinks
                 //triggerExecution= getOffset + getBatch + addBatch
-                Map<String,Long> durationByStage= event.progress().durationMs();
+                Map<String,Long> durationByStage= progress.durationMs();
                 if (durationByStage != null) {
-                    if (durationByStage.containsKey(MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION)) {
-                        query_total_duration_ms.set(durationByStage.get(MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION));
-                    }
-                    if (durationByStage.containsKey(MonitorConsts.SPARK_DURATION_KEY_GET_BATCH)) {
-                        query_duration_get_batch_ms.set(durationByStage.get(MonitorConsts.SPARK_DURATION_KEY_GET_BATCH));
-                    }
-
-                    if (durationByStage.containsKey(MonitorConsts.SPARK_DURATION_KEY_GET_OFFSET)) {
-                        query_duration_get_offset_ms.set(durationByStage.get(MonitorConsts.SPARK_DURATION_KEY_GET_OFFSET));
+                    for (Map.Entry<String, Long> stage : durationByStage.entrySet()) {
+                        if (stage.getValue() != null) {
+                            query.stageDuration(stage.getKey()).observe(stage.getValue());
+                        }
                     }
+                }
 
+                // when the batch ran, not when the event reached the listener bus
+                long batchMillis = IsoTimestamp.parseMillis(progress.timestamp());
+                if (batchMillis == IsoTimestamp.INVALID) {
+                    batchMillis = System.currentTimeMillis();
                 }
+                updateEventTime(query, progress.eventTime());
+                updateBacklog(query, progress, batchMillis, durationByStage);
+                query.sources.update(progress.sources());
+                query.stateOperators.update(batchMillis, progress.stateOperators());
             }
+        }
 
-            pg.pushAdd(promConfig.getCollectorRegistry(), PrometheusConfig.JOB_NAME, promConfig.getGroupingKey());
-        } catch (IOException e) {
-            LOGGER.error("Error writing prometheus spark query metrics to " + promConfig + " with error  \n" + e.getMessage());
+        // never push on the listener bus thread
+        pusher.signal();
+    }
+
+    /**
+     * Empty batches and queries without event time columns have no max, the watermark stays at epoch 0 until the
+     * first one is computed. The lag is measured from the newest event seen so far, so it keeps growing while no
+     * new events arrive instead of freezing at its value of the last non empty batch.
+     */
+    private void updateEventTime(QueryMetrics query, Map<String, String> eventTime) {
+        long maxEventTime = eventTime == null ? IsoTimestamp.INVALID
+                : IsoTimestamp.parseMillis(eventTime.get(MonitorConsts.SPARK_EVENT_TIME_KEY_MAX));
+        if (maxEventTime != IsoTimestamp.INVALID && (query.lastMaxEventTime == IsoTimestamp.INVALID
+                || maxEventTime > query.lastMaxEventTime)) {
+            query.lastMaxEventTime = maxEventTime;
+        }
+        if (query.lastMaxEventTime != IsoTimestamp.INVALID) {
+            query.eventTimeLag.set(System.currentTimeMillis() - query.lastMaxEventTime);
+        }
+        if (maxEventTime == IsoTimestamp.INVALID) {
+            return;
+        }
+        long watermark = IsoTimestamp.parseMillis(eventTime.get(MonitorConsts.SPARK_EVENT_TIME_KEY_WATERMARK));
+        if (watermark != IsoTimestamp.INVALID && watermark > 0) {
+            query.watermarkLag.set(maxEventTime - watermark);
         }
+    }
+
+    private void updateBacklog(QueryMetrics query, StreamingQueryProgress progress, long batchMillis,
+                               Map<String, Long> durationByStage) {
+        Long triggerMillis = durationByStage == null ? null
+                : durationByStage.get(MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION);
+        BacklogDetector backlog = query.backlog;
+        backlog.add(batchMillis, progress.inputRowsPerSecond(), progress.processedRowsPerSecond(),
+                triggerMillis == null ? 0 : triggerMillis);
+        query.backlogGrowth.set(backlog.getBacklogGrowthRate());
+        query.backlogRows.set(backlog.getBacklogRows());
+        query.backlogTimeToDrain.set(backlog.getTimeToDrainSeconds());
+        query.triggerOverrunRatio.set(backlog.getOverrunRatio());
+        query.fallingBehind.set(backlog.isFallingBehind() ? 1 : 0);
+    }
 
+    /**
+     * @return histogram buckets from {@link MonitorConsts#SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS}, strictly
+     * increasing upper bounds in ms
+     */
+    static double[] getConfiguredDurationBuckets() {
+        String value = System.getProperty(MonitorConsts.SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS);
+        if (value == null) {
+            return DEFAULT_DURATION_BUCKETS_MS;
+        }
+        try {
+            String[] bounds = value.split(",");
+            double[] buckets = new double[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                buckets[i] = Double.parseDouble(bounds[i].trim());
+                if (i > 0 && buckets[i] <= buckets[i - 1]) {
+                    throw new NumberFormatException("bucket bounds must be increasing");
+                }
+            }
+            return buckets;
+        } catch (NumberFormatException e) {
+            LOGGER.error("Invalid " + MonitorConsts.SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS + "=" + value + ", using defaults "
+                    + e.getMessage());
+            return DEFAULT_DURATION_BUCKETS_MS;
+        }
+    }
+
+    /**
+     * Queries started before this listener was added only show up with their first progress.
+     */
+    private QueryMetrics getQueryMetrics(StreamingQueryProgress progress) {
+        QueryMetrics query = queries.get(progress.id());
+        if (query == null) {
+            query = new QueryMetrics(progress.name(), progress.id());
+            QueryMetrics existing = queries.putIfAbsent(progress.id(), query);
+            if (existing != null) {
+                query = existing;
+            }
+        }
+        return query;
     }
 
 
     @Override
     public void onQueryTerminated(QueryTerminatedEvent event) {
+        QueryMetrics query = queries.remove(event.id());
+        if (query != null) {
+            LOGGER.info("Removing prometheus metrics for query " + query.name + " " + event.id());
+            // the children of the remaining queries tell, no need to collect the registry
+            int emptied = query.getSeriesOwned();
+            for (QueryMetrics remaining : queries.values()) {
+                emptied &= ~remaining.getSeriesOwned();
+            }
+            query.remove();
+            if (emptied != 0) {
+                LOGGER.info("Replacing the push gateway group, query " + query.name + " had the last series of "
+                        + "some metrics");
+                replaceGroup = true;
+            }
+            pusher.signal();
+        }
+    }
+
+    // on the push worker
+    private void push() throws IOException {
+        PushGatewayClient client = promConfig.getPushGatewayClient();
+        CollectorRegistry registry = promConfig.getCollectorRegistry();
+        if (replaceGroup) {
+            replaceGroup = false;
+            try {
+                client.push(PrometheusConfig.JOB_NAME, promConfig.getGroupingKey(), registry,
+                        PrometheusConfig.getJvmCollectorRegistry());
+            } catch (IOException | RuntimeException e) {
+                // stale series are still there, next push tries again
+                replaceGroup = true;
+                throw e;
+            }
+        } else {
+            client.pushAdd(PrometheusConfig.JOB_NAME, promConfig.getGroupingKey(), registry,
+                    PrometheusConfig.getJvmCollectorRegistry());
+        }
+    }
+
+    /**
+     * Flushes pending metrics and stops the background push worker.
+     */
+    public void close() {
+        if (historyEndpoint != null) {
+            historyEndpoint.close();
+        }
+        pusher.close();
+    }
+
+    CollectorRegistry getCollectorRegistry() {
+        return promConfig.getCollectorRegistry();
+    }
+
+    AsyncMetricsPusher getPusher() {
+        return pusher;
+    }
+
+    ProgressHistoryEndpoint getHistoryEndpoint() {
+        return historyEndpoint;
+    }
 
+    PrometheusConfig getPrometheusConfig() {
+        return promConfig;
     }
 
+    boolean isReplacingGroup() {
+        return replaceGroup;
+    }
+
+    /**
+     * Labeled children of one query, updating them skips the label lookup of the parent collector.
+     */
+    private final class QueryMetrics {
+        private final String name;
+        private final String id;
+        private final Counter.Child batches;
+        private final Counter.Child inputRows;
+        private final Counter.Child nonEmptyJobs;
+        private final Gauge.Child inputRowsForJob;
+        private final Gauge.Child processedRowsPerSecond;
+        private final Gauge.Child inputRowsPerSecond;
+        // only touched from the listener bus thread
+        private final Map<String, Histogram.Child> stageDurations = new HashMap<String, Histogram.Child>();
+        private final Gauge.Child eventTimeLag;
+        private final Gauge.Child watermarkLag;
+        // newest event time over all batches, only touched from the listener bus thread
+        private long lastMaxEventTime = IsoTimestamp.INVALID;
+        private final BacklogDetector backlog;
+        private final Gauge.Child backlogGrowth;
+        private final Gauge.Child backlogRows;
+        private final Gauge.Child backlogTimeToDrain;
+        private final Gauge.Child triggerOverrunRatio;
+        private final Gauge.Child fallingBehind;
+        private final SourceProgressMetrics.QuerySources sources;
+        private final StateOperatorMetrics.QueryOperators stateOperators;
+        private final ProgressHistory history;
+
+        private QueryMetrics(String queryName, UUID queryId) {
+            // unnamed queries have a null name
+            name = queryName == null ? "" : queryName;
+            id = queryId.toString();
+            batches = total_batches.labels(name, id);
+            inputRows = total_input_rows.labels(name, id);
+            nonEmptyJobs = completed_non_empty_jobs.labels(name, id);
+            inputRowsForJob = num_input_rows_for_job.labels(name, id);
+            processedRowsPerSecond = PrometheusStreamingQueryListener.this.processedRowsPerSecond.labels(name, id);
+            inputRowsPerSecond = PrometheusStreamingQueryListener.this.inputRowsPerSecond.labels(name, id);
+            eventTimeLag = event_time_lag_ms.labels(name, id);
+            watermarkLag = watermark_lag_ms.labels(name, id);
+            backlog = new BacklogDetector(backlogWindowBatches, triggerIntervalMillis);
+            backlogGrowth = backlog_growth_rows_per_second.labels(name, id);
+            backlogRows = backlog_rows.labels(name, id);
+            backlogTimeToDrain = backlog_time_to_drain_seconds.labels(name, id);
+            triggerOverrunRatio = trigger_overrun_ratio.labels(name, id);
+            fallingBehind = falling_behind.labels(name, id);
+            sources = sourceMetrics.forQuery(name, id);
+            stateOperators = stateMetrics.forQuery(name, id);
+            history = historyCollector.forQuery(name, id);
+        }
+
+        private Histogram.Child stageDuration(String stage) {
+            Histogram.Child child = stageDurations.get(stage);
+            if (child == null) {
+                child = query_stage_duration_ms.labels(name, id, stage);
+                stageDurations.put(stage, child);
+            }
+            return child;
+        }
+
+        /**
+         * @return SERIES_ bits of the metrics this query has labeled children in
+         */
+        private int getSeriesOwned() {
+            int owned = SERIES_QUERY;
+            if (!stageDurations.isEmpty()) {
+                owned |= SERIES_STAGES;
+            }
+            if (sources.hasSources()) {
+                owned |= SERIES_SOURCES;
+            }
+            if (sources.hasPartitions()) {
+                owned |= SERIES_PARTITIONS;
+            }
+            if (stateOperators.hasOperators()) {
+                owned |= SERIES_STATE_OPERATORS;
+            }
+            if (history.size() > 0) {
+                owned |= SERIES_HISTORY;
+            }
+            return owned;
+        }
+
+        private void remove() {
+            total_batches.remove(name, id);
+            total_input_rows.remove(name, id);
+            completed_non_empty_jobs.remove(name, id);
+            num_input_rows_for_job.remove(name, id);
+            PrometheusStreamingQueryListener.this.processedRowsPerSecond.remove(name, id);
+            PrometheusStreamingQueryListener.this.inputRowsPerSecond.remove(name, id);
+            for (String stage : stageDurations.keySet()) {
+                query_stage_duration_ms.remove(name, id, stage);
+            }
+            event_time_lag_ms.remove(name, id);
+            watermark_lag_ms.remove(name, id);
+            backlog_growth_rows_per_second.remove(name, id);
+            backlog_rows.remove(name, id);
+            backlog_time_to_drain_seconds.remove(name, id);
+            trigger_overrun_ratio.remove(name, id);
+            falling_behind.remove(name, id);
+            sources.remove();
+            stateOperators.remove();
+            historyCollector.remove(id);
+        }
+    }
 
 }
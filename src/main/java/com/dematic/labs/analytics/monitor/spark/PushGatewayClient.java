@@ -0,0 +1,539 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Push gateway client shared by everything pushing from one JVM to the same gateway, replacing a new
+ * {@link io.prometheus.client.exporter.PushGateway} per push.
+ * <p>
+ * Several registries are combined into a single request and the body buffer is reused between pushes. The
+ * response is always drained and closed but the connection is never disconnected, so the JDK keeps the socket
+ * alive and the next push skips the TCP setup.
+ * <p>
+ * Optionally bodies above a size threshold are sent gzip encoded, which the push gateway accepts. The client is a
+ * collector of its own bandwidth and cpu trade-off: bytes before and after encoding and time spent encoding.
+ * <p>
+ * With a {@link PushSpool} pushes failing because the gateway is unreachable or unavailable are spooled instead of
+ * lost. While anything is spooled new pushes queue up behind it, so the gateway receives them in order, and every
+ * push replays a bounded number of the oldest payloads.
+ * <p>
+ * With a {@link GatewayCircuitBreaker}, shared by everything pushing to the gateway, pushes are skipped while the
+ * gateway is down instead of each one waiting for the connect timeout. Skipped pushes fail right away with a
+ * {@link CircuitOpenException}, or are spooled.
+ */
+public class PushGatewayClient extends Collector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushGatewayClient.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_GZIP_MIN_BYTES = 4096;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final List<String> NO_LABELS = Collections.emptyList();
+
+    private static final ConcurrentMap<String, PushGatewayClient> CLIENTS = new ConcurrentHashMap<String, PushGatewayClient>();
+
+    private final String address;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final boolean gzip;
+    private final int gzipMinBytes;
+
+    // written under this, null unless spooling is enabled
+    private volatile PushSpool spool;
+    private int maxReplayPerPush = PushSpool.DEFAULT_MAX_REPLAY_PER_PUSH;
+    // written under this, null unless enabled
+    private volatile GatewayCircuitBreaker breaker;
+
+    // guarded by this, reused for every body
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private final Writer bodyWriter = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+    private final ByteArrayOutputStream compressedBody = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE / 4);
+    private final byte[] drainBuffer = new byte[1024];
+
+    // written under this, read by collect()
+    private volatile long pushes;
+    private volatile long gzipPushes;
+    private volatile long payloadBytes;
+    private volatile long sentBytes;
+    private volatile long encodeNanos;
+
+    public PushGatewayClient(String address, int connectTimeoutMillis, int readTimeoutMillis) {
+        this(address, connectTimeoutMillis, readTimeoutMillis, false, DEFAULT_GZIP_MIN_BYTES);
+    }
+
+    /**
+     * @param gzip whether to gzip bodies
+     * @param gzipMinBytes smaller bodies are sent as is, compressing them costs more than it saves
+     */
+    public PushGatewayClient(String address, int connectTimeoutMillis, int readTimeoutMillis, boolean gzip,
+                             int gzipMinBytes) {
+        this.address = address;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.gzip = gzip;
+        this.gzipMinBytes = gzipMinBytes;
+    }
+
+    /**
+     * @return the client shared by all pushers to this gateway, timeouts and encoding taken from the
+     * dematiclabs.monitor.pushGateway.* system properties in {@link MonitorConsts}
+     */
+    public static PushGatewayClient forAddress(String address) {
+        PushGatewayClient client = CLIENTS.get(address);
+        if (client == null) {
+            client = new PushGatewayClient(address,
+                    MonitorProperties.getInt(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_CONNECT_TIMEOUT_MS, DEFAULT_CONNECT_TIMEOUT_MS),
+                    MonitorProperties.getInt(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_READ_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS),
+                    Boolean.getBoolean(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GZIP),
+                    MonitorProperties.getInt(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GZIP_MIN_BYTES, DEFAULT_GZIP_MIN_BYTES));
+            PushGatewayClient existing = CLIENTS.putIfAbsent(address, client);
+            if (existing != null) {
+                client = existing;
+            } else {
+                client.setCircuitBreaker(GatewayCircuitBreaker.fromSystemProperties());
+                client.openConfiguredSpool();
+            }
+        }
+        return client;
+    }
+
+    private void openConfiguredSpool() {
+        String directory = System.getProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_SPOOL_DIR);
+        if (directory == null) {
+            return;
+        }
+        try {
+            setSpool(PushSpool.forGateway(new File(directory), address, MonitorProperties.getLong(
+                    MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_SPOOL_MAX_BYTES, PushSpool.DEFAULT_MAX_BYTES)),
+                    MonitorProperties.getInt(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_SPOOL_REPLAY_PER_PUSH,
+                            PushSpool.DEFAULT_MAX_REPLAY_PER_PUSH));
+            // the spool file is deleted when the JVM exits, not left behind for every executor that ever ran
+            Runtime.getRuntime().addShutdownHook(new Thread(this::closeSpool, "push-spool-close"));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error opening push spool in " + directory + " with error  \n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops spooling, the spool file is deleted.
+     */
+    synchronized void closeSpool() {
+        if (spool == null) {
+            return;
+        }
+        try {
+            spool.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing push spool " + spool.getFile() + " with error  \n" + e.getMessage());
+        }
+        spool = null;
+    }
+
+    /**
+     * @param maxReplayPerPush spooled payloads replayed at most by one push
+     */
+    synchronized void setSpool(PushSpool spool, int maxReplayPerPush) {
+        this.spool = spool;
+        this.maxReplayPerPush = Math.max(1, maxReplayPerPush);
+        LOGGER.info("Spooling failed pushes to " + address + " in " + spool.getFile());
+    }
+
+    public synchronized void setCircuitBreaker(GatewayCircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    public GatewayCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    synchronized PushSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Same semantics as {@link io.prometheus.client.exporter.PushGateway#pushAdd}, metrics with the same name in
+     * the group are replaced, but all registries go out in one request.
+     */
+    public void pushAdd(String job, Map<String, String> groupingKey, CollectorRegistry... registries)
+            throws IOException {
+        pushAdd(job, groupingKey, collect(registries));
+    }
+
+    /**
+     * Push already collected families, i.e. only the changed ones.
+     */
+    public void pushAdd(String job, Map<String, String> groupingKey, List<Enumeration<MetricFamilySamples>> families)
+            throws IOException {
+        push("POST", job, groupingKey, families);
+    }
+
+    /**
+     * Same semantics as {@link io.prometheus.client.exporter.PushGateway#push}, all metrics in the group are
+     * replaced, including the ones of other pushers to the same group. The only way to get rid of series of a metric
+     * left without any, the gateway ignores metrics without series in a push.
+     */
+    public void push(String job, Map<String, String> groupingKey, CollectorRegistry... registries) throws IOException {
+        push("PUT", job, groupingKey, collect(registries));
+    }
+
+    private static List<Enumeration<MetricFamilySamples>> collect(CollectorRegistry... registries) {
+        List<Enumeration<MetricFamilySamples>> families = new ArrayList<Enumeration<MetricFamilySamples>>(registries.length);
+        for (CollectorRegistry registry : registries) {
+            families.add(registry.metricFamilySamples());
+        }
+        return families;
+    }
+
+    private synchronized void push(String method, String job, Map<String, String> groupingKey,
+                                   List<Enumeration<MetricFamilySamples>> families) throws IOException {
+        boolean allowed = breaker == null || breaker.allowRequest();
+        if (!allowed && spool == null) {
+            // don't even render the body
+            throw circuitOpen();
+        }
+        String url;
+        boolean rendered = false;
+        try {
+            body.reset();
+            for (Enumeration<MetricFamilySamples> samples : families) {
+                TextFormat.write004(bodyWriter, samples);
+            }
+            bodyWriter.flush();
+            url = getUrl(job, groupingKey);
+            rendered = true;
+        } finally {
+            // a collector threw, nothing was sent, don't leave a granted probe pending for good
+            if (!rendered && allowed && breaker != null) {
+                breaker.releaseProbe();
+            }
+        }
+        if (!allowed) {
+            spoolBody(method, url);
+            throw circuitOpen();
+        }
+        boolean reachable = false;
+        try {
+            pushOrSpool(method, url);
+            reachable = true;
+        } catch (GatewayUnavailableException e) {
+            throw e;
+        } catch (IOException e) {
+            // rejected, but the gateway is up
+            reachable = true;
+            throw e;
+        } finally {
+            if (breaker != null) {
+                if (reachable) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure();
+                }
+            }
+        }
+    }
+
+    private CircuitOpenException circuitOpen() {
+        return new CircuitOpenException("Circuit to " + address + " is open, next attempt in "
+                + breaker.getMillisUntilProbe() + " ms");
+    }
+
+    private void pushOrSpool(String method, String url) throws IOException {
+        if (spool == null) {
+            send(method, url);
+        } else if (spool.isEmpty()) {
+            try {
+                send(method, url);
+            } catch (GatewayUnavailableException e) {
+                spoolBody(method, url);
+                throw e;
+            }
+        } else {
+            // behind the older payloads, the gateway must not see them after this one
+            boolean spooled = spoolBody(method, url);
+            replaySpool();
+            if (!spooled) {
+                // else the caller takes it as delivered, i.e. delta pushes never send it again
+                throw new IOException("Push to " + url + " of " + body.size() + " bytes exceeds the spool and was "
+                        + "dropped");
+            }
+        }
+    }
+
+    /**
+     * @return false if the body is larger than the spool and was dropped
+     */
+    private boolean spoolBody(String method, String url) {
+        // encoded like send() would, a gateway not accepting gzip must not get it on replay either
+        boolean compressed = gzip && body.size() >= gzipMinBytes;
+        if (spool.append(method, url, compressed ? compress() : body, compressed)) {
+            LOGGER.info("Spooled push to " + url + ", " + spool.size() + " payloads spooled");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replays the oldest spooled payloads, a payload the gateway rejects is dropped.
+     *
+     * @throws IOException if the gateway is still unreachable, the payload stays spooled
+     */
+    private void replaySpool() throws IOException {
+        for (int i = 0; i < maxReplayPerPush && !spool.isEmpty(); i++) {
+            PushSpool.Payload payload = spool.peekOldest();
+            int response = post(payload.method, new URL(payload.url), payload.body.length, payload.gzipped,
+                    out -> out.write(payload.body));
+            if (response / 100 == 2) {
+                spool.onReplayed();
+            } else if (response / 100 == 4) {
+                LOGGER.error("Error replaying spooled push to " + payload.url + " with error  \nResponse code was "
+                        + response);
+                spool.onRejected();
+            } else {
+                throw new GatewayUnavailableException("Response code from " + payload.url + " was " + response);
+            }
+        }
+    }
+
+    private ByteArrayOutputStream compress() {
+        long start = System.nanoTime();
+        compressedBody.reset();
+        try {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressedBody);
+            body.writeTo(gzipOut);
+            gzipOut.close();
+        } catch (IOException e) {
+            // in memory only
+            throw new IllegalStateException(e);
+        }
+        long elapsed = System.nanoTime() - start;
+        encodeNanos += elapsed;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Gzipped push body of " + body.size() + " to " + compressedBody.size() + " bytes in "
+                    + TimeUnit.NANOSECONDS.toMicros(elapsed) + " us");
+        }
+        return compressedBody;
+    }
+
+    private void send(String method, String url) throws IOException {
+        boolean compressed = gzip && body.size() >= gzipMinBytes;
+        ByteArrayOutputStream payload = compressed ? compress() : body;
+        int response = post(method, new URL(url), payload.size(), compressed, payload::writeTo);
+        pushes++;
+        payloadBytes += body.size();
+        sentBytes += payload.size();
+        if (compressed) {
+            gzipPushes++;
+        }
+        if (response / 100 == 4) {
+            throw new IOException("Response code from " + url + " was " + response);
+        } else if (response / 100 != 2) {
+            throw new GatewayUnavailableException("Response code from " + url + " was " + response);
+        }
+    }
+
+    /**
+     * Retries once if the kept alive connection turns out closed by the gateway, the JDK doesn't retry streamed
+     * requests.
+     *
+     * @return the response code, the response is always drained
+     * @throws GatewayUnavailableException if the gateway can't be reached
+     */
+    private int post(String method, URL url, int length, boolean compressed, BodyWriter writer) throws IOException {
+        try {
+            try {
+                return postUnchecked(method, url, length, compressed, writer);
+            } catch (SocketTimeoutException | ConnectException e) {
+                throw e;
+            } catch (IOException e) {
+                return postUnchecked(method, url, length, compressed, writer);
+            }
+        } catch (IOException e) {
+            throw new GatewayUnavailableException("Error pushing to " + url + " " + e.getMessage(), e);
+        }
+    }
+
+    private int postUnchecked(String method, URL url, int length, boolean compressed, BodyWriter writer)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Content-Type", TextFormat.CONTENT_TYPE_004);
+        if (compressed) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            writer.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        int response = connection.getResponseCode();
+        // drain and close, never disconnect, so the socket goes back to the keep-alive cache
+        InputStream in = response < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try {
+                while (in.read(drainBuffer) >= 0) {
+                    // discard
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return response;
+    }
+
+    private interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The gateway could not be reached or answered with a server error, worth spooling and trying again.
+     */
+    static final class GatewayUnavailableException extends IOException {
+        GatewayUnavailableException(String message) {
+            super(message);
+        }
+
+        GatewayUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * The push was skipped, the circuit to the gateway is open.
+     */
+    public static final class CircuitOpenException extends IOException {
+        CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    String getUrl(String job, Map<String, String> groupingKey) throws IOException {
+        StringBuilder url = new StringBuilder("http://").append(address).append("/metrics/job/")
+                .append(URLEncoder.encode(job, "UTF-8"));
+        if (groupingKey != null) {
+            for (Map.Entry<String, String> entry : groupingKey.entrySet()) {
+                url.append('/').append(entry.getKey()).append('/').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        }
+        return url.toString();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return bytes rendered before encoding, over all pushes
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * @return bytes actually sent, over all pushes
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * @return short summary of the bandwidth saved against the time spent compressing
+     */
+    public String getCompressionReport() {
+        long payload = payloadBytes;
+        long sent = sentBytes;
+        return String.format("%d pushes (%d gzipped): %d bytes rendered, %d bytes sent (%.1f%%), %d ms encoding",
+                pushes, gzipPushes, payload, sent, payload == 0 ? 100.0 : 100.0 * sent / payload,
+                TimeUnit.NANOSECONDS.toMillis(encodeNanos));
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>(12);
+        mfSamples.add(counter("pushes_total", "Push requests sent.", pushes));
+        mfSamples.add(counter("push_gzip_total", "Push requests sent gzip encoded.", gzipPushes));
+        mfSamples.add(counter("push_payload_bytes_total", "Push body bytes before encoding.", payloadBytes));
+        mfSamples.add(counter("push_sent_bytes_total", "Push body bytes sent.", sentBytes));
+        mfSamples.add(counter("push_encode_seconds_total", "Time spent gzip encoding push bodies.",
+                encodeNanos / NANOSECONDS_PER_SECOND));
+        GatewayCircuitBreaker currentBreaker = breaker;
+        if (currentBreaker != null) {
+            mfSamples.add(gauge("circuit_open", "1 while pushes to the gateway are skipped.",
+                    currentBreaker.isOpen() ? 1 : 0));
+            mfSamples.add(counter("circuit_opened_total", "Times the circuit to the gateway opened.",
+                    currentBreaker.getOpenedCount()));
+            mfSamples.add(counter("circuit_skipped_total", "Pushes skipped while the circuit was open.",
+                    currentBreaker.getSkippedCount()));
+        }
+        PushSpool current = spool;
+        if (current != null) {
+            mfSamples.add(counter("spooled_total", "Pushes spooled while the gateway was unreachable.",
+                    current.getSpooledCount()));
+            mfSamples.add(counter("spool_replayed_total", "Spooled pushes replayed.", current.getReplayedCount()));
+            mfSamples.add(counter("spool_dropped_total", "Spooled pushes evicted or rejected by the gateway.",
+                    current.getDroppedCount()));
+            mfSamples.add(gauge("spool_bytes", "Bytes of pushes waiting in the spool.", current.getUsedBytes()));
+        }
+        return mfSamples;
+    }
+
+    private static MetricFamilySamples counter(String suffix, String help, double value) {
+        return family(suffix, Type.COUNTER, help, value);
+    }
+
+    private static MetricFamilySamples gauge(String suffix, String help, double value) {
+        return family(suffix, Type.GAUGE, help, value);
+    }
+
+    private static MetricFamilySamples family(String suffix, Type type, String help, double value) {
+        String metricName = PrometheusConfig.MONITOR_METRIC_PREFIX + "gateway_client_" + suffix;
+        return new MetricFamilySamples(metricName, type, help, Collections.singletonList(
+                new MetricFamilySamples.Sample(metricName, NO_LABELS, NO_LABELS, value)));
+    }
+
+    @Override
+    public String toString() {
+        return "PushGatewayClient{" +
+                "address='" + address + '\'' +
+                ", connectTimeoutMillis=" + connectTimeoutMillis +
+                ", readTimeoutMillis=" + readTimeoutMillis +
+                ", gzip=" + gzip +
+                ", gzipMinBytes=" + gzipMinBytes + '}';
+    }
+}
@@ -0,0 +1,344 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Bounded, append only spool of push bodies that could not be delivered, kept in a memory mapped ring file so an
+ * outage of the push gateway costs no heap. Payloads are replayed oldest first once the gateway is back, when the
+ * spool is full the oldest ones are evicted.
+ * <p>
+ * A record is the push method and url and the body, encoded like the client would have sent it. The file belongs to one JVM,
+ * which holds a lock on it and deletes it on close. Files of JVMs that died without closing theirs are swept when
+ * the next spool for the gateway opens in the directory, their payloads are of executors that are gone. Sweeping and
+ * opening hold the lock of {@link #DIRECTORY_LOCK}, so no JVM sweeps the file of another between its creation and
+ * its lock.
+ * <p>
+ * Layout: magic, record count, used bytes, head and tail offset, then the ring of
+ * <code>[record length][url length][url][flags][body length][body]</code>, the flags tell gzip and put, records wrap around the end of the ring.
+ * Not thread safe, {@link PushGatewayClient} only uses it under its own lock.
+ */
+final class PushSpool implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushSpool.class);
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final int DEFAULT_MAX_REPLAY_PER_PUSH = 16;
+    // never deleted, a new lock file could be taken while another JVM still holds the old one
+    static final String DIRECTORY_LOCK = "push-spool.lock";
+    private static final int MAGIC = 0x44535053;
+    private static final int POS_MAGIC = 0;
+    private static final int POS_COUNT = 4;
+    private static final int POS_USED = 8;
+    private static final int POS_HEAD = 12;
+    private static final int POS_TAIL = 16;
+    private static final int HEADER_BYTES = 20;
+    private static final int INT_BYTES = 4;
+    private static final byte GZIPPED = 1;
+    private static final byte PUT = 2;
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final FileLock lock;
+    private final int capacity;
+    private final byte[] intBuffer = new byte[INT_BYTES];
+    private final byte[] flagBuffer = new byte[1];
+
+    private int count;
+    private int used;
+    private int head;
+    private int tail;
+
+    // since this JVM opened the spool, read by the client's collect()
+    private volatile long spooled;
+    private volatile long replayed;
+    private volatile long dropped;
+
+    /**
+     * Creates an empty spool, whatever the file held before is discarded.
+     *
+     * @param maxBytes size of the spool file, at most 2 GB
+     * @throws IOException if another spool holds the file
+     */
+    PushSpool(File file, long maxBytes) throws IOException {
+        if (maxBytes <= HEADER_BYTES || maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Spool size must be above " + HEADER_BYTES + " bytes and at most 2 GB, "
+                    + "got " + maxBytes);
+        }
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            lock = tryLock(channel);
+            if (lock == null) {
+                throw new IOException("Push spool " + file + " is in use");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        capacity = (int) maxBytes - HEADER_BYTES;
+        buffer.putInt(POS_MAGIC, MAGIC);
+        writeHeader();
+    }
+
+    /**
+     * @return spool in the directory named after the gateway and this JVM, so executors sharing a host don't share
+     * a file
+     */
+    static synchronized PushSpool forGateway(File directory, String address, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create spool directory " + directory);
+        }
+        String prefix = "push-spool-" + sanitize(address) + "-";
+        String name = prefix + sanitize(ManagementFactory.getRuntimeMXBean().getName()) + ".bin";
+        // waits for other JVMs of the host, the ones of this JVM are serialized by synchronized
+        try (FileChannel directoryChannel = FileChannel.open(new File(directory, DIRECTORY_LOCK).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = directoryChannel.lock()) {
+            sweepStale(directory, prefix, name);
+            return new PushSpool(new File(directory, name), maxBytes);
+        }
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    /**
+     * Deletes the spool files of the gateway no live JVM holds a lock on, only safe under the {@link #DIRECTORY_LOCK}.
+     */
+    static void sweepStale(File directory, String prefix, String ownName) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".bin")
+                && !name.equals(ownName));
+        if (files == null) {
+            return;
+        }
+        for (File stale : files) {
+            try {
+                boolean unused;
+                try (FileChannel channel = FileChannel.open(stale.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    FileLock staleLock = tryLock(channel);
+                    unused = staleLock != null;
+                    if (unused) {
+                        staleLock.release();
+                    }
+                }
+                if (unused && stale.delete()) {
+                    LOGGER.info("Deleted push spool " + stale + " left behind by a JVM that exited");
+                }
+            } catch (IOException e) {
+                LOGGER.error("Error sweeping push spool " + stale + " with error  \n" + e.getMessage());
+            }
+        }
+    }
+
+    // null if held by another JVM or another spool of this one
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends the payload, evicting the oldest ones until it fits.
+     *
+     * @param method POST or PUT
+     * @param gzipped whether the body is gzip encoded, it is replayed with the same encoding
+     * @return false if the payload alone is larger than the spool and was dropped
+     */
+    boolean append(String method, String url, ByteArrayOutputStream body, boolean gzipped) {
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = INT_BYTES + urlBytes.length + 1 + INT_BYTES + body.size();
+        if (INT_BYTES + recordBytes > capacity) {
+            dropped++;
+            LOGGER.error("Error spooling push to " + url + " with error  \n" + body.size() + " bytes exceed the spool");
+            return false;
+        }
+        while (capacity - used < INT_BYTES + recordBytes) {
+            removeOldest();
+            dropped++;
+        }
+        int position = putInt(tail, recordBytes);
+        position = putInt(position, urlBytes.length);
+        position = put(position, urlBytes, 0, urlBytes.length);
+        flagBuffer[0] = (byte) ((gzipped ? GZIPPED : 0) | ("PUT".equals(method) ? PUT : 0));
+        position = put(position, flagBuffer, 0, 1);
+        position = putInt(position, body.size());
+        tail = put(position, body.toByteArray(), 0, body.size());
+        used += INT_BYTES + recordBytes;
+        count++;
+        spooled++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * @return the oldest payload, still spooled until {@link #removeOldest()}, or null if empty
+     */
+    Payload peekOldest() {
+        if (count == 0) {
+            return null;
+        }
+        int position = head + INT_BYTES;
+        int urlLength = getInt(position);
+        byte[] url = new byte[urlLength];
+        position = get(position + INT_BYTES, url);
+        position = get(position, flagBuffer);
+        byte[] body = new byte[getInt(position)];
+        get(position + INT_BYTES, body);
+        return new Payload((flagBuffer[0] & PUT) != 0 ? "PUT" : "POST", new String(url, StandardCharsets.UTF_8), body,
+                (flagBuffer[0] & GZIPPED) != 0);
+    }
+
+    void removeOldest() {
+        if (count == 0) {
+            return;
+        }
+        int recordBytes = getInt(head);
+        head = (head + INT_BYTES + recordBytes) % capacity;
+        used -= INT_BYTES + recordBytes;
+        count--;
+        writeHeader();
+    }
+
+    void onReplayed() {
+        removeOldest();
+        replayed++;
+    }
+
+    /**
+     * The gateway rejected the payload, i.e. a conflicting metric type, replaying it again won't help.
+     */
+    void onRejected() {
+        removeOldest();
+        dropped++;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getUsedBytes() {
+        return used;
+    }
+
+    long getSpooledCount() {
+        return spooled;
+    }
+
+    long getReplayedCount() {
+        return replayed;
+    }
+
+    long getDroppedCount() {
+        return dropped;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Releases and deletes the file, payloads still spooled are lost.
+     */
+    @Override
+    public void close() throws IOException {
+        if (count > 0) {
+            LOGGER.info("Closing push spool " + file + " with " + count + " payloads never delivered");
+        }
+        lock.release();
+        channel.close();
+        if (!file.delete()) {
+            LOGGER.error("Error deleting push spool " + file);
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(POS_COUNT, count);
+        buffer.putInt(POS_USED, used);
+        buffer.putInt(POS_HEAD, head);
+        buffer.putInt(POS_TAIL, tail);
+    }
+
+    private int putInt(int position, int value) {
+        intBuffer[0] = (byte) (value >>> 24);
+        intBuffer[1] = (byte) (value >>> 16);
+        intBuffer[2] = (byte) (value >>> 8);
+        intBuffer[3] = (byte) value;
+        return put(position, intBuffer, 0, INT_BYTES);
+    }
+
+    private int getInt(int position) {
+        get(position, intBuffer);
+        return (intBuffer[0] & 0xFF) << 24 | (intBuffer[1] & 0xFF) << 16 | (intBuffer[2] & 0xFF) << 8
+                | intBuffer[3] & 0xFF;
+    }
+
+    // copies into the ring, wrapping at its end, and returns the position after the bytes
+    private int put(int position, byte[] bytes, int offset, int length) {
+        int first = Math.min(length, capacity - position);
+        ByteBuffer view = buffer.duplicate();
+        view.position(HEADER_BYTES + position);
+        view.put(bytes, offset, first);
+        if (first < length) {
+            view.position(HEADER_BYTES);
+            view.put(bytes, offset + first, length - first);
+        }
+        return (position + length) % capacity;
+    }
+
+    private int get(int position, byte[] bytes) {
+        int start = position % capacity;
+        int first = Math.min(bytes.length, capacity - start);
+        ByteBuffer view = buffer.duplicate();
+        view.position(HEADER_BYTES + start);
+        view.get(bytes, 0, first);
+        if (first < bytes.length) {
+            view.position(HEADER_BYTES);
+            view.get(bytes, first, bytes.length - first);
+        }
+        return (start + bytes.length) % capacity;
+    }
+
+    /**
+     * A spooled push.
+     */
+    static final class Payload {
+        final String method;
+        final String url;
+        final byte[] body;
+        final boolean gzipped;
+
+        private Payload(String method, String url, byte[] body, boolean gzipped) {
+            this.method = method;
+            this.url = url;
+            this.body = body;
+            this.gzipped = gzipped;
+        }
+    }
+}
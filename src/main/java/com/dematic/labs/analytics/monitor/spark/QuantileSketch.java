@@ -0,0 +1,170 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch with relative accuracy: values are counted in logarithmic buckets, so any quantile is
+ * within the given relative error of the true value no matter how many values were added. Two sketches of the same
+ * accuracy merge by adding their counts, i.e. the tasks of concurrent attempts of a stage.
+ * <p>
+ * Memory only depends on the range of the values, not their number: task durations from 1 ms to a day at 1% are
+ * about 600 buckets. Not thread safe.
+ */
+final class QuantileSketch {
+    static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    // values below are counted as zero, i.e. tasks without shuffle
+    private static final double MIN_VALUE = 1e-9;
+    private static final int INITIAL_BUCKETS = 64;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    // counts[i] holds bucket minIndex + i
+    private long[] counts = new long[0];
+    private int minIndex;
+    private long zeroCount;
+    private long count;
+    private double max = Double.NaN;
+
+    QuantileSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be in (0, 1), got " + relativeAccuracy);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        logGamma = Math.log(gamma);
+    }
+
+    void add(double value) {
+        if (Double.isNaN(value) || value < 0) {
+            return;
+        }
+        count++;
+        max = Double.isNaN(max) ? value : Math.max(max, value);
+        if (value < MIN_VALUE) {
+            zeroCount++;
+            return;
+        }
+        int index = index(value);
+        ensureIndex(index);
+        counts[index - minIndex]++;
+    }
+
+    /**
+     * Adds all values of the other sketch, which must have the same accuracy.
+     */
+    void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Can't merge sketches of accuracy " + relativeAccuracy + " and "
+                    + other.relativeAccuracy);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        zeroCount += other.zeroCount;
+        max = Double.isNaN(max) ? other.max : Math.max(max, other.max);
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] != 0) {
+                int index = other.minIndex + i;
+                ensureIndex(index);
+                counts[index - minIndex] += other.counts[i];
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        zeroCount = 0;
+        count = 0;
+        max = Double.NaN;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the exact maximum, NaN if empty
+     */
+    double getMax() {
+        return max;
+    }
+
+    /**
+     * @return value at the quantile within the relative accuracy, NaN if empty
+     */
+    double quantile(double quantile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (quantile * (count - 1));
+        if (rank < zeroCount) {
+            return 0;
+        }
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return Math.min(max, value(minIndex + i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return number of values above the threshold, values within the accuracy of it may be counted either way
+     */
+    long countAbove(double threshold) {
+        if (count == 0 || !(threshold < max)) {
+            return 0;
+        }
+        if (threshold < MIN_VALUE) {
+            return count - zeroCount;
+        }
+        int from = index(threshold) + 1 - minIndex;
+        long above = 0;
+        for (int i = Math.max(0, from); i < counts.length; i++) {
+            above += counts[i];
+        }
+        return above;
+    }
+
+    /**
+     * @return buckets currently allocated, for keeping an eye on memory
+     */
+    int getBucketCount() {
+        return counts.length;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    // midpoint of the bucket, within the relative accuracy of every value in it
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    private void ensureIndex(int index) {
+        if (counts.length == 0) {
+            counts = new long[INITIAL_BUCKETS];
+            minIndex = index - INITIAL_BUCKETS / 2;
+            return;
+        }
+        if (index < minIndex) {
+            int grow = Math.max(minIndex - index, counts.length / 2);
+            long[] grown = new long[counts.length + grow];
+            System.arraycopy(counts, 0, grown, grow, counts.length);
+            counts = grown;
+            minIndex -= grow;
+        } else if (index >= minIndex + counts.length) {
+            int needed = index - minIndex + 1;
+            counts = Arrays.copyOf(counts, Math.max(needed, counts.length + counts.length / 2));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+/**
+ * Last n timestamped values of a series in primitive ring buffers, i.e. the state rows of the recent batches, for
+ * computing how fast the series grows. Not thread safe.
+ */
+final class RollingWindow {
+    private final long[] times;
+    private final double[] values;
+    // index of the next write
+    private int next;
+    private int size;
+
+    RollingWindow(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Need at least 2 values for a rate, got " + capacity);
+        }
+        times = new long[capacity];
+        values = new double[capacity];
+    }
+
+    /**
+     * Adds the value, evicting the oldest one once full.
+     */
+    void add(long timeMillis, double value) {
+        times[next] = timeMillis;
+        values[next] = value;
+        next = (next + 1) % times.length;
+        if (size < times.length) {
+            size++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return change per second between the oldest and the newest value, NaN until there are two values apart in
+     * time
+     */
+    double ratePerSecond() {
+        if (size < 2) {
+            return Double.NaN;
+        }
+        int newest = (next - 1 + times.length) % times.length;
+        int oldest = (next - size + times.length) % times.length;
+        long elapsed = times[newest] - times[oldest];
+        if (elapsed <= 0) {
+            return Double.NaN;
+        }
+        return (values[newest] - values[oldest]) * 1000.0 / elapsed;
+    }
+}
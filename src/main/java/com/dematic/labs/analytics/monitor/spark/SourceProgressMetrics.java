@@ -0,0 +1,250 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.spark.sql.streaming.SourceProgress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_METRIC_PREFIX;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_ID;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_NAME;
+
+/**
+ * Per source row rates of a streaming query and, for kafka sources, how far every partition advanced in the batch
+ * and how skewed the partitions of a topic are, max over mean advance. Lagging or hot partitions show up here
+ * long before the overall rate drops.
+ */
+final class SourceProgressMetrics {
+    static final String LABEL_SOURCE = "source";
+    static final String LABEL_TOPIC = "topic";
+    static final String LABEL_PARTITION = "partition";
+
+    private final Gauge sourceInputRows;
+    private final Gauge sourceInputRowsPerSecond;
+    private final Gauge sourceProcessedRowsPerSecond;
+    private final Gauge partitionOffsetAdvance;
+    private final Counter partitionOffsets;
+    private final Gauge topicOffsetSkew;
+
+    SourceProgressMetrics(CollectorRegistry registry) {
+        sourceInputRows = Gauge.build().name(SPARK_METRIC_PREFIX + "source_input_rows")
+                .help("Input rows fetched from the source per batch.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_SOURCE).register(registry);
+        sourceInputRowsPerSecond = Gauge.build().name(SPARK_METRIC_PREFIX + "source_input_rows_per_second")
+                .help("Input rows fetched from the source per second.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_SOURCE).register(registry);
+        sourceProcessedRowsPerSecond = Gauge.build().name(SPARK_METRIC_PREFIX + "source_processed_rows_per_second")
+                .help("Rows of the source processed per second.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_SOURCE).register(registry);
+        partitionOffsetAdvance = Gauge.build().name(SPARK_METRIC_PREFIX + "source_partition_offset_advance")
+                .help("Offsets consumed from the kafka partition in the last batch.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_TOPIC, LABEL_PARTITION).register(registry);
+        partitionOffsets = Counter.build().name(SPARK_METRIC_PREFIX + "source_partition_offsets_total")
+                .help("Offsets consumed from the kafka partition.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_TOPIC, LABEL_PARTITION).register(registry);
+        topicOffsetSkew = Gauge.build().name(SPARK_METRIC_PREFIX + "source_topic_offset_skew")
+                .help("Max over mean offset advance of the kafka topic partitions in the last batch, 1 is balanced.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_TOPIC).register(registry);
+    }
+
+    QuerySources forQuery(String queryName, String queryId) {
+        return new QuerySources(queryName, queryId);
+    }
+
+    /**
+     * Sources of one query with their labeled children, only used from the listener bus thread.
+     */
+    final class QuerySources {
+        private final String queryName;
+        private final String queryId;
+        private final Map<String, SourceState> sources = new HashMap<String, SourceState>();
+
+        private QuerySources(String queryName, String queryId) {
+            this.queryName = queryName;
+            this.queryId = queryId;
+        }
+
+        void update(SourceProgress[] progress) {
+            if (progress == null) {
+                return;
+            }
+            for (SourceProgress source : progress) {
+                SourceState state = sources.get(source.description());
+                if (state == null) {
+                    state = new SourceState(source.description());
+                    sources.put(source.description(), state);
+                }
+                state.update(source);
+            }
+        }
+
+        boolean hasSources() {
+            return !sources.isEmpty();
+        }
+
+        /**
+         * @return true if a kafka source has partition and topic children
+         */
+        boolean hasPartitions() {
+            for (SourceState state : sources.values()) {
+                if (!state.skewChildren.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void remove() {
+            for (SourceState state : sources.values()) {
+                state.remove();
+            }
+            sources.clear();
+        }
+
+        private final class SourceState {
+            private final String description;
+            private final Gauge.Child inputRows;
+            private final Gauge.Child inputRowsPerSecond;
+            private final Gauge.Child processedRowsPerSecond;
+            // stops reading offsets after the first one that isn't kafka shaped, i.e. file or rate sources
+            private boolean kafka = true;
+            private final KafkaOffsetReader offsets = new KafkaOffsetReader();
+
+            // indexed by topic of the reader, then partition
+            private final List<Gauge.Child[]> advanceChildren = new ArrayList<Gauge.Child[]>();
+            private final List<Counter.Child[]> offsetChildren = new ArrayList<Counter.Child[]>();
+            private final List<Gauge.Child> skewChildren = new ArrayList<Gauge.Child>();
+            private long[] maxAdvance = new long[1];
+            private long[] sumAdvance = new long[1];
+            private int[] partitionCount = new int[1];
+
+            private SourceState(String description) {
+                this.description = description;
+                inputRows = sourceInputRows.labels(queryName, queryId, description);
+                inputRowsPerSecond = sourceInputRowsPerSecond.labels(queryName, queryId, description);
+                processedRowsPerSecond = sourceProcessedRowsPerSecond.labels(queryName, queryId, description);
+            }
+
+            private void update(SourceProgress source) {
+                inputRows.set(source.numInputRows());
+                inputRowsPerSecond.set(source.inputRowsPerSecond());
+                processedRowsPerSecond.set(source.processedRowsPerSecond());
+                if (kafka && source.endOffset() != null) {
+                    if (offsets.read(source.startOffset(), source.endOffset())) {
+                        updatePartitions();
+                    } else if (source.startOffset() != null) {
+                        kafka = false;
+                    }
+                }
+            }
+
+            private void updatePartitions() {
+                int topics = offsets.topicCount();
+                if (maxAdvance.length < topics) {
+                    maxAdvance = new long[topics];
+                    sumAdvance = new long[topics];
+                    partitionCount = new int[topics];
+                }
+                Arrays.fill(maxAdvance, 0, topics, 0);
+                Arrays.fill(sumAdvance, 0, topics, 0);
+                Arrays.fill(partitionCount, 0, topics, 0);
+
+                for (int i = 0; i < offsets.size(); i++) {
+                    long advance = offsets.advance(i);
+                    if (advance < 0) {
+                        continue;
+                    }
+                    int topic = offsets.topic(i);
+                    int partition = offsets.partition(i);
+                    advanceChild(topic, partition).set(advance);
+                    offsetChild(topic, partition).inc(advance);
+                    maxAdvance[topic] = Math.max(maxAdvance[topic], advance);
+                    sumAdvance[topic] += advance;
+                    partitionCount[topic]++;
+                }
+                for (int topic = 0; topic < topics; topic++) {
+                    if (partitionCount[topic] > 0) {
+                        // nothing consumed is as balanced as it gets
+                        skewChild(topic).set(sumAdvance[topic] == 0 ? 1.0
+                                : maxAdvance[topic] * (double) partitionCount[topic] / sumAdvance[topic]);
+                    }
+                }
+            }
+
+            private Gauge.Child advanceChild(int topic, int partition) {
+                while (advanceChildren.size() <= topic) {
+                    advanceChildren.add(new Gauge.Child[0]);
+                }
+                Gauge.Child[] children = advanceChildren.get(topic);
+                if (children.length <= partition) {
+                    children = Arrays.copyOf(children, partition + 1);
+                    advanceChildren.set(topic, children);
+                }
+                if (children[partition] == null) {
+                    children[partition] = partitionOffsetAdvance.labels(queryName, queryId,
+                            offsets.topicName(topic), String.valueOf(partition));
+                }
+                return children[partition];
+            }
+
+            private Counter.Child offsetChild(int topic, int partition) {
+                while (offsetChildren.size() <= topic) {
+                    offsetChildren.add(new Counter.Child[0]);
+                }
+                Counter.Child[] children = offsetChildren.get(topic);
+                if (children.length <= partition) {
+                    children = Arrays.copyOf(children, partition + 1);
+                    offsetChildren.set(topic, children);
+                }
+                if (children[partition] == null) {
+                    children[partition] = partitionOffsets.labels(queryName, queryId,
+                            offsets.topicName(topic), String.valueOf(partition));
+                }
+                return children[partition];
+            }
+
+            private Gauge.Child skewChild(int topic) {
+                while (skewChildren.size() <= topic) {
+                    skewChildren.add(null);
+                }
+                Gauge.Child child = skewChildren.get(topic);
+                if (child == null) {
+                    child = topicOffsetSkew.labels(queryName, queryId, offsets.topicName(topic));
+                    skewChildren.set(topic, child);
+                }
+                return child;
+            }
+
+            private void remove() {
+                sourceInputRows.remove(queryName, queryId, description);
+                sourceInputRowsPerSecond.remove(queryName, queryId, description);
+                sourceProcessedRowsPerSecond.remove(queryName, queryId, description);
+                for (int topic = 0; topic < advanceChildren.size(); topic++) {
+                    Gauge.Child[] children = advanceChildren.get(topic);
+                    for (int partition = 0; partition < children.length; partition++) {
+                        if (children[partition] != null) {
+                            partitionOffsetAdvance.remove(queryName, queryId, offsets.topicName(topic),
+                                    String.valueOf(partition));
+                            partitionOffsets.remove(queryName, queryId, offsets.topicName(topic),
+                                    String.valueOf(partition));
+                        }
+                    }
+                }
+                for (int topic = 0; topic < skewChildren.size(); topic++) {
+                    if (skewChildren.get(topic) != null) {
+                        topicOffsetSkew.remove(queryName, queryId, offsets.topicName(topic));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.Collector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusSparkTaskListener.LABEL_STAGE;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusSparkTaskListener.SPARK_TASK_METRIC_PREFIX;
+
+/**
+ * Straggler and skew detection per stage from {@link QuantileSketch}es of task duration, input and shuffle read
+ * bytes: the max over median skew ratio, p99 task duration and how many tasks took longer than a multiple of the
+ * median.
+ * <p>
+ * Sketches only exist while their stage runs, concurrent attempts of a stage name are merged when collected. A
+ * completed stage leaves its final numbers, a few doubles per stage name, so driver memory stays flat.
+ */
+final class StageSkewTracker extends Collector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StageSkewTracker.class);
+
+    static final double DEFAULT_STRAGGLER_MULTIPLE = 1.5;
+    static final String LABEL_METRIC = "metric";
+    static final String[] SKEW_METRICS = {"duration", "input_bytes", "shuffle_read_bytes"};
+
+    private static final int DURATION = 0;
+    private static final int INPUT_BYTES = 1;
+    private static final int SHUFFLE_READ_BYTES = 2;
+    // final numbers of a completed stage
+    private static final int SUMMARY_P99_DURATION = SKEW_METRICS.length;
+    private static final int SUMMARY_STRAGGLERS = SKEW_METRICS.length + 1;
+    private static final int SUMMARY_SIZE = SKEW_METRICS.length + 2;
+    private static final List<String> STAGE_LABELS = Collections.singletonList(LABEL_STAGE);
+    private static final List<String> SKEW_LABELS = Arrays.asList(LABEL_STAGE, LABEL_METRIC);
+
+    private final double relativeAccuracy;
+    private final double stragglerMultiple;
+
+    // guarded by this, written by the listener bus and read by collect()
+    private final IntObjectMap<StageSketches> activeStages = new IntObjectMap<StageSketches>();
+    private final Map<String, double[]> completedStages = new HashMap<String, double[]>();
+
+    StageSkewTracker(double relativeAccuracy, double stragglerMultiple) {
+        this.relativeAccuracy = relativeAccuracy;
+        this.stragglerMultiple = stragglerMultiple;
+    }
+
+    /**
+     * @return multiple from {@link MonitorConsts#SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE}
+     */
+    static double getConfiguredStragglerMultiple() {
+        double multiple = MonitorProperties.getDouble(MonitorConsts.SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE,
+                DEFAULT_STRAGGLER_MULTIPLE);
+        if (!(multiple > 1)) {
+            LOGGER.error("Invalid " + MonitorConsts.SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE + "=" + multiple + ", using "
+                    + DEFAULT_STRAGGLER_MULTIPLE + " multiple must be above 1");
+            return DEFAULT_STRAGGLER_MULTIPLE;
+        }
+        return multiple;
+    }
+
+    synchronized void stageSubmitted(int stageId, String stageName) {
+        activeStages.put(stageId, new StageSketches(stageName));
+    }
+
+    /**
+     * Tasks of unknown stages, ended after their stage completed, are ignored.
+     */
+    synchronized void taskEnded(int stageId, double durationMillis, double inputBytes, double shuffleReadBytes) {
+        StageSketches stage = activeStages.get(stageId);
+        if (stage != null) {
+            stage.sketches[DURATION].add(durationMillis);
+            stage.sketches[INPUT_BYTES].add(inputBytes);
+            stage.sketches[SHUFFLE_READ_BYTES].add(shuffleReadBytes);
+        }
+    }
+
+    /**
+     * Keeps the final numbers of the stage and releases its sketches.
+     */
+    synchronized void stageCompleted(int stageId) {
+        StageSketches stage = activeStages.remove(stageId);
+        if (stage != null && stage.sketches[DURATION].getCount() > 0) {
+            double[] summary = completedStages.get(stage.name);
+            if (summary == null) {
+                summary = new double[SUMMARY_SIZE];
+                completedStages.put(stage.name, summary);
+            }
+            summarize(stage.sketches, summary);
+        }
+    }
+
+    synchronized int getActiveStageCount() {
+        return activeStages.size();
+    }
+
+    private void summarize(QuantileSketch[] sketches, double[] summary) {
+        for (int metric = 0; metric < SKEW_METRICS.length; metric++) {
+            summary[metric] = skewRatio(sketches[metric]);
+        }
+        QuantileSketch duration = sketches[DURATION];
+        summary[SUMMARY_P99_DURATION] = duration.quantile(0.99);
+        double median = duration.quantile(0.5);
+        summary[SUMMARY_STRAGGLERS] = Double.isNaN(median) ? 0 : duration.countAbove(median * stragglerMultiple);
+    }
+
+    // a stage without bytes, i.e. no shuffle, is balanced
+    private static double skewRatio(QuantileSketch sketch) {
+        double median = sketch.quantile(0.5);
+        if (Double.isNaN(median)) {
+            return Double.NaN;
+        }
+        if (median == 0) {
+            return sketch.getMax() == 0 ? 1 : Double.POSITIVE_INFINITY;
+        }
+        return sketch.getMax() / median;
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        // active stages take precedence over the last completed one of the same name
+        Map<String, double[]> summaries = new HashMap<String, double[]>(completedStages);
+        if (activeStages.size() > 0) {
+            Map<String, QuantileSketch[]> merged = new HashMap<String, QuantileSketch[]>();
+            activeStages.forEach((stageId, stage) -> {
+                QuantileSketch[] sketches = merged.get(stage.name);
+                if (sketches == null) {
+                    sketches = newSketches();
+                    merged.put(stage.name, sketches);
+                }
+                for (int metric = 0; metric < sketches.length; metric++) {
+                    sketches[metric].merge(stage.sketches[metric]);
+                }
+            });
+            for (Map.Entry<String, QuantileSketch[]> stage : merged.entrySet()) {
+                if (stage.getValue()[DURATION].getCount() > 0) {
+                    double[] summary = new double[SUMMARY_SIZE];
+                    summarize(stage.getValue(), summary);
+                    summaries.put(stage.getKey(), summary);
+                }
+            }
+        }
+
+        List<MetricFamilySamples.Sample> skew = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> p99 = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> stragglers = new ArrayList<MetricFamilySamples.Sample>();
+        for (Map.Entry<String, double[]> stage : summaries.entrySet()) {
+            double[] summary = stage.getValue();
+            for (int metric = 0; metric < SKEW_METRICS.length; metric++) {
+                skew.add(new MetricFamilySamples.Sample(SPARK_TASK_METRIC_PREFIX + "stage_skew_ratio", SKEW_LABELS,
+                        Arrays.asList(stage.getKey(), SKEW_METRICS[metric]), summary[metric]));
+            }
+            p99.add(new MetricFamilySamples.Sample(SPARK_TASK_METRIC_PREFIX + "stage_duration_p99_ms", STAGE_LABELS,
+                    Collections.singletonList(stage.getKey()), summary[SUMMARY_P99_DURATION]));
+            stragglers.add(new MetricFamilySamples.Sample(SPARK_TASK_METRIC_PREFIX + "stage_stragglers", STAGE_LABELS,
+                    Collections.singletonList(stage.getKey()), summary[SUMMARY_STRAGGLERS]));
+        }
+
+        List<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>(4);
+        mfSamples.add(new MetricFamilySamples(SPARK_TASK_METRIC_PREFIX + "stage_skew_ratio", Type.GAUGE,
+                "Max over median of the task metric in the running or last completed stage.", skew));
+        mfSamples.add(new MetricFamilySamples(SPARK_TASK_METRIC_PREFIX + "stage_duration_p99_ms", Type.GAUGE,
+                "99th percentile task duration of the running or last completed stage in ms.", p99));
+        mfSamples.add(new MetricFamilySamples(SPARK_TASK_METRIC_PREFIX + "stage_stragglers", Type.GAUGE,
+                "Tasks of the running or last completed stage slower than " + stragglerMultiple + " times the median.",
+                stragglers));
+        mfSamples.add(new MetricFamilySamples(SPARK_TASK_METRIC_PREFIX + "stage_active_sketches", Type.GAUGE,
+                "Stages with quantile sketches in memory.", Collections.singletonList(new MetricFamilySamples.Sample(
+                SPARK_TASK_METRIC_PREFIX + "stage_active_sketches", Collections.<String>emptyList(),
+                Collections.<String>emptyList(), activeStages.size()))));
+        return mfSamples;
+    }
+
+    private QuantileSketch[] newSketches() {
+        QuantileSketch[] sketches = new QuantileSketch[SKEW_METRICS.length];
+        for (int metric = 0; metric < sketches.length; metric++) {
+            sketches[metric] = new QuantileSketch(relativeAccuracy);
+        }
+        return sketches;
+    }
+
+    private final class StageSketches {
+        private final String name;
+        private final QuantileSketch[] sketches = newSketches();
+
+        private StageSketches(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.apache.spark.sql.streaming.StateOperatorProgress;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_METRIC_PREFIX;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_ID;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_NAME;
+
+/**
+ * State store size of every stateful operator of a streaming query and how fast it grows over the recent batches,
+ * so unbounded state, i.e. a missing watermark, can be alerted on before executors run out of memory.
+ * <p>
+ * Operators are labeled by their position in the progress, which is stable for the life of a query.
+ */
+final class StateOperatorMetrics {
+    static final String LABEL_OPERATOR = "operator";
+    static final int DEFAULT_GROWTH_WINDOW_BATCHES = 10;
+
+    private final int growthWindowBatches;
+    private final Gauge stateRows;
+    private final Gauge stateRowsUpdated;
+    private final Gauge stateMemoryUsedBytes;
+    private final Gauge stateRowsGrowth;
+    private final Gauge stateMemoryGrowth;
+
+    StateOperatorMetrics(int growthWindowBatches, CollectorRegistry registry) {
+        this.growthWindowBatches = Math.max(2, growthWindowBatches);
+        stateRows = Gauge.build().name(SPARK_METRIC_PREFIX + "state_rows")
+                .help("Rows in the state store of the operator.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_OPERATOR).register(registry);
+        stateRowsUpdated = Gauge.build().name(SPARK_METRIC_PREFIX + "state_rows_updated")
+                .help("State rows updated by the operator in the last batch.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_OPERATOR).register(registry);
+        stateMemoryUsedBytes = Gauge.build().name(SPARK_METRIC_PREFIX + "state_memory_used_bytes")
+                .help("Memory used by the state store of the operator.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_OPERATOR).register(registry);
+        stateRowsGrowth = Gauge.build().name(SPARK_METRIC_PREFIX + "state_rows_growth_per_second")
+                .help("State rows added per second over the recent batches.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_OPERATOR).register(registry);
+        stateMemoryGrowth = Gauge.build().name(SPARK_METRIC_PREFIX + "state_memory_growth_bytes_per_second")
+                .help("State memory added per second over the recent batches.")
+                .labelNames(LABEL_QUERY_NAME, LABEL_QUERY_ID, LABEL_OPERATOR).register(registry);
+    }
+
+    /**
+     * @return window from {@link MonitorConsts#SPARK_QUERY_MONITOR_STATE_GROWTH_WINDOW_BATCHES}
+     */
+    static int getConfiguredGrowthWindowBatches() {
+        return MonitorProperties.getInt(MonitorConsts.SPARK_QUERY_MONITOR_STATE_GROWTH_WINDOW_BATCHES,
+                DEFAULT_GROWTH_WINDOW_BATCHES);
+    }
+
+    QueryOperators forQuery(String queryName, String queryId) {
+        return new QueryOperators(queryName, queryId);
+    }
+
+    /**
+     * Operators of one query with their labeled children, only used from the listener bus thread.
+     */
+    final class QueryOperators {
+        private final String queryName;
+        private final String queryId;
+        private final List<OperatorState> operators = new ArrayList<OperatorState>(2);
+
+        private QueryOperators(String queryName, String queryId) {
+            this.queryName = queryName;
+            this.queryId = queryId;
+        }
+
+        void update(long timeMillis, StateOperatorProgress[] progress) {
+            if (progress == null) {
+                return;
+            }
+            for (int i = 0; i < progress.length; i++) {
+                if (operators.size() == i) {
+                    operators.add(new OperatorState(String.valueOf(i)));
+                }
+                operators.get(i).update(timeMillis, progress[i]);
+            }
+        }
+
+        boolean hasOperators() {
+            return !operators.isEmpty();
+        }
+
+        void remove() {
+            for (OperatorState operator : operators) {
+                operator.remove();
+            }
+            operators.clear();
+        }
+
+        private final class OperatorState {
+            private final String operator;
+            private final Gauge.Child rows;
+            private final Gauge.Child rowsUpdated;
+            private final Gauge.Child memoryUsed;
+            private final Gauge.Child rowsGrowth;
+            private final Gauge.Child memoryGrowth;
+            private final RollingWindow rowsWindow = new RollingWindow(growthWindowBatches);
+            private final RollingWindow memoryWindow = new RollingWindow(growthWindowBatches);
+
+            private OperatorState(String operator) {
+                this.operator = operator;
+                rows = stateRows.labels(queryName, queryId, operator);
+                rowsUpdated = stateRowsUpdated.labels(queryName, queryId, operator);
+                memoryUsed = stateMemoryUsedBytes.labels(queryName, queryId, operator);
+                rowsGrowth = stateRowsGrowth.labels(queryName, queryId, operator);
+                memoryGrowth = stateMemoryGrowth.labels(queryName, queryId, operator);
+            }
+
+            private void update(long timeMillis, StateOperatorProgress progress) {
+                rows.set(progress.numRowsTotal());
+                rowsUpdated.set(progress.numRowsUpdated());
+                memoryUsed.set(progress.memoryUsedBytes());
+
+                rowsWindow.add(timeMillis, progress.numRowsTotal());
+                memoryWindow.add(timeMillis, progress.memoryUsedBytes());
+                // NaN until two batches are apart in time, better no value than a wrong 0
+                rowsGrowth.set(rowsWindow.ratePerSecond());
+                memoryGrowth.set(memoryWindow.ratePerSecond());
+            }
+
+            private void remove() {
+                stateRows.remove(queryName, queryId, operator);
+                stateRowsUpdated.remove(queryName, queryId, operator);
+                stateMemoryUsedBytes.remove(queryName, queryId, operator);
+                stateRowsGrowth.remove(queryName, queryId, operator);
+                stateMemoryGrowth.remove(queryName, queryId, operator);
+            }
+        }
+    }
+}
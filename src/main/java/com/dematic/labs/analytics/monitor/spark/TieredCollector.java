@@ -0,0 +1,77 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.Collector;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects an expensive collector at most once per refresh interval of its tier and serves the cached samples in
+ * between, so i.e. thread enumeration runs at a fixed rate no matter how often the listener pushes.
+ * <p>
+ * Tiers are just refresh intervals: {@link #EVERY_PUSH} collects on every call, {@link #DEFAULT_MEDIUM_TIER_MS} and
+ * {@link #DEFAULT_SLOW_TIER_MS} are the defaults of the jvm collectors, see {@link #getConfiguredTierMillis}.
+ */
+public class TieredCollector extends Collector {
+    public static final long EVERY_PUSH = 0;
+    public static final long DEFAULT_MEDIUM_TIER_MS = 10000;
+    public static final long DEFAULT_SLOW_TIER_MS = 60000;
+
+    private final Collector delegate;
+    private final long refreshMillis;
+    private final LongSupplier clock;
+
+    // guarded by this, concurrent pushes of several components share the cache
+    private List<MetricFamilySamples> cached;
+    private long lastRefreshMillis;
+    private long refreshes;
+
+    /**
+     * @param refreshMillis minimum time between two collections of the delegate, {@link #EVERY_PUSH} for no caching
+     */
+    public TieredCollector(Collector delegate, long refreshMillis) {
+        this(delegate, refreshMillis, System::currentTimeMillis);
+    }
+
+    TieredCollector(Collector delegate, long refreshMillis, LongSupplier clock) {
+        this.delegate = delegate;
+        this.refreshMillis = Math.max(EVERY_PUSH, refreshMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * @return refresh interval of a tier from the system property or the default
+     */
+    public static long getConfiguredTierMillis(String key, long defaultMillis) {
+        return MonitorProperties.getLong(key, defaultMillis);
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        if (refreshMillis == EVERY_PUSH) {
+            refreshes++;
+            return delegate.collect();
+        }
+        long now = clock.getAsLong();
+        if (cached == null || now - lastRefreshMillis >= refreshMillis) {
+            cached = delegate.collect();
+            lastRefreshMillis = now;
+            refreshes++;
+        }
+        return cached;
+    }
+
+    public long getRefreshMillis() {
+        return refreshMillis;
+    }
+
+    /**
+     * @return how often the delegate was actually collected
+     */
+    public synchronized long getRefreshCount() {
+        return refreshes;
+    }
+}
@@ -0,0 +1,116 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark.dropwizard;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Upper bounds of the prometheus histogram buckets dropwizard timers and histograms are exported with, in the unit
+ * of the exported value, i.e. seconds for timers. The <code>+Inf</code> bucket is implicit.
+ * <p>
+ * Configured either as a comma separated list of bounds, <code>0.005,0.01,0.05</code>, or as
+ * <code>exponential:start,factor,count</code>.
+ */
+public final class BucketLayout {
+    private static final String EXPONENTIAL = "exponential:";
+
+    /**
+     * Same as the default buckets of the prometheus java client, 5 ms to 10 s.
+     */
+    public static final BucketLayout DEFAULT_TIMER_SECONDS = new BucketLayout(
+            .005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10);
+    /**
+     * 1 to 4^15 (about 10^9) for counts and sizes.
+     */
+    public static final BucketLayout DEFAULT_HISTOGRAM = exponential(1, 4, 16);
+
+    private final double[] upperBounds;
+    // label values of the bounds and +Inf, shared by all samples
+    private final List<List<String>> leValues;
+
+    public BucketLayout(double... upperBounds) {
+        if (upperBounds.length == 0) {
+            throw new IllegalArgumentException("At least one bucket bound is needed");
+        }
+        for (int i = 0; i < upperBounds.length; i++) {
+            if (Double.isNaN(upperBounds[i]) || Double.isInfinite(upperBounds[i])
+                    || (i > 0 && upperBounds[i] <= upperBounds[i - 1])) {
+                throw new IllegalArgumentException("Bucket bounds must be finite and increasing, got "
+                        + Arrays.toString(upperBounds));
+            }
+        }
+        this.upperBounds = upperBounds.clone();
+        List<List<String>> le = new ArrayList<List<String>>(upperBounds.length + 1);
+        for (double bound : upperBounds) {
+            le.add(Collections.singletonList(Collector.doubleToGoString(bound)));
+        }
+        le.add(Collections.singletonList(Collector.doubleToGoString(Double.POSITIVE_INFINITY)));
+        this.leValues = Collections.unmodifiableList(le);
+    }
+
+    public static BucketLayout exponential(double start, double factor, int count) {
+        if (start <= 0 || factor <= 1 || count < 1) {
+            throw new IllegalArgumentException("Invalid exponential buckets, start " + start + ", factor " + factor
+                    + ", count " + count);
+        }
+        double[] bounds = new double[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = start * Math.pow(factor, i);
+        }
+        return new BucketLayout(bounds);
+    }
+
+    /**
+     * @param layout comma separated bounds or <code>exponential:start,factor,count</code>
+     */
+    public static BucketLayout parse(String layout) {
+        String trimmed = layout.trim();
+        boolean exponential = trimmed.startsWith(EXPONENTIAL);
+        String[] parts = (exponential ? trimmed.substring(EXPONENTIAL.length()) : trimmed).split(",");
+        try {
+            if (exponential) {
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Use " + EXPONENTIAL + "start,factor,count, got " + layout);
+                }
+                return exponential(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()),
+                        Integer.parseInt(parts[2].trim()));
+            }
+            double[] bounds = new double[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                bounds[i] = Double.parseDouble(parts[i].trim());
+            }
+            return new BucketLayout(bounds);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid bucket layout " + layout, e);
+        }
+    }
+
+    /**
+     * @return number of bounds, without +Inf
+     */
+    public int size() {
+        return upperBounds.length;
+    }
+
+    public double getUpperBound(int bucket) {
+        return upperBounds[bucket];
+    }
+
+    /**
+     * @return label value of the <code>le</code> label, {@link #size()} for +Inf
+     */
+    List<String> getLeValue(int bucket) {
+        return leValues.get(bucket);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(upperBounds);
+    }
+}
@@ -0,0 +1,243 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark.dropwizard;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HdrHistogram style reservoir: every recorded value is counted in a log linear slot, 16 linear slots per power of
+ * two, so a slot is at most 1/16 of its values wide. Recording is a single atomic increment, nothing is sampled or
+ * decays and a snapshot never sorts, counts just accumulate like a prometheus histogram.
+ * <p>
+ * {@link DropwizardSparkExports} exports histograms and timers created with this reservoir, i.e.
+ * <code>registry.register(name, new Timer(new BucketReservoir()))</code>, as exact cumulative buckets. Other
+ * reservoirs are only approximated from their samples.
+ */
+public class BucketReservoir implements Reservoir {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKETS get a slot each, then SUB_BUCKETS slots for each power of two up to 2^62
+    static final int SLOTS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @return slot of a value, negative values count as 0
+     */
+    static int slot(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    static long lowestValue(int slot) {
+        if (slot < SUB_BUCKETS) {
+            return slot;
+        }
+        int shift = (slot - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (slot - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << shift;
+    }
+
+    static long highestValue(int slot) {
+        if (slot < SUB_BUCKETS) {
+            return slot;
+        }
+        int shift = (slot - SUB_BUCKETS) / SUB_BUCKETS;
+        return lowestValue(slot) + (1L << shift) - 1;
+    }
+
+    // what a value in the slot is reported as
+    private static double representativeValue(int slot) {
+        return lowestValue(slot) / 2.0 + highestValue(slot) / 2.0;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, count.sum());
+    }
+
+    @Override
+    public void update(long value) {
+        counts.incrementAndGet(slot(value));
+        count.increment();
+        sum.add(Math.max(0, value));
+    }
+
+    @Override
+    public BucketSnapshot getSnapshot() {
+        long[] copy = new long[SLOTS];
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        // count and sum are read separately from the slots, concurrent updates may be off by a few
+        return new BucketSnapshot(copy, total, sum.sum());
+    }
+
+    /**
+     * Slot counts at one point in time, quantiles are the middle of the slot they fall into.
+     */
+    public static final class BucketSnapshot extends Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private BucketSnapshot(long[] counts, long count, long sum) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Cumulative counts of the values up to each bound, without sorting anything. A slot straddling a bound
+         * counts in the next bucket, the error is at most the slot width.
+         *
+         * @param factor converts recorded values to the unit of the bounds, i.e. nanos to seconds
+         * @return count per bound of the layout, the +Inf bucket is {@link #getCount()}
+         */
+        long[] cumulativeCounts(BucketLayout layout, double factor) {
+            long[] cumulative = new long[layout.size()];
+            int bucket = 0;
+            long running = 0;
+            for (int i = 0; i < SLOTS && bucket < cumulative.length; i++) {
+                if (counts[i] == 0) {
+                    continue;
+                }
+                double highest = highestValue(i) * factor;
+                while (bucket < cumulative.length && highest > layout.getUpperBound(bucket)) {
+                    cumulative[bucket++] = running;
+                }
+                running += counts[i];
+            }
+            while (bucket < cumulative.length) {
+                cumulative[bucket++] = running;
+            }
+            return cumulative;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return representativeValue(i);
+                }
+            }
+            return representativeValue(SLOTS - 1);
+        }
+
+        /**
+         * @return one value per occupied slot, the values themselves are not kept
+         */
+        @Override
+        public long[] getValues() {
+            int occupied = 0;
+            for (long slotCount : counts) {
+                if (slotCount > 0) {
+                    occupied++;
+                }
+            }
+            long[] values = new long[occupied];
+            int next = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (counts[i] > 0) {
+                    values[next++] = (long) representativeValue(i);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, count);
+        }
+
+        @Override
+        public long getMax() {
+            for (int i = SLOTS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        @Override
+        public long getMin() {
+            for (int i = 0; i < SLOTS; i++) {
+                if (counts[i] > 0) {
+                    return lowestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (count <= 1) {
+                return 0;
+            }
+            double mean = getMean();
+            double squares = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (counts[i] > 0) {
+                    double diff = representativeValue(i) - mean;
+                    squares += counts[i] * diff * diff;
+                }
+            }
+            return Math.sqrt(squares / (count - 1));
+        }
+
+        /**
+         * Writes each occupied slot as its value and count, one per line.
+         */
+        @Override
+        public void dump(OutputStream output) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            for (int i = 0; i < SLOTS; i++) {
+                if (counts[i] > 0) {
+                    out.printf("%d %d%n", (long) representativeValue(i), counts[i]);
+                }
+            }
+            out.flush();
+        }
+    }
+}
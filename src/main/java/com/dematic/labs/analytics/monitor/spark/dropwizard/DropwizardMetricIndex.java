@@ -0,0 +1,249 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark.dropwizard;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every metric of a dropwizard registry together with everything about it that does not change between
+ * reports, i.e. the sanitized prometheus name. Kept up to date by registry events so a report only has to read
+ * current values instead of copying the registry maps and sanitizing every name again.
+ */
+public class DropwizardMetricIndex implements MetricRegistryListener {
+
+    /**
+     * Order of the kinds is the order families are exported in, same as the original registry walk.
+     */
+    public enum Kind {
+        GAUGE(1), COUNTER(1), HISTOGRAM(7), TIMER(7), METER(1);
+
+        // samples exported per metric, summaries have six quantiles and the count
+        final int samples;
+
+        Kind(int samples) {
+            this.samples = samples;
+        }
+    }
+
+    /**
+     * A registered metric with its precomputed prometheus names.
+     */
+    public static final class IndexedMetric {
+        final String dropwizardName;
+        final Kind kind;
+        final Metric metric;
+        // name the sanitized name was made of, without application and executor if the template matched
+        final String sanitizedKey;
+        // sanitized name, the family name for everything but meters
+        final String name;
+        // labels pulled out of the name by the template, none without
+        final List<String> labelNames;
+        final List<String> labelValues;
+        // family and sample name of meters, sample name of the summary count
+        final String totalName;
+        final String countName;
+        // sample names of histogram buckets
+        final String bucketName;
+        final String sumName;
+        // sample values last pushed in delta mode and the ones staged by the current push, NaN if never pushed
+        double[] pushedValues;
+        double[] stagedValues;
+        // gauges evaluated under a budget only, see GaugeEvaluator
+        volatile Future<?> pendingGauge;
+        volatile Object lastGaugeValue;
+        final AtomicLong slowEvaluations = new AtomicLong();
+        // histograms and timers with a sampling reservoir exported as buckets only
+        volatile SampledBuckets sampledBuckets;
+
+        IndexedMetric(String dropwizardName, Kind kind, Metric metric) {
+            this(dropwizardName, kind, metric, null);
+        }
+
+        IndexedMetric(String dropwizardName, Kind kind, Metric metric, MetricNameTemplate.Parsed parsed) {
+            this.dropwizardName = dropwizardName;
+            this.kind = kind;
+            this.metric = metric;
+            this.sanitizedKey = parsed == null ? dropwizardName : parsed.getMetricName();
+            this.name = DropwizardSparkExports.sanitizeMetricName(sanitizedKey);
+            this.labelNames = parsed == null ? Collections.<String>emptyList() : parsed.labelNames;
+            this.labelValues = parsed == null ? Collections.<String>emptyList() : parsed.labelValues;
+            this.totalName = name + "_total";
+            this.countName = name + "_count";
+            this.bucketName = name + "_bucket";
+            this.sumName = name + "_sum";
+            this.pushedValues = new double[kind.samples];
+            this.stagedValues = new double[kind.samples];
+            Arrays.fill(pushedValues, Double.NaN);
+        }
+
+        /**
+         * Resizes the delta mode values when the export changed the number of samples, i.e. summaries to buckets,
+         * everything counts as never pushed then. Only called under the lock of the delta collection.
+         */
+        void ensureSamples(int samples) {
+            if (stagedValues.length != samples) {
+                pushedValues = new double[samples];
+                stagedValues = new double[samples];
+                Arrays.fill(pushedValues, Double.NaN);
+            }
+        }
+
+        public String getDropwizardName() {
+            return dropwizardName;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getLabelValues() {
+            return labelValues;
+        }
+
+        /**
+         * @return reports in which this gauge missed the evaluation budget
+         */
+        public long getSlowEvaluations() {
+            return slowEvaluations.get();
+        }
+    }
+
+    private static final IndexedMetric[] EMPTY = new IndexedMetric[0];
+    private static final Comparator<IndexedMetric> EXPORT_ORDER = new Comparator<IndexedMetric>() {
+        @Override
+        public int compare(IndexedMetric a, IndexedMetric b) {
+            int byKind = a.kind.compareTo(b.kind);
+            return byKind != 0 ? byKind : a.dropwizardName.compareTo(b.dropwizardName);
+        }
+    };
+
+    // null to keep application and executor in the name, as the original exports did
+    private final MetricNameTemplate template;
+    private final ConcurrentMap<String, IndexedMetric> metricsByName = new ConcurrentHashMap<String, IndexedMetric>();
+    // sorted copy handed out to reports, rebuilt lazily after the registry changed
+    private volatile IndexedMetric[] sorted = EMPTY;
+    private volatile boolean changed;
+
+    /**
+     * Creates the index and registers it, the registry replays all existing metrics to the new listener.
+     */
+    public DropwizardMetricIndex(MetricRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * @param template pulls application, executor and namespace out of names matching it into labels, null for none
+     */
+    public DropwizardMetricIndex(MetricRegistry registry, MetricNameTemplate template) {
+        this.template = template;
+        registry.addListener(this);
+    }
+
+    /**
+     * @return all metrics in export order, the array must not be modified
+     */
+    public IndexedMetric[] metrics() {
+        if (changed) {
+            synchronized (this) {
+                if (changed) {
+                    // clear first so concurrent registrations mark the index changed again
+                    changed = false;
+                    IndexedMetric[] rebuilt = metricsByName.values().toArray(EMPTY);
+                    Arrays.sort(rebuilt, EXPORT_ORDER);
+                    sorted = rebuilt;
+                }
+            }
+        }
+        return sorted;
+    }
+
+    public int size() {
+        return metricsByName.size();
+    }
+
+    private void add(String name, Kind kind, Metric metric) {
+        metricsByName.put(name, new IndexedMetric(name, kind, metric, template == null ? null : template.parse(name)));
+        changed = true;
+    }
+
+    private void remove(String name) {
+        IndexedMetric removed = metricsByName.remove(name);
+        if (removed != null) {
+            changed = true;
+            DropwizardSparkExports.evictSanitizedName(removed.sanitizedKey);
+        } else {
+            DropwizardSparkExports.evictSanitizedName(name);
+        }
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        add(name, Kind.GAUGE, gauge);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        add(name, Kind.COUNTER, counter);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        add(name, Kind.HISTOGRAM, histogram);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        add(name, Kind.METER, meter);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        add(name, Kind.TIMER, timer);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        remove(name);
+    }
+}
@@ -11,12 +11,17 @@ import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.dematic.labs.analytics.monitor.spark.PrometheusConfig;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.DropwizardMetricIndex.IndexedMetric;
 import io.prometheus.client.dropwizard.DropwizardExports;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,45 +30,212 @@ import java.util.logging.Logger;
  *
  * had to clone and modify from io.prometheus.client.dropwizard.DropwizardExports as there was no way to
  * override static method sanitizeName
+ *
+ * Unlike the original every metric is looked up in a {@link DropwizardMetricIndex} kept current by registry events,
+ * so a report neither copies the registry maps nor sanitizes names again.
+ *
+ * Gauges are evaluated on the reporting thread unless a budget is set with {@link #setGaugeBudget}, then gauges
+ * missing it export their last known value and are counted per gauge in
+ * <code>dsp_monitor_gauge_slow_evaluations_total{gauge=...}</code>.
+ *
+ * Timers and histograms are exported as summaries of per-executor quantiles unless {@link #setHistogramBuckets} asks
+ * for prometheus histograms, which histogram_quantile can aggregate across executors.
  */
-public class DropwizardSparkExports extends io.prometheus.client.Collector implements io.prometheus.client.Collector.Describable{
+public class DropwizardSparkExports extends io.prometheus.client.Collector implements io.prometheus.client.Collector.Describable,
+        Closeable {
 
-    private MetricRegistry registry;
     private static final Logger LOGGER = Logger.getLogger(DropwizardExports.class.getName());
+    private static final double SECONDS_PER_NANO = 1.0D / TimeUnit.SECONDS.toNanos(1L);
+
+    // memoized sanitized names, stops caching when full instead of evicting so lookups stay lock free
+    private static final int SANITIZED_NAMES_LIMIT = 20000;
+    private static final ConcurrentMap<String, String> SANITIZED_NAMES = new ConcurrentHashMap<String, String>();
+
+    // label lists shared by all samples, never modified
+    private static final List<String> QUANTILE_LABEL = Collections.singletonList("quantile");
+    private static final List<String> QUANTILE_50 = Collections.singletonList("0.5");
+    private static final List<String> QUANTILE_75 = Collections.singletonList("0.75");
+    private static final List<String> QUANTILE_95 = Collections.singletonList("0.95");
+    private static final List<String> QUANTILE_98 = Collections.singletonList("0.98");
+    private static final List<String> QUANTILE_99 = Collections.singletonList("0.99");
+    private static final List<String> QUANTILE_999 = Collections.singletonList("0.999");
+    private static final List<String> LE_LABEL = Collections.singletonList("le");
+    private static final List<String> GAUGE_LABEL = Collections.singletonList("gauge");
+    private static final String SLOW_GAUGES_NAME = PrometheusConfig.MONITOR_METRIC_PREFIX
+            + "gauge_slow_evaluations_total";
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    private final MetricRegistry registry;
+    private final DropwizardMetricIndex index;
+    // metrics whose values were handed out by collectChanged and not yet committed, guarded by this
+    private final List<IndexedMetric> staged = new ArrayList<IndexedMetric>();
+    // null while gauges are evaluated inline
+    private volatile GaugeEvaluator gaugeEvaluator;
+    // null while timers and histograms are exported as summaries
+    private volatile BucketLayout timerBuckets;
+    private volatile BucketLayout histogramBuckets;
 
     /**
      * Only reason this class had to be cloned as this method was declared static
      * Replace all unsupported chars with '_'.
+     * <p>
+     * Results are memoized in a bounded cache since names in a spark registry hardly ever change, entries are
+     * evicted again when the metric is removed from the registry.
      *
      * @param dropwizardName original metric name.
      * @return the sanitized metric name.
      */
     public static String sanitizeMetricName(String dropwizardName){
-        String shortenedName=dropwizardName;
+        String sanitized = SANITIZED_NAMES.get(dropwizardName);
+        if (sanitized == null) {
+            sanitized = sanitizeMetricNameUncached(dropwizardName);
+            if (SANITIZED_NAMES.size() < SANITIZED_NAMES_LIMIT) {
+                SANITIZED_NAMES.put(dropwizardName, sanitized);
+            }
+        }
+        return sanitized;
+    }
+
+    /**
+     * Single pass equivalent of removing the "application.executor." prefix, replacing [^a-zA-Z0-9:_] with '_'
+     * and lower casing, without regex or intermediate strings.
+     * <p>
+     * Like the regex a surrogate pair is a single character, so it becomes a single '_'. Names starting with
+     * "application" but with fewer than two dots are not shortened.
+     */
+    static String sanitizeMetricNameUncached(String dropwizardName) {
+        int start = 0;
         // remove prefix of app name and executor id
         if (dropwizardName.startsWith("application")) {
-            String[] names=dropwizardName.split("\\.");
-            shortenedName=dropwizardName.substring(names[0].length()+names[1].length()+2);
+            int appEnd = dropwizardName.indexOf('.');
+            int executorEnd = appEnd < 0 ? -1 : dropwizardName.indexOf('.', appEnd + 1);
+            if (executorEnd >= 0) {
+                start = executorEnd + 1;
+            }
+        }
+        int length = dropwizardName.length();
+        char[] sanitized = null;
+        int out = 0;
+        for (int i = start; i < length; i++) {
+            char c = dropwizardName.charAt(i);
+            char replacement;
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == ':' || c == '_') {
+                replacement = c;
+            } else if (c >= 'A' && c <= 'Z') {
+                replacement = (char) (c + ('a' - 'A'));
+            } else {
+                replacement = '_';
+                if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(dropwizardName.charAt(i + 1))) {
+                    i++;
+                }
+            }
+            if (sanitized == null) {
+                if (replacement == c) {
+                    // unchanged so far, only copy once the first character differs
+                    out++;
+                    continue;
+                }
+                sanitized = new char[length - start];
+                dropwizardName.getChars(start, start + out, sanitized, 0);
+            }
+            sanitized[out++] = replacement;
         }
-        return shortenedName.replaceAll("[^a-zA-Z0-9:_]", "_").toLowerCase();
+        if (sanitized == null) {
+            return start == 0 ? dropwizardName : dropwizardName.substring(start);
+        }
+        return new String(sanitized, 0, out);
     }
 
+    /**
+     * Forget a memoized name, called when the metric is removed from the registry.
+     */
+    static void evictSanitizedName(String dropwizardName) {
+        SANITIZED_NAMES.remove(dropwizardName);
+    }
 
     /**
      * @param registry a metric registry to export in prometheus.
      */
     public DropwizardSparkExports(MetricRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * @param template pulls application, executor and namespace out of matching names into labels, the metric name
+     *                 is what is left of the dropwizard name. Null to only drop an "application" prefix from the name.
+     */
+    public DropwizardSparkExports(MetricRegistry registry, MetricNameTemplate template) {
         this.registry = registry;
+        this.index = new DropwizardMetricIndex(registry, template);
+    }
+
+    /**
+     * Evaluate gauges on worker threads, all gauges of one report together get budgetMillis.
+     *
+     * @param budgetMillis 0 to evaluate them on the reporting thread again
+     * @param threads workers evaluating gauges in parallel
+     */
+    public synchronized void setGaugeBudget(long budgetMillis, int threads) {
+        GaugeEvaluator previous = gaugeEvaluator;
+        gaugeEvaluator = budgetMillis > 0 ? new GaugeEvaluator(budgetMillis, threads) : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @return budget of the gauges of one report, 0 if evaluated inline
+     */
+    public long getGaugeBudgetMillis() {
+        GaugeEvaluator evaluator = gaugeEvaluator;
+        return evaluator == null ? 0 : evaluator.getBudgetMillis();
+    }
+
+    /**
+     * Export timers and histograms as prometheus histograms with <code>_bucket</code>, <code>_sum</code> and
+     * <code>_count</code> samples instead of summaries.
+     *
+     * @param timerBuckets bounds in seconds, null for both to go back to summaries
+     * @param histogramBuckets bounds in the recorded unit
+     */
+    public void setHistogramBuckets(BucketLayout timerBuckets, BucketLayout histogramBuckets) {
+        if ((timerBuckets == null) != (histogramBuckets == null)) {
+            throw new IllegalArgumentException("Set bucket layouts of both timers and histograms or neither");
+        }
+        this.timerBuckets = timerBuckets;
+        this.histogramBuckets = histogramBuckets;
+    }
+
+    /**
+     * Stops the gauge workers, if any.
+     */
+    @Override
+    public synchronized void close() {
+        setGaugeBudget(0, GaugeEvaluator.DEFAULT_THREADS);
+    }
+
+    /**
+     * @return the labels of the metric followed by the single label of the sample, i.e. its quantile
+     */
+    private static List<String> withLabel(List<String> labels, List<String> label) {
+        if (labels.isEmpty()) {
+            return label;
+        }
+        List<String> combined = new ArrayList<String>(labels.size() + 1);
+        combined.addAll(labels);
+        combined.addAll(label);
+        return combined;
     }
 
     /**
      * Export counter as Prometheus <a href="https://prometheus.io/docs/concepts/metric_types/#gauge">Gauge</a>.
      */
-    List<MetricFamilySamples> fromCounter(String dropwizardName, Counter counter) {
-        String name = sanitizeMetricName(dropwizardName);
-        MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample(name, new ArrayList<String>(), new ArrayList<String>(),
-                new Long(counter.getCount()).doubleValue());
-        return Arrays.asList(new MetricFamilySamples(name, Type.GAUGE, getHelpMessage(dropwizardName, counter), Arrays.asList(sample)));
+    MetricFamilySamples fromCounter(IndexedMetric entry, Counter counter) {
+        MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample(entry.name, entry.labelNames, entry.labelValues,
+                counter.getCount());
+        return new MetricFamilySamples(entry.name, Type.GAUGE, getHelpMessage(entry.dropwizardName, counter),
+                Collections.singletonList(sample));
     }
 
     /**
@@ -80,106 +252,269 @@ public class DropwizardSparkExports extends io.prometheus.client.Collector imple
 
     /**
      * Export gauge as a prometheus gauge.
+     *
+     * @return null if the gauge value is not numeric
      */
-    List<MetricFamilySamples> fromGauge(String dropwizardName, Gauge gauge) {
-        String name = sanitizeMetricName(dropwizardName);
-        Object obj = gauge.getValue();
+    MetricFamilySamples fromGauge(IndexedMetric entry, Gauge gauge) {
+        return fromGaugeValue(entry, gauge, gauge.getValue());
+    }
+
+    /**
+     * Export an already evaluated gauge value, null if not numeric or never evaluated within the budget.
+     */
+    MetricFamilySamples fromGaugeValue(IndexedMetric entry, Gauge gauge, Object obj) {
         double value;
         if (obj instanceof Number) {
             value = ((Number) obj).doubleValue();
         } else if (obj instanceof Boolean) {
             value = ((Boolean) obj) ? 1 : 0;
         } else {
-            LOGGER.log(Level.FINE, String.format("Invalid type for Gauge %s: %s", name,
-                    obj.getClass().getName()));
-            return new ArrayList<MetricFamilySamples>();
+            LOGGER.log(Level.FINE, String.format("Invalid type for Gauge %s: %s", entry.name,
+                    obj == null ? null : obj.getClass().getName()));
+            return null;
         }
-        MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample(name,
-                new ArrayList<String>(), new ArrayList<String>(), value);
-        return Arrays.asList(new MetricFamilySamples(name, Type.GAUGE, getHelpMessage(dropwizardName, gauge), Arrays.asList(sample)));
+        MetricFamilySamples.Sample sample = new MetricFamilySamples.Sample(entry.name, entry.labelNames, entry.labelValues, value);
+        return new MetricFamilySamples(entry.name, Type.GAUGE, getHelpMessage(entry.dropwizardName, gauge),
+                Collections.singletonList(sample));
     }
 
     /**
      * Export a histogram snapshot as a prometheus SUMMARY.
      *
-     * @param dropwizardName metric name.
+     * @param entry indexed metric.
      * @param snapshot the histogram snapshot.
      * @param count the total sample count for this snapshot.
      * @param factor a factor to apply to histogram values.
      *
      */
-    List<MetricFamilySamples> fromSnapshotAndCount(String dropwizardName, Snapshot snapshot, long count, double factor, String helpMessage) {
-        String name = sanitizeMetricName(dropwizardName);
+    MetricFamilySamples fromSnapshotAndCount(IndexedMetric entry, Snapshot snapshot, long count, double factor, String helpMessage) {
+        String name = entry.name;
+        List<String> labelNames = withLabel(entry.labelNames, QUANTILE_LABEL);
+        List<String> labels = entry.labelValues;
         List<MetricFamilySamples.Sample> samples = Arrays.asList(
-                new MetricFamilySamples.Sample(name, Arrays.asList("quantile"), Arrays.asList("0.5"), snapshot.getMedian() * factor),
-                new MetricFamilySamples.Sample(name, Arrays.asList("quantile"), Arrays.asList("0.75"), snapshot.get75thPercentile() * factor),
-                new MetricFamilySamples.Sample(name, Arrays.asList("quantile"), Arrays.asList("0.95"), snapshot.get95thPercentile() * factor),
-                new MetricFamilySamples.Sample(name, Arrays.asList("quantile"), Arrays.asList("0.98"), snapshot.get98thPercentile() * factor),
-                new MetricFamilySamples.Sample(name, Arrays.asList("quantile"), Arrays.asList("0.99"), snapshot.get99thPercentile() * factor),
-                new MetricFamilySamples.Sample(name, Arrays.asList("quantile"), Arrays.asList("0.999"), snapshot.get999thPercentile() * factor),
-                new MetricFamilySamples.Sample(name + "_count", new ArrayList<String>(), new ArrayList<String>(), count)
-        );
-        return Arrays.asList(
-                new MetricFamilySamples(name, Type.SUMMARY, helpMessage, samples)
+                new MetricFamilySamples.Sample(name, labelNames, withLabel(labels, QUANTILE_50), snapshot.getMedian() * factor),
+                new MetricFamilySamples.Sample(name, labelNames, withLabel(labels, QUANTILE_75), snapshot.get75thPercentile() * factor),
+                new MetricFamilySamples.Sample(name, labelNames, withLabel(labels, QUANTILE_95), snapshot.get95thPercentile() * factor),
+                new MetricFamilySamples.Sample(name, labelNames, withLabel(labels, QUANTILE_98), snapshot.get98thPercentile() * factor),
+                new MetricFamilySamples.Sample(name, labelNames, withLabel(labels, QUANTILE_99), snapshot.get99thPercentile() * factor),
+                new MetricFamilySamples.Sample(name, labelNames, withLabel(labels, QUANTILE_999), snapshot.get999thPercentile() * factor),
+                new MetricFamilySamples.Sample(entry.countName, entry.labelNames, entry.labelValues, count)
         );
+        return new MetricFamilySamples(name, Type.SUMMARY, helpMessage, samples);
+    }
+
+    /**
+     * Export a histogram snapshot as a prometheus HISTOGRAM. Snapshots of a {@link BucketReservoir} give exact
+     * cumulative buckets, other ones are approximated by {@link SampledBuckets}.
+     *
+     * @param factor a factor to apply to histogram values, the layout is in the unit after applying it
+     */
+    MetricFamilySamples fromSnapshotAsBuckets(IndexedMetric entry, Snapshot snapshot, long count, double factor,
+                                              BucketLayout layout, String helpMessage) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(layout.size() + 3);
+        List<String> labelNames = withLabel(entry.labelNames, LE_LABEL);
+        if (snapshot instanceof BucketReservoir.BucketSnapshot) {
+            BucketReservoir.BucketSnapshot buckets = (BucketReservoir.BucketSnapshot) snapshot;
+            long[] cumulative = buckets.cumulativeCounts(layout, factor);
+            for (int i = 0; i < cumulative.length; i++) {
+                samples.add(new MetricFamilySamples.Sample(entry.bucketName, labelNames,
+                        withLabel(entry.labelValues, layout.getLeValue(i)), cumulative[i]));
+            }
+            addTotals(entry, samples, labelNames, layout, buckets.getCount(), buckets.getSum() * factor);
+        } else {
+            SampledBuckets sampled = entry.sampledBuckets;
+            if (sampled == null || sampled.getLayout() != layout) {
+                sampled = new SampledBuckets(layout);
+                entry.sampledBuckets = sampled;
+            }
+            synchronized (sampled) {
+                sampled.update(snapshot, count, factor);
+                for (int i = 0; i < layout.size(); i++) {
+                    samples.add(new MetricFamilySamples.Sample(entry.bucketName, labelNames,
+                            withLabel(entry.labelValues, layout.getLeValue(i)), sampled.getCumulative(i)));
+                }
+                addTotals(entry, samples, labelNames, layout, sampled.getCount(), sampled.getSum());
+            }
+        }
+        return new MetricFamilySamples(entry.name, Type.HISTOGRAM, helpMessage, samples);
+    }
+
+    private static void addTotals(IndexedMetric entry, List<MetricFamilySamples.Sample> samples,
+                                  List<String> bucketLabelNames, BucketLayout layout, long count, double sum) {
+        samples.add(new MetricFamilySamples.Sample(entry.bucketName, bucketLabelNames,
+                withLabel(entry.labelValues, layout.getLeValue(layout.size())), count));
+        samples.add(new MetricFamilySamples.Sample(entry.countName, entry.labelNames, entry.labelValues, count));
+        samples.add(new MetricFamilySamples.Sample(entry.sumName, entry.labelNames, entry.labelValues, sum));
     }
 
     /**
      * Convert histogram snapshot.
      */
-    List<MetricFamilySamples> fromHistogram(String dropwizardName, Histogram histogram) {
-        return fromSnapshotAndCount(dropwizardName, histogram.getSnapshot(), histogram.getCount(), 1.0,
-                getHelpMessage(dropwizardName, histogram));
+    MetricFamilySamples fromHistogram(IndexedMetric entry, Histogram histogram) {
+        BucketLayout layout = histogramBuckets;
+        if (layout != null) {
+            return fromSnapshotAsBuckets(entry, histogram.getSnapshot(), histogram.getCount(), 1.0, layout,
+                    getHelpMessage(entry.dropwizardName, histogram));
+        }
+        return fromSnapshotAndCount(entry, histogram.getSnapshot(), histogram.getCount(), 1.0,
+                getHelpMessage(entry.dropwizardName, histogram));
     }
 
     /**
      * Export Dropwizard Timer as a histogram. Use TIME_UNIT as time unit.
      */
-    List<MetricFamilySamples> fromTimer(String dropwizardName, Timer timer) {
-        return fromSnapshotAndCount(dropwizardName, timer.getSnapshot(), timer.getCount(),
-                1.0D / TimeUnit.SECONDS.toNanos(1L), getHelpMessage(dropwizardName, timer));
+    MetricFamilySamples fromTimer(IndexedMetric entry, Timer timer) {
+        BucketLayout layout = timerBuckets;
+        if (layout != null) {
+            return fromSnapshotAsBuckets(entry, timer.getSnapshot(), timer.getCount(), SECONDS_PER_NANO, layout,
+                    getHelpMessage(entry.dropwizardName, timer));
+        }
+        return fromSnapshotAndCount(entry, timer.getSnapshot(), timer.getCount(),
+                SECONDS_PER_NANO, getHelpMessage(entry.dropwizardName, timer));
     }
 
     /**
      * Export a Meter as as prometheus COUNTER.
      */
-    List<MetricFamilySamples> fromMeter(String dropwizardName, Meter meter) {
-        String name = sanitizeMetricName(dropwizardName);
-        return Arrays.asList(
-                new MetricFamilySamples(name + "_total", Type.COUNTER, getHelpMessage(dropwizardName, meter),
-                        Arrays.asList(new MetricFamilySamples.Sample(name + "_total",
-                                new ArrayList<String>(),
-                                new ArrayList<String>(),
-                                meter.getCount())))
-
-        );
+    MetricFamilySamples fromMeter(IndexedMetric entry, Meter meter) {
+        return new MetricFamilySamples(entry.totalName, Type.COUNTER, getHelpMessage(entry.dropwizardName, meter),
+                Collections.singletonList(new MetricFamilySamples.Sample(entry.totalName, entry.labelNames, entry.labelValues,
+                        meter.getCount())));
     }
 
+    /**
+     * @return family for the current value of an indexed metric, null if it has no numeric value
+     */
+    MetricFamilySamples fromIndexedMetric(IndexedMetric entry) {
+        return fromIndexedMetric(entry, null, NO_DEADLINE);
+    }
 
+    /**
+     * @param evaluator evaluating the gauges of this report under its deadline, null to evaluate them inline
+     */
+    private MetricFamilySamples fromIndexedMetric(IndexedMetric entry, GaugeEvaluator evaluator, long deadline) {
+        switch (entry.kind) {
+            case GAUGE:
+                if (evaluator != null) {
+                    return fromGaugeValue(entry, (Gauge) entry.metric, evaluator.value(entry, deadline));
+                }
+                return fromGauge(entry, (Gauge) entry.metric);
+            case COUNTER:
+                return fromCounter(entry, (Counter) entry.metric);
+            case HISTOGRAM:
+                return fromHistogram(entry, (Histogram) entry.metric);
+            case TIMER:
+                return fromTimer(entry, (Timer) entry.metric);
+            case METER:
+                return fromMeter(entry, (Meter) entry.metric);
+            default:
+                throw new IllegalStateException("Unknown metric kind " + entry.kind);
+        }
+    }
 
+    /**
+     * Reads the current values of all indexed metrics, the registry itself is not walked.
+     */
     @Override
     public List<MetricFamilySamples> collect() {
+        IndexedMetric[] metrics = index.metrics();
+        GaugeEvaluator evaluator = gaugeEvaluator;
+        long deadline = evaluator == null ? NO_DEADLINE : evaluator.submit(metrics);
+        ArrayList<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>(metrics.length + 1);
+        for (IndexedMetric entry : metrics) {
+            MetricFamilySamples family = fromIndexedMetric(entry, evaluator, deadline);
+            if (family != null) {
+                mfSamples.add(family);
+            }
+        }
+        addSlowGauges(evaluator, metrics, mfSamples);
+        return mfSamples;
+    }
+
+    /**
+     * Delta mode: only families with at least one sample that moved by more than epsilon since the last committed
+     * push. Values are staged until {@link #commitChanged()} so a failed push is simply detected again.
+     *
+     * @param epsilon absolute change below which a sample counts as unchanged, 0 for any change
+     * @param fullRefresh return every family, i.e. periodically so the gateway state converges
+     */
+    public synchronized List<MetricFamilySamples> collectChanged(double epsilon, boolean fullRefresh) {
+        staged.clear();
+        IndexedMetric[] metrics = index.metrics();
+        GaugeEvaluator evaluator = gaugeEvaluator;
+        long deadline = evaluator == null ? NO_DEADLINE : evaluator.submit(metrics);
         ArrayList<MetricFamilySamples> mfSamples = new ArrayList<MetricFamilySamples>();
-        for (SortedMap.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
-            mfSamples.addAll(fromGauge(entry.getKey(), entry.getValue()));
+        for (IndexedMetric entry : metrics) {
+            MetricFamilySamples family = fromIndexedMetric(entry, evaluator, deadline);
+            if (family == null) {
+                continue;
+            }
+            boolean changed = fullRefresh;
+            List<MetricFamilySamples.Sample> samples = family.samples;
+            entry.ensureSamples(samples.size());
+            for (int i = 0; i < samples.size(); i++) {
+                double value = samples.get(i).value;
+                entry.stagedValues[i] = value;
+                // NaN never compares within epsilon, so never pushed values always count as changed
+                if (!(Math.abs(value - entry.pushedValues[i]) <= epsilon)) {
+                    changed = true;
+                }
+            }
+            if (changed) {
+                mfSamples.add(family);
+                staged.add(entry);
+            }
         }
-        for (SortedMap.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
-            mfSamples.addAll(fromCounter(entry.getKey(), entry.getValue()));
+        // tiny and only there once a gauge was slow, always pushed
+        addSlowGauges(evaluator, metrics, mfSamples);
+        return mfSamples;
+    }
+
+    /**
+     * Adds the slow evaluation count of every gauge that ever missed the budget.
+     */
+    private static void addSlowGauges(GaugeEvaluator evaluator, IndexedMetric[] metrics,
+                                      List<MetricFamilySamples> mfSamples) {
+        if (evaluator == null) {
+            return;
         }
-        for (SortedMap.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
-            mfSamples.addAll(fromHistogram(entry.getKey(), entry.getValue()));
+        List<MetricFamilySamples.Sample> samples = null;
+        for (IndexedMetric entry : metrics) {
+            long slow = entry.getSlowEvaluations();
+            if (slow > 0) {
+                if (samples == null) {
+                    samples = new ArrayList<MetricFamilySamples.Sample>();
+                }
+                samples.add(new MetricFamilySamples.Sample(SLOW_GAUGES_NAME, GAUGE_LABEL,
+                        Collections.singletonList(entry.name), slow));
+            }
         }
-        for (SortedMap.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
-            mfSamples.addAll(fromTimer(entry.getKey(), entry.getValue()));
+        if (samples != null) {
+            mfSamples.add(new MetricFamilySamples(SLOW_GAUGES_NAME, Type.COUNTER,
+                    "Reports in which the gauge missed the evaluation budget.", samples));
         }
-        for (SortedMap.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
-            mfSamples.addAll(fromMeter(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Remember the values of the last {@link #collectChanged} as pushed, call only after the push succeeded.
+     */
+    public synchronized void commitChanged() {
+        for (IndexedMetric entry : staged) {
+            System.arraycopy(entry.stagedValues, 0, entry.pushedValues, 0, entry.pushedValues.length);
         }
-        return mfSamples;
+        staged.clear();
     }
 
     @Override
     public List<MetricFamilySamples> describe() {
         return new ArrayList<MetricFamilySamples>();
     }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    DropwizardMetricIndex getIndex() {
+        return index;
+    }
 }
@@ -0,0 +1,107 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark.dropwizard;
+
+import com.codahale.metrics.Gauge;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.DropwizardMetricIndex.IndexedMetric;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Evaluates the gauges of one report on worker threads under a time budget, so a single slow or blocking gauge no
+ * longer delays the whole report. A gauge not done by the deadline exports its last known value and counts as slow,
+ * its evaluation keeps running and is not submitted again until it finished, the next report picks up its result.
+ * <p>
+ * A gauge blocking for good holds one worker, with all workers blocked every gauge exports its last known value.
+ */
+final class GaugeEvaluator implements Closeable {
+    static final int DEFAULT_THREADS = 2;
+
+    private final long budgetNanos;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param budgetMillis time all gauges of one report get together
+     * @param threads workers evaluating gauges in parallel
+     */
+    GaugeEvaluator(long budgetMillis, int threads) {
+        if (budgetMillis < 1 || threads < 1) {
+            throw new IllegalArgumentException("Invalid gauge budget " + budgetMillis + " ms with " + threads
+                    + " threads");
+        }
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable, "prometheus-gauges");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts evaluating every gauge not still busy since an earlier report.
+     *
+     * @return deadline of this report in {@link System#nanoTime()}
+     */
+    long submit(IndexedMetric[] metrics) {
+        long deadline = System.nanoTime() + budgetNanos;
+        for (IndexedMetric entry : metrics) {
+            if (entry.kind == DropwizardMetricIndex.Kind.GAUGE && entry.pendingGauge == null) {
+                Gauge<?> gauge = (Gauge<?>) entry.metric;
+                entry.pendingGauge = executor.submit(gauge::getValue);
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * @return value of the gauge, the last known one if it missed the deadline, null if it never returned one
+     */
+    Object value(IndexedMetric entry, long deadline) {
+        Future<?> pending = entry.pendingGauge;
+        if (pending == null) {
+            // registered after submit, it gets its turn next report
+            return entry.lastGaugeValue;
+        }
+        try {
+            Object value = pending.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            entry.pendingGauge = null;
+            entry.lastGaugeValue = value;
+            return value;
+        } catch (TimeoutException e) {
+            entry.slowEvaluations.incrementAndGet();
+            return entry.lastGaugeValue;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return entry.lastGaugeValue;
+        } catch (ExecutionException e) {
+            entry.pendingGauge = null;
+            // same as evaluating it on the reporting thread
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Error evaluating gauge " + entry.dropwizardName, cause);
+        }
+    }
+
+    long getBudgetMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(budgetNanos);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,162 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark.dropwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled template of dropwizard metric names, pulls the application id, executor id and metric namespace out of a
+ * name like <code>application_1495476089339_0003.5.jvm.heap.committed</code> so they can be exported as labels
+ * instead of being part of the metric name or the push gateway group.
+ * <p>
+ * A template is dot separated segments, each either a literal or one of the placeholders <code>{app}</code>,
+ * <code>{executor}</code>, <code>{namespace}</code> and <code>{name}</code>. <code>{name}</code> is required, comes
+ * last and takes all remaining segments. Compiled once, matching a name just walks its dots.
+ */
+public final class MetricNameTemplate {
+    /**
+     * How spark names the metrics of its sources, <code>spark.metrics.namespace</code> replaces the application id.
+     */
+    public static final String SPARK_DEFAULT = "{app}.{executor}.{namespace}.{name}";
+
+    public static final String LABEL_APP_ID = "app_id";
+    public static final String LABEL_EXECUTOR = "executor";
+    public static final String LABEL_NAMESPACE = "namespace";
+
+    private static final int LITERAL = -1;
+    private static final int APP = 0;
+    private static final int EXECUTOR = 1;
+    private static final int NAMESPACE = 2;
+    private static final int NAME = 3;
+    private static final List<String> PLACEHOLDERS = Arrays.asList("{app}", "{executor}", "{namespace}", "{name}");
+    private static final String[] LABELS = {LABEL_APP_ID, LABEL_EXECUTOR, LABEL_NAMESPACE};
+
+    private final String template;
+    // per segment the placeholder or LITERAL, the last one is always NAME
+    private final int[] kinds;
+    private final String[] literals;
+    // labels in the order of the placeholders in the template, shared by all parsed names
+    private final List<String> labelNames;
+
+    private MetricNameTemplate(String template, int[] kinds, String[] literals, List<String> labelNames) {
+        this.template = template;
+        this.kinds = kinds;
+        this.literals = literals;
+        this.labelNames = labelNames;
+    }
+
+    public static MetricNameTemplate compile(String template) {
+        String[] segments = template.trim().split("\\.", -1);
+        int[] kinds = new int[segments.length];
+        String[] literals = new String[segments.length];
+        List<String> labelNames = new ArrayList<String>();
+        boolean[] seen = new boolean[PLACEHOLDERS.size()];
+        for (int i = 0; i < segments.length; i++) {
+            int kind = PLACEHOLDERS.indexOf(segments[i]);
+            if (kind == LITERAL) {
+                if (segments[i].isEmpty() || segments[i].indexOf('{') >= 0 || segments[i].indexOf('}') >= 0) {
+                    throw new IllegalArgumentException("Invalid segment '" + segments[i] + "' in metric name template "
+                            + template + ", use a literal or one of " + PLACEHOLDERS);
+                }
+                literals[i] = segments[i];
+            } else {
+                if (seen[kind]) {
+                    throw new IllegalArgumentException(segments[i] + " appears twice in metric name template "
+                            + template);
+                }
+                seen[kind] = true;
+                if (kind != NAME) {
+                    labelNames.add(LABELS[kind]);
+                }
+            }
+            kinds[i] = kind;
+        }
+        // each placeholder appears once, so a {name} at the end is the only one
+        if (kinds[kinds.length - 1] != NAME) {
+            throw new IllegalArgumentException("Metric name template " + template + " has to end with {name}");
+        }
+        return new MetricNameTemplate(template, kinds, literals, Collections.unmodifiableList(labelNames));
+    }
+
+    /**
+     * @return the parts of the name, null if it doesn't match the template
+     */
+    public Parsed parse(String dropwizardName) {
+        String[] values = new String[LABELS.length];
+        int start = 0;
+        for (int i = 0; i < kinds.length - 1; i++) {
+            int end = dropwizardName.indexOf('.', start);
+            if (end <= start) {
+                return null;
+            }
+            if (kinds[i] == LITERAL) {
+                if (end - start != literals[i].length() || !dropwizardName.startsWith(literals[i], start)) {
+                    return null;
+                }
+            } else {
+                values[kinds[i]] = dropwizardName.substring(start, end);
+            }
+            start = end + 1;
+        }
+        if (start >= dropwizardName.length()) {
+            return null;
+        }
+        List<String> labelValues = new ArrayList<String>(labelNames.size());
+        for (int kind : kinds) {
+            if (kind != LITERAL && kind != NAME) {
+                labelValues.add(values[kind]);
+            }
+        }
+        return new Parsed(values[APP], values[EXECUTOR], values[NAMESPACE], dropwizardName.substring(start),
+                labelNames, Collections.unmodifiableList(labelValues));
+    }
+
+    /**
+     * @return labels a matching name is exported with, in template order
+     */
+    public List<String> getLabelNames() {
+        return labelNames;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    /**
+     * A name split by the template, parts not in the template are null.
+     */
+    public static final class Parsed {
+        public final String app;
+        public final String executor;
+        public final String namespace;
+        public final String name;
+        final List<String> labelNames;
+        final List<String> labelValues;
+
+        private Parsed(String app, String executor, String namespace, String name, List<String> labelNames,
+                       List<String> labelValues) {
+            this.app = app;
+            this.executor = executor;
+            this.namespace = namespace;
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+
+        /**
+         * @return the name without application and executor, what the prometheus name is made of
+         */
+        public String getMetricName() {
+            return namespace == null ? name : namespace + "." + name;
+        }
+
+        public List<String> getLabelValues() {
+            return labelValues;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark.dropwizard;
+
+import com.codahale.metrics.Snapshot;
+
+import java.util.Arrays;
+
+/**
+ * Cumulative buckets of a histogram or timer whose reservoir only keeps samples, i.e. the ones spark creates. The
+ * values recorded since the last report are assumed to be distributed like the current samples, good enough to
+ * aggregate across executors, exact buckets need a {@link BucketReservoir}.
+ */
+final class SampledBuckets {
+    private final BucketLayout layout;
+    // guarded by this
+    private final double[] cumulative;
+    private long count;
+    private double sum;
+
+    SampledBuckets(BucketLayout layout) {
+        this.layout = layout;
+        this.cumulative = new double[layout.size()];
+    }
+
+    BucketLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Adds the values recorded since the last update.
+     *
+     * @param snapshot current samples, sorted like every dropwizard snapshot
+     * @param totalCount count of the metric
+     * @param factor converts recorded values to the unit of the bounds
+     */
+    synchronized void update(Snapshot snapshot, long totalCount, double factor) {
+        long added = totalCount - count;
+        if (added < 0) {
+            // metric was replaced under the same name, start over
+            Arrays.fill(cumulative, 0);
+            sum = 0;
+            added = totalCount;
+        }
+        count = totalCount;
+        if (added == 0) {
+            return;
+        }
+        long[] values = snapshot.getValues();
+        if (values.length == 0) {
+            return;
+        }
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] += added * (double) countUpTo(values, layout.getUpperBound(i) / factor) / values.length;
+        }
+        sum += added * snapshot.getMean() * factor;
+    }
+
+    // number of sorted values <= bound
+    private static int countUpTo(long[] values, double bound) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= bound) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    synchronized double getCumulative(int bucket) {
+        return cumulative[bucket];
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized double getSum() {
+        return sum;
+    }
+}
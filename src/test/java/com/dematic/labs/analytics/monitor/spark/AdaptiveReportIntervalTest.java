@@ -0,0 +1,40 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Backs off on failed or slow pushes and recovers to the base period.
+ */
+public final class AdaptiveReportIntervalTest {
+
+    @Test
+    public void backsOffUpToCapAndRecovers() {
+        AdaptiveReportInterval interval = new AdaptiveReportInterval(10000, 60000, 2500);
+        Assert.assertTrue(interval.isDue(0));
+
+        // failed push, next tick at 10s is skipped
+        Assert.assertTrue(interval.onReport(0, false, 100));
+        Assert.assertEquals(20000, interval.getCurrentPeriodMillis());
+        Assert.assertFalse(interval.isDue(10000));
+        Assert.assertTrue(interval.isDue(20000));
+
+        // slow pushes keep doubling until the cap
+        interval.onReport(20000, true, 3000);
+        interval.onReport(60000, true, 3000);
+        Assert.assertEquals(60000, interval.getCurrentPeriodMillis());
+        Assert.assertFalse(interval.onReport(120000, false, 100));
+        Assert.assertEquals(60000, interval.getCurrentPeriodMillis());
+
+        // borderline latency holds the interval, fast pushes halve it back
+        Assert.assertFalse(interval.onReport(180000, true, 2000));
+        interval.onReport(240000, true, 100);
+        interval.onReport(270000, true, 100);
+        interval.onReport(285000, true, 100);
+        Assert.assertEquals(10000, interval.getCurrentPeriodMillis());
+        Assert.assertTrue(interval.isDue(295000));
+    }
+}
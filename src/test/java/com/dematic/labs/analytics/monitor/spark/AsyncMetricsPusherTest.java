@@ -0,0 +1,74 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the push worker coalesces bursts of signals and never blocks the signalling thread.
+ */
+public final class AsyncMetricsPusherTest {
+
+    @Test
+    public void burstIsCoalescedIntoFewPushes() throws InterruptedException {
+        AtomicInteger pushes = new AtomicInteger();
+        CountDownLatch firstPushStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstPush = new CountDownLatch(1);
+
+        AsyncMetricsPusher pusher = new AsyncMetricsPusher("burst", 0, () -> {
+            firstPushStarted.countDown();
+            try {
+                releaseFirstPush.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            pushes.incrementAndGet();
+        });
+
+        pusher.signal();
+        Assert.assertTrue(firstPushStarted.await(5, TimeUnit.SECONDS));
+        // worker is blocked in the first push, these all collapse into one pending push
+        for (int i = 0; i < 100; i++) {
+            pusher.signal();
+        }
+        releaseFirstPush.countDown();
+        pusher.close();
+
+        Assert.assertEquals(2, pushes.get());
+        Assert.assertEquals(101, pusher.getSignalCount());
+        Assert.assertEquals(99, pusher.getCoalescedCount());
+        Assert.assertEquals(0, pusher.getDroppedCount());
+    }
+
+    @Test
+    public void signalsAfterCloseAreDropped() {
+        AtomicInteger pushes = new AtomicInteger();
+        AsyncMetricsPusher pusher = new AsyncMetricsPusher("closed", 0, pushes::incrementAndGet);
+        pusher.close();
+
+        pusher.signal();
+        pusher.signal();
+
+        Assert.assertEquals(0, pushes.get());
+        Assert.assertEquals(2, pusher.getDroppedCount());
+    }
+
+    @Test
+    public void failedPushIsCounted() {
+        AsyncMetricsPusher pusher = new AsyncMetricsPusher("failing", 0, () -> {
+            throw new IOException("gateway down");
+        });
+        pusher.signal();
+        pusher.close();
+
+        Assert.assertEquals(1, pusher.getPushCount());
+        Assert.assertEquals(1, pusher.getFailureCount());
+    }
+}
@@ -0,0 +1,47 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A query falling behind and catching up again.
+ */
+public final class BacklogDetectorTest {
+
+    @Test
+    public void fallsBehindAndDrains() {
+        BacklogDetector detector = new BacklogDetector(4, 1000);
+        // 1000 rows/s arrive, 800 processed, batches take 1.25s for a 1s trigger
+        for (int batch = 0; batch < 4; batch++) {
+            detector.add(batch * 1250L, 1000, 800, 1250);
+        }
+        Assert.assertTrue(detector.isFallingBehind());
+        Assert.assertEquals(200.0, detector.getBacklogGrowthRate(), 0.0);
+        Assert.assertEquals(1.0, detector.getOverrunRatio(), 0.0);
+        // 3 intervals of 1.25s at 200 rows/s
+        Assert.assertEquals(750.0, detector.getBacklogRows(), 1e-9);
+        Assert.assertTrue(Double.isInfinite(detector.getTimeToDrainSeconds()));
+
+        // input drops, batches fast again; the window still remembers two slow batches
+        detector.add(5000, 500, 1000, 500);
+        detector.add(5500, 500, 1000, 500);
+        Assert.assertFalse(detector.isFallingBehind());
+        Assert.assertEquals(0.5, detector.getOverrunRatio(), 0.0);
+        Assert.assertEquals(-150.0, detector.getBacklogGrowthRate(), 0.0);
+        // +200*1.25s, then -500*0.5s
+        Assert.assertEquals(750.0, detector.getBacklogRows(), 1e-9);
+        Assert.assertEquals(5.0, detector.getTimeToDrainSeconds(), 1e-9);
+    }
+
+    @Test
+    public void firstBatchRatesAreIgnored() {
+        BacklogDetector detector = new BacklogDetector(3, 0);
+        detector.add(0, Double.NaN, Double.POSITIVE_INFINITY, 10);
+        Assert.assertEquals(0.0, detector.getBacklogGrowthRate(), 0.0);
+        Assert.assertFalse(detector.isFallingBehind());
+        Assert.assertEquals(0.0, detector.getTimeToDrainSeconds(), 0.0);
+    }
+}
@@ -35,5 +35,42 @@ public final class DropWizardNameConversionTest {
 
     }
 
+    /**
+     * The single pass sanitizer has to produce exactly what the original split/regex/lower case version did.
+     */
+    @Test
+    public void sameAsRegexSanitizer() {
+        String[] names = {
+                "application_1495474513333_0001.2.jvm.heap.committed",
+                "application_1495474513333_0001.driver.DAGScheduler.stage.failedStages",
+                "application_1495474513333_0001.driver.BlockManager.memory.maxMem_MB",
+                "application_1.2.",
+                "application_1..jvm.pools.PS-Eden-Space.used",
+                "anyOther.Nuts.Eaten",
+                "already_sanitized:name",
+                "app-20180101120000-0001.driver.LiveListenerBus.queue.appStatus.size",
+                "CodeGenerator.compilationTime",
+                "with space/and-dash@and.\u00e9accent",
+                "emoji.\ud83d\ude00.name",
+                "Uppercase.ONLY",
+                ""
+        };
+        for (String name : names) {
+            Assert.assertEquals(name, legacySanitizeMetricName(name), DropwizardSparkExports.sanitizeMetricName(name));
+        }
+    }
+
+    /**
+     * The original implementation, kept to check equivalence and as benchmark baseline.
+     */
+    static String legacySanitizeMetricName(String dropwizardName) {
+        String shortenedName=dropwizardName;
+        // remove prefix of app name and executor id
+        if (dropwizardName.startsWith("application")) {
+            String[] names=dropwizardName.split("\\.");
+            shortenedName=dropwizardName.substring(names[0].length()+names[1].length()+2);
+        }
+        return shortenedName.replaceAll("[^a-zA-Z0-9:_]", "_").toLowerCase();
+    }
 
 }
\ No newline at end of file
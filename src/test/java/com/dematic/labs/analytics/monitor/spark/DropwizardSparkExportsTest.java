@@ -0,0 +1,210 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.BucketLayout;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.BucketReservoir;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.DropwizardSparkExports;
+import io.prometheus.client.Collector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the index backed export follows registry changes and keeps the original family layout.
+ */
+public final class DropwizardSparkExportsTest {
+
+    @Test
+    public void exportFollowsRegistry() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("application_1495474513333_0001.2.executor.threadpool.completeTasks").inc(3);
+        DropwizardSparkExports exports = new DropwizardSparkExports(registry);
+
+        Gauge<Long> gauge = () -> 42L;
+        registry.register("application_1495474513333_0001.2.jvm.heap.committed", gauge);
+        registry.meter("application_1495474513333_0001.2.executor.records").mark(7);
+        registry.timer("application_1495474513333_0001.2.executor.runTime");
+
+        List<Collector.MetricFamilySamples> families = exports.collect();
+        Assert.assertEquals(4, families.size());
+        // gauges, counters, histograms, timers, meters - same order as the original registry walk
+        Assert.assertEquals("jvm_heap_committed", families.get(0).name);
+        Assert.assertEquals(42.0, families.get(0).samples.get(0).value, 0.0);
+        Assert.assertEquals("executor_threadpool_completetasks", families.get(1).name);
+        Assert.assertEquals(3.0, families.get(1).samples.get(0).value, 0.0);
+        Assert.assertEquals(Collector.Type.SUMMARY, families.get(2).type);
+        Assert.assertEquals(7, families.get(2).samples.size());
+        Assert.assertEquals("executor_runtime_count", families.get(2).samples.get(6).name);
+        Assert.assertEquals("executor_records_total", families.get(3).name);
+        Assert.assertEquals(7.0, families.get(3).samples.get(0).value, 0.0);
+
+        registry.remove("application_1495474513333_0001.2.jvm.heap.committed");
+        families = exports.collect();
+        Assert.assertEquals(3, families.size());
+        Assert.assertEquals("executor_threadpool_completetasks", families.get(0).name);
+    }
+
+    @Test
+    public void onlyChangedFamiliesAreCollectedInDeltaMode() {
+        MetricRegistry registry = new MetricRegistry();
+        DropwizardSparkExports exports = new DropwizardSparkExports(registry);
+        Counter steady = registry.counter("executor.steady");
+        Counter busy = registry.counter("executor.busy");
+        steady.inc(5);
+
+        // never pushed, everything is new
+        Assert.assertEquals(2, exports.collectChanged(0, false).size());
+        exports.commitChanged();
+
+        busy.inc();
+        List<Collector.MetricFamilySamples> changed = exports.collectChanged(0, false);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertEquals("executor_busy", changed.get(0).name);
+        // push failed, not committed, still changed next cycle
+        Assert.assertEquals(1, exports.collectChanged(0, false).size());
+        exports.commitChanged();
+        Assert.assertTrue(exports.collectChanged(0, false).isEmpty());
+
+        // within epsilon is unchanged, full refresh returns everything
+        busy.inc();
+        Assert.assertTrue(exports.collectChanged(1.5, false).isEmpty());
+        Assert.assertEquals(2, exports.collectChanged(1.5, true).size());
+    }
+
+    @Test
+    public void nonNumericGaugeIsSkipped() {
+        MetricRegistry registry = new MetricRegistry();
+        DropwizardSparkExports exports = new DropwizardSparkExports(registry);
+        Gauge<String> gauge = () -> "not a number";
+        registry.register("some.text", gauge);
+
+        Assert.assertTrue(exports.collect().isEmpty());
+    }
+
+    @Test
+    public void slowGaugeExportsLastKnownValue() {
+        MetricRegistry registry = new MetricRegistry();
+        DropwizardSparkExports exports = new DropwizardSparkExports(registry);
+        exports.setGaugeBudget(200, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Gauge<Integer> slow = () -> {
+            int call = calls.incrementAndGet();
+            if (call == 2) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return call;
+        };
+        registry.register("block.manager.memory", slow);
+        Gauge<Long> fast = () -> 7L;
+        registry.register("fast", fast);
+        try {
+            List<Collector.MetricFamilySamples> families = exports.collect();
+            Assert.assertEquals(2, families.size());
+            Assert.assertEquals(1.0, families.get(0).samples.get(0).value, 0.0);
+
+            // second evaluation blocks, the report goes out with the last known value
+            families = exports.collect();
+            Assert.assertEquals(3, families.size());
+            Assert.assertEquals("block_manager_memory", families.get(0).name);
+            Assert.assertEquals(1.0, families.get(0).samples.get(0).value, 0.0);
+            Assert.assertEquals(7.0, families.get(1).samples.get(0).value, 0.0);
+            Collector.MetricFamilySamples slowGauges = families.get(2);
+            Assert.assertEquals("dsp_monitor_gauge_slow_evaluations_total", slowGauges.name);
+            Assert.assertEquals("block_manager_memory", slowGauges.samples.get(0).labelValues.get(0));
+            Assert.assertEquals(1.0, slowGauges.samples.get(0).value, 0.0);
+
+            // still busy, not evaluated again
+            families = exports.collect();
+            Assert.assertEquals(2, calls.get());
+            Assert.assertEquals(2.0, families.get(2).samples.get(0).value, 0.0);
+
+            release.countDown();
+            families = exports.collect();
+            Assert.assertEquals(2.0, families.get(0).samples.get(0).value, 0.0);
+        } finally {
+            exports.close();
+        }
+    }
+
+    @Test
+    public void timersAndHistogramsAsBuckets() {
+        MetricRegistry registry = new MetricRegistry();
+        DropwizardSparkExports exports = new DropwizardSparkExports(registry);
+        exports.setHistogramBuckets(BucketLayout.DEFAULT_TIMER_SECONDS, BucketLayout.parse("10, 100"));
+        Timer exact = registry.register("exact.latency", new Timer(new BucketReservoir()));
+        for (int i = 0; i < 3; i++) {
+            exact.update(3, TimeUnit.MILLISECONDS);
+        }
+        exact.update(30, TimeUnit.MILLISECONDS);
+        exact.update(3, TimeUnit.SECONDS);
+        Histogram sampled = registry.histogram("sampled.sizes");
+        sampled.update(1);
+        sampled.update(10);
+        sampled.update(100);
+
+        List<Collector.MetricFamilySamples> families = exports.collect();
+        Collector.MetricFamilySamples sizes = families.get(0);
+        Assert.assertEquals(Collector.Type.HISTOGRAM, sizes.type);
+        Assert.assertEquals("sampled_sizes_bucket", sizes.samples.get(0).name);
+        Assert.assertEquals("10.0", sizes.samples.get(0).labelValues.get(0));
+        Assert.assertEquals(2.0, sizes.samples.get(0).value, 0.0);
+        Assert.assertEquals(3.0, sizes.samples.get(1).value, 0.0);
+        Assert.assertEquals("+Inf", sizes.samples.get(2).labelValues.get(0));
+        Assert.assertEquals(3.0, sizes.samples.get(2).value, 0.0);
+
+        Collector.MetricFamilySamples latency = families.get(1);
+        Assert.assertEquals(BucketLayout.DEFAULT_TIMER_SECONDS.size() + 3, latency.samples.size());
+        // le 0.005, 0.05 and 5 seconds
+        Assert.assertEquals(3.0, latency.samples.get(0).value, 0.0);
+        Assert.assertEquals(4.0, latency.samples.get(3).value, 0.0);
+        Assert.assertEquals(5.0, latency.samples.get(11).value, 0.0);
+        int last = latency.samples.size() - 1;
+        Assert.assertEquals("exact_latency_count", latency.samples.get(last - 1).name);
+        Assert.assertEquals(5.0, latency.samples.get(last - 1).value, 0.0);
+        Assert.assertEquals("exact_latency_sum", latency.samples.get(last).name);
+        Assert.assertEquals(3.039, latency.samples.get(last).value, 1e-9);
+
+        // sampled buckets only add the new values, spread like the current samples
+        sampled.update(1000);
+        sizes = exports.collect().get(0);
+        Assert.assertEquals(2.5, sizes.samples.get(0).value, 1e-9);
+        Assert.assertEquals(3.75, sizes.samples.get(1).value, 1e-9);
+        Assert.assertEquals(4.0, sizes.samples.get(2).value, 0.0);
+        Assert.assertEquals(388.75, sizes.samples.get(4).value, 1e-9);
+
+        // delta mode copes with the different sample count
+        Assert.assertEquals(2, exports.collectChanged(0, false).size());
+    }
+
+    @Test
+    public void bucketReservoirQuantilesAreWithinASlot() {
+        BucketReservoir reservoir = new BucketReservoir();
+        for (int i = 1; i <= 1000; i++) {
+            reservoir.update(i);
+        }
+        BucketReservoir.BucketSnapshot snapshot = reservoir.getSnapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500.5, snapshot.getMean(), 0.0);
+        // slots are at most 1/16 of their values wide
+        Assert.assertEquals(500, snapshot.getMedian(), 500 / 16.0);
+        Assert.assertEquals(990, snapshot.get99thPercentile(), 990 / 16.0);
+        Assert.assertEquals(1, snapshot.getMin());
+        Assert.assertTrue(snapshot.getMax() >= 1000 && snapshot.getMax() < 1000 + 1000 / 16);
+    }
+}
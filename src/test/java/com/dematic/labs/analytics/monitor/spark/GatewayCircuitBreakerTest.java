@@ -0,0 +1,59 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Opening, probing and backoff driven by a fake clock.
+ */
+public final class GatewayCircuitBreakerTest {
+    private long now = 0;
+
+    @Test
+    public void opensAfterConsecutiveFailuresAndClosesOnSuccessfulProbe() {
+        GatewayCircuitBreaker breaker = new GatewayCircuitBreaker(3, 1000, 60000, () -> now, new Random(7));
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertFalse(breaker.isOpen());
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertTrue(breaker.isOpen());
+        Assert.assertEquals(1, breaker.getOpenedCount());
+
+        // jittered between half and all of the base backoff
+        long backoff = breaker.getMillisUntilProbe();
+        Assert.assertTrue(String.valueOf(backoff), backoff >= 500 && backoff <= 1000);
+        Assert.assertFalse(breaker.allowRequest());
+
+        now += backoff;
+        Assert.assertTrue(breaker.allowRequest());
+        // a single probe at a time
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        Assert.assertFalse(breaker.isOpen());
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(2, breaker.getSkippedCount());
+    }
+
+    @Test
+    public void failedProbesDoubleBackoffUpToMax() {
+        GatewayCircuitBreaker breaker = new GatewayCircuitBreaker(1, 1000, 5000, () -> now, new Random(7));
+        breaker.onFailure();
+        long[] upperBounds = {1000, 2000, 4000, 5000, 5000};
+        for (long upper : upperBounds) {
+            long backoff = breaker.getMillisUntilProbe();
+            Assert.assertTrue(upper + " " + backoff, backoff >= upper / 2 && backoff <= upper);
+            now += backoff;
+            Assert.assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        Assert.assertEquals(6, breaker.getOpenedCount());
+    }
+}
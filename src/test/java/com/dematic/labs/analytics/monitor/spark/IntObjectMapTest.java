@@ -0,0 +1,59 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Same content as a HashMap through random puts and removes.
+ */
+public final class IntObjectMapTest {
+
+    @Test
+    public void sameAsHashMap() {
+        IntObjectMap<String> map = new IntObjectMap<String>();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // few distinct keys so removes hit and probe chains collide
+            int key = random.nextInt(300) - 50;
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = String.valueOf(i);
+                Assert.assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        for (int key = -50; key < 250; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        int[] visited = new int[1];
+        map.forEach((key, value) -> {
+            Assert.assertEquals(expected.get(key), value);
+            visited[0]++;
+        });
+        Assert.assertEquals(expected.size(), visited[0]);
+    }
+
+    @Test
+    public void stagesComeAndGo() {
+        IntObjectMap<String> map = new IntObjectMap<String>();
+        // a streaming driver keeps submitting and completing stages
+        for (int stage = 0; stage < 10000; stage++) {
+            map.put(stage, "stage " + stage);
+            if (stage >= 3) {
+                Assert.assertEquals("stage " + (stage - 3), map.remove(stage - 3));
+            }
+        }
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("stage 9999", map.get(9999));
+        Assert.assertNull(map.get(9996));
+    }
+}
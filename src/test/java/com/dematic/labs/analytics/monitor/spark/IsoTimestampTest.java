@@ -0,0 +1,45 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Same millis as a formatter for the timestamps spark writes.
+ */
+public final class IsoTimestampTest {
+
+    @Test
+    public void sameAsFormatter() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String[] timestamps = {"2017-09-01T17:00:28.174Z", "1970-01-01T00:00:00.000Z", "2016-02-29T23:59:59.999Z",
+                "2000-03-01T00:00:00.001Z", "1969-12-31T23:59:59.500Z", "2038-01-19T03:14:08.000Z"};
+        for (String timestamp : timestamps) {
+            Assert.assertEquals(timestamp, format.parse(timestamp).getTime(), IsoTimestamp.parseMillis(timestamp));
+        }
+    }
+
+    @Test
+    public void fractionsAndOffsets() {
+        long expected = IsoTimestamp.parseMillis("2017-09-01T17:00:28.100Z");
+        Assert.assertEquals(expected, IsoTimestamp.parseMillis("2017-09-01T17:00:28.1Z"));
+        Assert.assertEquals(expected, IsoTimestamp.parseMillis("2017-09-01T17:00:28.100999Z"));
+        Assert.assertEquals(expected, IsoTimestamp.parseMillis("2017-09-01T19:00:28.100+02:00"));
+        Assert.assertEquals(expected - 100, IsoTimestamp.parseMillis("2017-09-01T17:00:28"));
+    }
+
+    @Test
+    public void invalidTimestamps() {
+        Assert.assertEquals(IsoTimestamp.INVALID, IsoTimestamp.parseMillis(null));
+        Assert.assertEquals(IsoTimestamp.INVALID, IsoTimestamp.parseMillis("2017-09-01"));
+        Assert.assertEquals(IsoTimestamp.INVALID, IsoTimestamp.parseMillis("2017-13-01T17:00:28.174Z"));
+        Assert.assertEquals(IsoTimestamp.INVALID, IsoTimestamp.parseMillis("2017-09-01T17:00:28.Z"));
+        Assert.assertEquals(IsoTimestamp.INVALID, IsoTimestamp.parseMillis("2017-09-01T17:00:28.174X"));
+    }
+}
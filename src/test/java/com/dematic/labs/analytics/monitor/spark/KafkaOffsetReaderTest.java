@@ -0,0 +1,53 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Offsets as spark writes them in the source progress.
+ */
+public final class KafkaOffsetReaderTest {
+
+    @Test
+    public void advanceIsMatchedByTopicAndPartition() {
+        KafkaOffsetReader reader = new KafkaOffsetReader();
+        Assert.assertTrue(reader.read(
+                "{\"signals\":{\"8\":282407978,\"11\":282407617},\"alerts\":{\"0\":5}}",
+                "{\n  \"signals\" : {\n    \"11\" : 282412590,\n    \"8\" : 282412835\n  },\n  \"alerts\" : {\"0\":5,\"1\":3}\n}"));
+
+        Assert.assertEquals(4, reader.size());
+        Assert.assertEquals(2, reader.topicCount());
+        Assert.assertEquals("signals", reader.topicName(reader.topic(0)));
+        Assert.assertEquals(11, reader.partition(0));
+        Assert.assertEquals(282412590 - 282407617, reader.advance(0));
+        Assert.assertEquals(282412835 - 282407978, reader.advance(1));
+        Assert.assertEquals(0, reader.advance(2));
+        // new partition without a start offset
+        Assert.assertEquals(-1, reader.advance(3));
+    }
+
+    @Test
+    public void topicsAreKeptAcrossReads() {
+        KafkaOffsetReader reader = new KafkaOffsetReader();
+        Assert.assertTrue(reader.read("{\"signals\":{\"0\":1}}", "{\"signals\":{\"0\":4}}"));
+        String topic = reader.topicName(reader.topic(0));
+        Assert.assertTrue(reader.read("{\"signals\":{\"0\":4}}", "{\"signals\":{\"0\":10}}"));
+        Assert.assertSame(topic, reader.topicName(reader.topic(0)));
+        Assert.assertEquals(6, reader.advance(0));
+        Assert.assertEquals(1, reader.topicCount());
+    }
+
+    @Test
+    public void otherSourcesAreRejected() {
+        KafkaOffsetReader reader = new KafkaOffsetReader();
+        // rate and file sources
+        Assert.assertFalse(reader.read("1507", "1510"));
+        Assert.assertFalse(reader.read("{\"logOffset\":3}", "{\"logOffset\":4}"));
+        Assert.assertFalse(reader.read("{\"signals\":{\"0\":-}}", "{\"signals\":{\"0\":4}}"));
+        Assert.assertFalse(reader.read(null, "{\"signals\":{\"0\":4}}"));
+        Assert.assertEquals(0, reader.size());
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.DropwizardSparkExports;
+import com.dematic.labs.analytics.monitor.spark.dropwizard.MetricNameTemplate;
+import io.prometheus.client.Collector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application, executor and namespace move from the metric name into labels.
+ */
+public final class MetricNameTemplateTest {
+
+    @Test
+    public void sparkNamesAreSplit() {
+        MetricNameTemplate template = MetricNameTemplate.compile(MetricNameTemplate.SPARK_DEFAULT);
+        MetricNameTemplate.Parsed parsed = template.parse("application_1495474513333_0001.5.jvm.heap.committed");
+        Assert.assertEquals("application_1495474513333_0001", parsed.app);
+        Assert.assertEquals("5", parsed.executor);
+        Assert.assertEquals("jvm", parsed.namespace);
+        Assert.assertEquals("heap.committed", parsed.name);
+        Assert.assertEquals("jvm.heap.committed", parsed.getMetricName());
+        Assert.assertEquals(Arrays.asList("app_id", "executor", "namespace"), template.getLabelNames());
+        Assert.assertEquals(Arrays.asList("application_1495474513333_0001", "5", "jvm"), parsed.getLabelValues());
+
+        // standalone app ids and the driver work the same
+        Assert.assertEquals("driver", template.parse("app-20180101-0001.driver.DAGScheduler.stage.failedStages").executor);
+        Assert.assertNull(template.parse("anyother.nuts.eaten"));
+        Assert.assertNull(template.parse("app..jvm.heap"));
+
+        MetricNameTemplate literal = MetricNameTemplate.compile("myapp.{executor}.{name}");
+        Assert.assertEquals("3", literal.parse("myapp.3.records").executor);
+        Assert.assertNull(literal.parse("other.3.records"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameHasToComeLast() {
+        MetricNameTemplate.compile("{app}.{name}.{executor}");
+    }
+
+    @Test
+    public void exportsLabelIdentity() {
+        MetricRegistry registry = new MetricRegistry();
+        DropwizardSparkExports exports = new DropwizardSparkExports(registry,
+                MetricNameTemplate.compile(MetricNameTemplate.SPARK_DEFAULT));
+        Gauge<Long> heap = () -> 42L;
+        registry.register("app-20180101-0001.7.jvm.heap.committed", heap);
+        registry.timer("app-20180101-0001.7.executor.runTime");
+
+        List<Collector.MetricFamilySamples> families = exports.collect();
+        Collector.MetricFamilySamples gauge = families.get(0);
+        // the original name only dropped an "application" prefix
+        Assert.assertEquals("jvm_heap_committed", gauge.name);
+        Assert.assertEquals(Arrays.asList("app_id", "executor", "namespace"), gauge.samples.get(0).labelNames);
+        Assert.assertEquals(Arrays.asList("app-20180101-0001", "7", "jvm"), gauge.samples.get(0).labelValues);
+
+        Collector.MetricFamilySamples timer = families.get(1);
+        Assert.assertEquals("executor_runtime", timer.name);
+        Assert.assertEquals(Arrays.asList("app_id", "executor", "namespace", "quantile"),
+                timer.samples.get(0).labelNames);
+        Assert.assertEquals(Arrays.asList("app-20180101-0001", "7", "executor", "0.5"),
+                timer.samples.get(0).labelValues);
+        Assert.assertEquals(Arrays.asList("app-20180101-0001", "7", "executor"), timer.samples.get(6).labelValues);
+    }
+
+    @Test
+    public void groupingKeyIsImmutableAndConfigurable() {
+        PrometheusConfig config = new PrometheusConfig("template-test");
+        config.setGroupingLabel(PrometheusConfig.LABEL_EXECUTOR, "5");
+        // part of the default key
+        Assert.assertFalse(config.setRequiredGroupingLabel(PrometheusConfig.LABEL_EXECUTOR, "5"));
+        Assert.assertEquals("5", config.getGroupingKey().get(PrometheusConfig.LABEL_EXECUTOR));
+        try {
+            config.getGroupingKey().put(PrometheusConfig.LABEL_EXECUTOR, "6");
+            Assert.fail("grouping key is immutable");
+        } catch (UnsupportedOperationException expected) {
+            // swapped as a whole by setGroupingLabel
+        }
+
+        // one group per application
+        System.setProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY, "driver, cluster_id");
+        try {
+            PrometheusConfig perApplication = new PrometheusConfig("template-test");
+            perApplication.setGroupingLabel(PrometheusConfig.LABEL_EXECUTOR, "5");
+            Assert.assertEquals(Arrays.asList(PrometheusConfig.LABEL_DRIVER_NAME, PrometheusConfig.LABEL_CLUSTER_ID),
+                    Arrays.asList(perApplication.getGroupingKey().keySet().toArray()));
+        } finally {
+            System.clearProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY);
+        }
+    }
+
+    @Test
+    public void executorPushesKeepTheExecutorInTheirGroup() {
+        System.setProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY, "driver, cluster_id");
+        try {
+            PrometheusConfig executor = new PrometheusConfig("template-test");
+            Assert.assertTrue(executor.setRequiredGroupingLabel(PrometheusConfig.LABEL_EXECUTOR, "5"));
+            Assert.assertEquals(Arrays.asList(PrometheusConfig.LABEL_DRIVER_NAME, PrometheusConfig.LABEL_CLUSTER_ID,
+                    PrometheusConfig.LABEL_EXECUTOR), Arrays.asList(executor.getGroupingKey().keySet().toArray()));
+            Assert.assertEquals("5", executor.getGroupingKey().get(PrometheusConfig.LABEL_EXECUTOR));
+
+            // a single JVM, nothing to overwrite
+            MetricRegistry registry = new MetricRegistry();
+            PrometheusMetricsReporter driver = new PrometheusMetricsReporter(registry, "template-test", null,
+                    TimeUnit.SECONDS, TimeUnit.MILLISECONDS, MetricNameTemplate.compile(MetricNameTemplate.SPARK_DEFAULT));
+            registry.register("app-20180101-0001.driver.jvm.heap.used", (Gauge<Long>) () -> 1L);
+            Assert.assertNull(driver.getPrometheusConfig().getGroupingKey().get(PrometheusConfig.LABEL_EXECUTOR));
+        } finally {
+            System.clearProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY);
+        }
+    }
+}
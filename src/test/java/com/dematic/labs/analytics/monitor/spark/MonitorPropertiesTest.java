@@ -0,0 +1,38 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Defaults for unset and invalid properties, long values beyond int.
+ */
+public final class MonitorPropertiesTest {
+    private static final String KEY = "dematiclabs.monitor.test.value";
+
+    @After
+    public void clearProperty() {
+        System.clearProperty(KEY);
+    }
+
+    @Test
+    public void unsetOrInvalidGivesTheDefault() {
+        Assert.assertEquals(7, MonitorProperties.getInt(KEY, 7));
+        System.setProperty(KEY, "seven");
+        Assert.assertEquals(7, MonitorProperties.getInt(KEY, 7));
+        Assert.assertEquals(7L, MonitorProperties.getLong(KEY, 7L));
+        Assert.assertEquals(7.0, MonitorProperties.getDouble(KEY, 7.0), 0.0);
+    }
+
+    @Test
+    public void longsAreNotTruncated() {
+        System.setProperty(KEY, " 4294967296 ");
+        Assert.assertEquals(4294967296L, MonitorProperties.getLong(KEY, 0));
+        Assert.assertEquals(4294967296L, TieredCollector.getConfiguredTierMillis(KEY, 0));
+        // too large for an int
+        Assert.assertEquals(1, MonitorProperties.getInt(KEY, 1));
+    }
+}
@@ -0,0 +1,71 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.UUID;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_METRIC_PREFIX;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListenerTest.progressEvent;
+
+/**
+ * Rolling statistics over a bounded history.
+ */
+public final class ProgressHistoryTest {
+
+    @Test
+    public void statsOverTheLastBatchesOnly() {
+        ProgressHistory history = new ProgressHistory("q", "id", 20);
+        // rows 1..30, only 11..30 are kept
+        for (int batch = 1; batch <= 30; batch++) {
+            history.add(progressEvent(UUID.randomUUID(), "q", batch, batch).progress());
+        }
+        Assert.assertEquals(20, history.size());
+        Assert.assertEquals(11, history.getFirstBatchId());
+        Assert.assertEquals(30, history.getLastBatchId());
+
+        double[] stats = new double[ProgressHistory.STAT_NAMES.length];
+        Assert.assertEquals(20, history.stats(ProgressHistory.SERIES_INPUT_ROWS, stats));
+        Assert.assertEquals(20.5, stats[ProgressHistory.STAT_MEAN], 0.0);
+        Assert.assertEquals(20.0, stats[ProgressHistory.STAT_P50], 0.0);
+        Assert.assertEquals(29.0, stats[ProgressHistory.STAT_P95], 0.0);
+        Assert.assertEquals(30.0, stats[ProgressHistory.STAT_MAX], 0.0);
+
+        // stage missing from every batch
+        Assert.assertEquals(0, history.stats(ProgressHistory.SERIES_FIRST_STAGE + 4, stats));
+        Assert.assertTrue(Double.isNaN(stats[ProgressHistory.STAT_MAX]));
+    }
+
+    @Test
+    public void collectorAndJson() throws IOException {
+        ProgressHistoryCollector collector = new ProgressHistoryCollector(10);
+        CollectorRegistry registry = new CollectorRegistry();
+        collector.register(registry);
+        ProgressHistory history = collector.forQuery("say \"hi\"", "id");
+        history.add(progressEvent(UUID.randomUUID(), "q", 7, 10).progress());
+
+        Assert.assertEquals(100.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "history_stage_duration_ms",
+                new String[]{PrometheusStreamingQueryListener.LABEL_QUERY_NAME,
+                        PrometheusStreamingQueryListener.LABEL_QUERY_ID, PrometheusStreamingQueryListener.LABEL_STAGE,
+                        ProgressHistoryCollector.LABEL_STAT},
+                new String[]{"say \"hi\"", "id", MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION, "p95"}), 0.0);
+
+        StringWriter json = new StringWriter();
+        collector.writeJson(json);
+        Assert.assertTrue(json.toString(), json.toString().startsWith(
+                "[{\"name\":\"say \\\"hi\\\"\",\"id\":\"id\",\"batches\":1,\"firstBatchId\":7,\"lastBatchId\":7,"
+                        + "\"inputRows\":{\"mean\":10.0,\"p50\":10.0,\"p95\":10.0,\"max\":10.0}"));
+        Assert.assertTrue(json.toString(), json.toString().contains("\"durationMs\":{\"triggerExecution\":{"));
+
+        collector.remove("id");
+        Assert.assertNull(registry.getSampleValue(SPARK_METRIC_PREFIX + "history_batches",
+                new String[]{PrometheusStreamingQueryListener.LABEL_QUERY_NAME,
+                        PrometheusStreamingQueryListener.LABEL_QUERY_ID}, new String[]{"say \"hi\"", "id"}));
+    }
+}
@@ -0,0 +1,60 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scrapes the embedded endpoint on an ephemeral port.
+ */
+public final class PrometheusScrapeEndpointTest {
+
+    @Test
+    public void scrapesAreServedFromSnapshot() throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge gauge = Gauge.build().name("scrape_test_value").help("Scrape test value.").register(registry);
+        gauge.set(17);
+
+        PrometheusScrapeEndpoint endpoint = new PrometheusScrapeEndpoint(0, PrometheusScrapeEndpoint.DEFAULT_PATH,
+                60000, registry);
+        endpoint.start();
+        try {
+            String first = scrape(endpoint.getPort());
+            Assert.assertTrue(first, first.contains("scrape_test_value 17.0"));
+
+            // within the cache time the earlier collection is served
+            gauge.set(18);
+            String second = scrape(endpoint.getPort());
+            Assert.assertEquals(first, second);
+            Assert.assertEquals(1, endpoint.getRenderCount());
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    private static String scrape(int port) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+                + PrometheusScrapeEndpoint.DEFAULT_PATH).openConnection();
+        Assert.assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
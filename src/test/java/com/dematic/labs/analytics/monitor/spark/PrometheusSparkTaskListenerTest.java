@@ -0,0 +1,136 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.spark.SparkConf;
+import org.apache.spark.TaskState;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.scheduler.StageInfo;
+import org.apache.spark.scheduler.TaskInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusSparkTaskListener.LABEL_STAGE;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusSparkTaskListener.SPARK_TASK_METRIC_PREFIX;
+
+/**
+ * Task end events of two stages sharing a name, no push gateway needed.
+ */
+public final class PrometheusSparkTaskListenerTest {
+    private static final String STAGE_NAME = "start at StructuredStreamingSignalAggregation.scala:42";
+
+    private PrometheusSparkTaskListener listener;
+
+    @Before
+    public void createListener() {
+        listener = new PrometheusSparkTaskListener(new SparkConf(), "PrometheusSparkTaskListenerTest");
+    }
+
+    @After
+    public void closeListener() {
+        listener.close();
+    }
+
+    @Test
+    public void tasksAreAggregatedByStageName() {
+        for (int stageId = 1; stageId <= 2; stageId++) {
+            StageInfo stage = stageInfo(stageId, STAGE_NAME);
+            listener.onStageSubmitted(new SparkListenerStageSubmitted(stage, new Properties()));
+            listener.onTaskEnd(taskEnd(stageId, 200, 2 << 20, true));
+            listener.onTaskEnd(taskEnd(stageId, 3000, 0, false));
+            listener.onStageCompleted(new SparkListenerStageCompleted(stage));
+        }
+        Assert.assertEquals(0, listener.getActiveStageCount());
+
+        CollectorRegistry registry = listener.getCollectorRegistry();
+        String[] stageLabels = {LABEL_STAGE};
+        String[] stage = {STAGE_NAME};
+        Assert.assertEquals(4.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "duration_ms_count",
+                stageLabels, stage), 0.0);
+        Assert.assertEquals(6400.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "duration_ms_sum",
+                stageLabels, stage), 0.0);
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "duration_ms_bucket",
+                new String[]{LABEL_STAGE, "le"}, new String[]{STAGE_NAME, "250.0"}), 0.0);
+        Assert.assertEquals(2.0 * (2 << 20), registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "shuffle_read_bytes_sum",
+                stageLabels, stage), 0.0);
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "ended_total",
+                new String[]{LABEL_STAGE, PrometheusSparkTaskListener.LABEL_STATUS}, new String[]{STAGE_NAME, "failed"}),
+                0.0);
+    }
+
+    @Test
+    public void lateTaskOfCompletedStageIsUnknown() {
+        listener.onTaskEnd(taskEnd(7, 10, 0, true));
+        Assert.assertEquals(1.0, listener.getCollectorRegistry().getSampleValue(
+                SPARK_TASK_METRIC_PREFIX + "duration_ms_count", new String[]{LABEL_STAGE},
+                new String[]{PrometheusSparkTaskListener.UNKNOWN_STAGE}), 0.0);
+    }
+
+    @Test
+    public void stragglerMultipleMustBeAboveOne() {
+        try {
+            System.setProperty(MonitorConsts.SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE, "2.5");
+            Assert.assertEquals(2.5, StageSkewTracker.getConfiguredStragglerMultiple(), 0.0);
+            System.setProperty(MonitorConsts.SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE, "0.5");
+            Assert.assertEquals(StageSkewTracker.DEFAULT_STRAGGLER_MULTIPLE,
+                    StageSkewTracker.getConfiguredStragglerMultiple(), 0.0);
+        } finally {
+            System.clearProperty(MonitorConsts.SPARK_TASK_MONITOR_STRAGGLER_MULTIPLE);
+        }
+    }
+
+    @Test
+    public void stragglersAndSkewOfStage() {
+        StageInfo stage = stageInfo(3, STAGE_NAME);
+        listener.onStageSubmitted(new SparkListenerStageSubmitted(stage, new Properties()));
+        for (int task = 0; task < 20; task++) {
+            listener.onTaskEnd(taskEnd(3, 100, 1 << 20, true));
+        }
+        listener.onTaskEnd(taskEnd(3, 1000, 8 << 20, true));
+        // failed tasks are no stragglers
+        listener.onTaskEnd(taskEnd(3, 5000, 0, false));
+
+        CollectorRegistry registry = listener.getCollectorRegistry();
+        String[] stageLabels = {LABEL_STAGE};
+        String[] stageName = {STAGE_NAME};
+        Assert.assertEquals(1.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_active_sketches"), 0.0);
+        Assert.assertEquals(1.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_stragglers",
+                stageLabels, stageName), 0.0);
+        Assert.assertEquals(10.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_skew_ratio",
+                new String[]{LABEL_STAGE, StageSkewTracker.LABEL_METRIC}, new String[]{STAGE_NAME, "duration"}), 0.2);
+        Assert.assertEquals(8.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_skew_ratio",
+                new String[]{LABEL_STAGE, StageSkewTracker.LABEL_METRIC},
+                new String[]{STAGE_NAME, "shuffle_read_bytes"}), 0.2);
+
+        listener.onStageCompleted(new SparkListenerStageCompleted(stage));
+        // sketches are released, the final numbers stay
+        Assert.assertEquals(0, listener.getSkewTracker().getActiveStageCount());
+        Assert.assertEquals(0.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_active_sketches"), 0.0);
+        Assert.assertEquals(100.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_duration_p99_ms",
+                stageLabels, stageName), 100 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        Assert.assertEquals(1.0, registry.getSampleValue(SPARK_TASK_METRIC_PREFIX + "stage_stragglers",
+                stageLabels, stageName), 0.0);
+    }
+
+    static StageInfo stageInfo(int stageId, String name) {
+        return new StageInfo(stageId, 0, name, 2, null, null, "", null, null);
+    }
+
+    static SparkListenerTaskEnd taskEnd(int stageId, long durationMillis, long shuffleReadBytes, boolean success) {
+        TaskInfo info = new TaskInfo(stageId * 100L, 0, 0, 1000, "1", "localhost", null, false);
+        info.markFinished(success ? TaskState.FINISHED() : TaskState.FAILED(), 1000 + durationMillis);
+        TaskMetrics metrics = TaskMetrics.empty();
+        metrics.setExecutorRunTime(durationMillis - 5);
+        metrics.shuffleReadMetrics().setRemoteBytesRead(shuffleReadBytes);
+        return new SparkListenerTaskEnd(stageId, 0, "ShuffleMapTask", null, info, metrics);
+    }
+}
@@ -0,0 +1,115 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.spark.SparkConf;
+import org.apache.spark.streaming.Time;
+import org.apache.spark.streaming.scheduler.BatchInfo;
+import org.apache.spark.streaming.scheduler.OutputOperationInfo;
+import org.apache.spark.streaming.scheduler.ReceiverInfo;
+import org.apache.spark.streaming.scheduler.StreamInputInfo;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchSubmitted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverError;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStarted;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Option;
+import scala.Predef$;
+import scala.Tuple2;
+import scala.collection.JavaConverters;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingListener.LABEL_DELAY;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingListener.LABEL_RECEIVER;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingListener.LABEL_STREAM_ID;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingListener.SPARK_DSTREAM_METRIC_PREFIX;
+
+/**
+ * Batches of a DStream job with one receiver, no push gateway needed.
+ */
+public final class PrometheusStreamingListenerTest {
+    private static final long BATCH_INTERVAL_MS = 2000;
+
+    private PrometheusStreamingListener listener;
+
+    @Before
+    public void createListener() {
+        listener = new PrometheusStreamingListener(new SparkConf(), "PrometheusStreamingListenerTest");
+    }
+
+    @After
+    public void closeListener() {
+        listener.close();
+    }
+
+    @Test
+    public void batchDelaysAndInputRecords() {
+        // the second batch waits 500 ms for the first one, which takes longer than the interval
+        completeBatch(0, 0, 2500, 100);
+        completeBatch(BATCH_INTERVAL_MS, 500, 1000, 40);
+
+        CollectorRegistry registry = listener.getCollectorRegistry();
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "batches_total"), 0.0);
+        Assert.assertEquals(0.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "batches_queued"), 0.0);
+        Assert.assertEquals(BATCH_INTERVAL_MS, listener.getBatchIntervalMillis());
+        Assert.assertEquals(0.5, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "processing_delay_ratio"), 0.0);
+
+        String[] delayLabels = {LABEL_DELAY};
+        Assert.assertEquals(500.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "last_batch_delay_ms",
+                delayLabels, new String[]{PrometheusStreamingListener.DELAY_SCHEDULING}), 0.0);
+        Assert.assertEquals(1500.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "last_batch_delay_ms",
+                delayLabels, new String[]{PrometheusStreamingListener.DELAY_TOTAL}), 0.0);
+        Assert.assertEquals(3500.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "batch_delay_ms_sum",
+                delayLabels, new String[]{PrometheusStreamingListener.DELAY_PROCESSING}), 0.0);
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "batch_delay_ms_count",
+                delayLabels, new String[]{PrometheusStreamingListener.DELAY_SCHEDULING}), 0.0);
+
+        String[] streamLabels = {LABEL_STREAM_ID};
+        Assert.assertEquals(140.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "input_records_total",
+                streamLabels, new String[]{"0"}), 0.0);
+        Assert.assertEquals(40.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "batch_input_records",
+                streamLabels, new String[]{"0"}), 0.0);
+    }
+
+    @Test
+    public void receiverErrors() {
+        ReceiverInfo receiver = new ReceiverInfo(3, "MqttReceiver", true, "localhost", "1", "", "", -1);
+        listener.onReceiverStarted(new StreamingListenerReceiverStarted(receiver));
+        listener.onReceiverError(new StreamingListenerReceiverError(receiver));
+        listener.onReceiverError(new StreamingListenerReceiverError(receiver));
+
+        String[] receiverLabels = {LABEL_STREAM_ID, LABEL_RECEIVER};
+        String[] receiverValues = {"3", "MqttReceiver"};
+        CollectorRegistry registry = listener.getCollectorRegistry();
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "receiver_errors_total",
+                receiverLabels, receiverValues), 0.0);
+        Assert.assertEquals(1.0, registry.getSampleValue(SPARK_DSTREAM_METRIC_PREFIX + "receiver_active",
+                receiverLabels, receiverValues), 0.0);
+    }
+
+    private void completeBatch(long batchTimeMillis, long schedulingDelayMillis, long processingDelayMillis,
+                               long records) {
+        long processingStart = batchTimeMillis + schedulingDelayMillis;
+        Map<Object, StreamInputInfo> inputs = new HashMap<Object, StreamInputInfo>();
+        inputs.put(0, new StreamInputInfo(0, records, scalaMap(Collections.<String, Object>emptyMap())));
+        BatchInfo batch = new BatchInfo(new Time(batchTimeMillis), scalaMap(inputs), batchTimeMillis,
+                Option.<Object>apply(processingStart), Option.<Object>apply(processingStart + processingDelayMillis),
+                scalaMap(Collections.<Object, OutputOperationInfo>emptyMap()));
+        listener.onBatchSubmitted(new StreamingListenerBatchSubmitted(batch));
+        listener.onBatchStarted(new StreamingListenerBatchStarted(batch));
+        listener.onBatchCompleted(new StreamingListenerBatchCompleted(batch));
+    }
+
+    static <K, V> scala.collection.immutable.Map<K, V> scalaMap(Map<K, V> map) {
+        return JavaConverters.mapAsScalaMapConverter(map).asScala().toMap(Predef$.MODULE$.<Tuple2<K, V>>$conforms());
+    }
+}
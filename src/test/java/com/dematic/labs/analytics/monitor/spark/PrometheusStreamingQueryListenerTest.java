@@ -0,0 +1,346 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.streaming.SinkProgress;
+import org.apache.spark.sql.streaming.SourceProgress;
+import org.apache.spark.sql.streaming.StateOperatorProgress;
+import org.apache.spark.sql.streaming.StreamingQueryListener;
+import org.apache.spark.sql.streaming.StreamingQueryProgress;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.UUID;
+
+import static com.dematic.labs.analytics.monitor.spark.PrometheusConfig.SPARK_METRIC_PREFIX;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_ID;
+import static com.dematic.labs.analytics.monitor.spark.PrometheusStreamingQueryListener.LABEL_QUERY_NAME;
+
+/**
+ * Feeds progress events of concurrent queries to the listener, no push gateway needed.
+ */
+public final class PrometheusStreamingQueryListenerTest {
+    private static final String[] QUERY_LABELS = {LABEL_QUERY_NAME, LABEL_QUERY_ID};
+
+    private PrometheusStreamingQueryListener listener;
+    private CollectorRegistry registry;
+
+    @Before
+    public void createListener() {
+        listener = new PrometheusStreamingQueryListener(new SparkConf(), "PrometheusStreamingQueryListenerTest");
+        registry = listener.getCollectorRegistry();
+    }
+
+    @After
+    public void closeListener() {
+        listener.close();
+    }
+
+    @Test
+    public void concurrentQueriesAreLabeledAndRemovedOnTermination() {
+        UUID aggregate = UUID.randomUUID();
+        UUID raw = UUID.randomUUID();
+        listener.onQueryStarted(new StreamingQueryListener.QueryStartedEvent(aggregate, UUID.randomUUID(), "aggregate"));
+        listener.onQueryStarted(new StreamingQueryListener.QueryStartedEvent(raw, UUID.randomUUID(), null));
+
+        listener.onQueryProgress(progressEvent(aggregate, "aggregate", 0, 100));
+        listener.onQueryProgress(progressEvent(raw, null, 0, 7));
+        listener.onQueryProgress(progressEvent(aggregate, "aggregate", 1, 50));
+
+        Assert.assertEquals(2.0, value("batches_total", "aggregate", aggregate), 0.0);
+        Assert.assertEquals(150.0, value("input_rows_total", "aggregate", aggregate), 0.0);
+        Assert.assertEquals(50.0, value("num_input_rows_for_job", "aggregate", aggregate), 0.0);
+        Assert.assertEquals(7.0, value("num_input_rows_for_job", "", raw), 0.0);
+
+        listener.onQueryTerminated(new StreamingQueryListener.QueryTerminatedEvent(aggregate, UUID.randomUUID(),
+                scala.Option.<String>apply(null)));
+        Assert.assertNull(value("batches_total", "aggregate", aggregate));
+        Assert.assertNull(value("num_input_rows_for_job", "aggregate", aggregate));
+        Assert.assertEquals(1.0, value("batches_total", "", raw), 0.0);
+        // the raw query still has series of every metric, pushing them replaces the terminated query's
+        Assert.assertFalse(listener.isReplacingGroup());
+
+        listener.onQueryTerminated(new StreamingQueryListener.QueryTerminatedEvent(raw, UUID.randomUUID(),
+                scala.Option.<String>apply(null)));
+        Assert.assertTrue(listener.isReplacingGroup());
+    }
+
+    @Test
+    public void lastSeriesOfAMetricReplacesTheGroup() {
+        UUID stateful = UUID.randomUUID();
+        UUID stateless = UUID.randomUUID();
+        SourceProgress source = new SourceProgress("RateSource", "10", "20", 10, 10.0, 10.0);
+        listener.onQueryProgress(progressEvent(stateful, "stateful", 0, new StateOperatorProgress[]{
+                new StateOperatorProgress(10, 1, 1024)}, source));
+        listener.onQueryProgress(progressEvent(stateless, "stateless", 0, source));
+
+        // the state operator series were the stateful query's only
+        listener.onQueryTerminated(new StreamingQueryListener.QueryTerminatedEvent(stateful, UUID.randomUUID(),
+                scala.Option.<String>apply(null)));
+        Assert.assertTrue(listener.isReplacingGroup());
+    }
+
+    @Test
+    public void driverComponentsPushIntoGroupsOfTheirOwn() {
+        System.setProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY, "driver, cluster_id, job_id");
+        PrometheusSparkTaskListener tasks = null;
+        PrometheusStreamingListener dstreams = null;
+        PrometheusStreamingQueryListener queries = null;
+        try {
+            tasks = new PrometheusSparkTaskListener(new SparkConf(), "components");
+            dstreams = new PrometheusStreamingListener(new SparkConf(), "components");
+            queries = new PrometheusStreamingQueryListener(new SparkConf(), "components");
+            Assert.assertEquals(PrometheusSparkTaskListener.COMPONENT,
+                    tasks.getPrometheusConfig().getGroupingKey().get(PrometheusConfig.LABEL_COMPONENT));
+            Assert.assertEquals(PrometheusStreamingListener.COMPONENT,
+                    dstreams.getPrometheusConfig().getGroupingKey().get(PrometheusConfig.LABEL_COMPONENT));
+            Assert.assertEquals(PrometheusStreamingQueryListener.COMPONENT,
+                    queries.getPrometheusConfig().getGroupingKey().get(PrometheusConfig.LABEL_COMPONENT));
+        } finally {
+            System.clearProperty(MonitorConsts.SPARK_QUERY_MONITOR_PUSH_GATEWAY_GROUPING_KEY);
+            if (tasks != null) {
+                tasks.close();
+            }
+            if (dstreams != null) {
+                dstreams.close();
+            }
+            if (queries != null) {
+                queries.close();
+            }
+        }
+    }
+
+    @Test
+    public void otherComponentsDoNotClearCollectors() {
+        UUID id = UUID.randomUUID();
+        listener.onQueryProgress(progressEvent(id, "kept", 0, 10));
+        PrometheusStreamingQueryListener other = new PrometheusStreamingQueryListener(new SparkConf(), "other");
+        other.close();
+        new PrometheusConfig("PrometheusMetricsSink");
+
+        Assert.assertEquals(1.0, value("batches_total", "kept", id), 0.0);
+        Assert.assertNotSame(registry, other.getCollectorRegistry());
+        Assert.assertTrue(PrometheusConfig.getJvmCollectorRegistry().metricFamilySamples().hasMoreElements());
+    }
+
+    @Test
+    public void queryStartedBeforeListenerShowsUpWithProgress() {
+        UUID id = UUID.randomUUID();
+        listener.onQueryProgress(progressEvent(id, "late", 3, 10));
+        Assert.assertEquals(1.0, value("batches_total", "late", id), 0.0);
+    }
+
+    @Test
+    public void everyStageIsObservedIntoTheDurationHistogram() {
+        UUID id = UUID.randomUUID();
+        listener.onQueryStarted(new StreamingQueryListener.QueryStartedEvent(id, UUID.randomUUID(), "stages"));
+        listener.onQueryProgress(progressEvent(id, "stages", 0, 10));
+        listener.onQueryProgress(progressEvent(id, "stages", 1, 10));
+
+        String[] stageLabels = {LABEL_QUERY_NAME, LABEL_QUERY_ID, PrometheusStreamingQueryListener.LABEL_STAGE};
+        String[] trigger = {"stages", id.toString(), MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION};
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "query_stage_duration_ms_count",
+                stageLabels, trigger), 0.0);
+        Assert.assertEquals(200.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "query_stage_duration_ms_sum",
+                stageLabels, trigger), 0.0);
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "query_stage_duration_ms_count",
+                stageLabels, new String[]{"stages", id.toString(), MonitorConsts.SPARK_DURATION_KEY_ADD_BATCH}), 0.0);
+
+        listener.onQueryTerminated(new StreamingQueryListener.QueryTerminatedEvent(id, UUID.randomUUID(),
+                scala.Option.<String>apply(null)));
+        Assert.assertNull(registry.getSampleValue(SPARK_METRIC_PREFIX + "query_stage_duration_ms_count",
+                stageLabels, trigger));
+    }
+
+    @Test
+    public void durationBucketsAreConfigurable() {
+        System.setProperty(MonitorConsts.SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS, "100, 1000,10000");
+        try {
+            Assert.assertArrayEquals(new double[]{100, 1000, 10000},
+                    PrometheusStreamingQueryListener.getConfiguredDurationBuckets(), 0.0);
+            System.setProperty(MonitorConsts.SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS, "1000,100");
+            Assert.assertArrayEquals(PrometheusStreamingQueryListener.DEFAULT_DURATION_BUCKETS_MS,
+                    PrometheusStreamingQueryListener.getConfiguredDurationBuckets(), 0.0);
+        } finally {
+            System.clearProperty(MonitorConsts.SPARK_QUERY_MONITOR_DURATION_BUCKETS_MS);
+        }
+    }
+
+    @Test
+    public void kafkaPartitionsAdvanceAndSkew() {
+        UUID id = UUID.randomUUID();
+        String description = "KafkaSource[Subscribe[signals]]";
+        listener.onQueryProgress(progressEvent(id, "kafka", 0, new SourceProgress(description,
+                "{\"signals\":{\"0\":100,\"1\":100,\"2\":100}}",
+                "{\"signals\":{\"0\":110,\"1\":110,\"2\":140}}", 60, 30.0, 60.0)));
+
+        String[] partitionLabels = {LABEL_QUERY_NAME, LABEL_QUERY_ID, SourceProgressMetrics.LABEL_TOPIC,
+                SourceProgressMetrics.LABEL_PARTITION};
+        Assert.assertEquals(40.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "source_partition_offset_advance",
+                partitionLabels, new String[]{"kafka", id.toString(), "signals", "2"}), 0.0);
+        Assert.assertEquals(2.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "source_topic_offset_skew",
+                new String[]{LABEL_QUERY_NAME, LABEL_QUERY_ID, SourceProgressMetrics.LABEL_TOPIC},
+                new String[]{"kafka", id.toString(), "signals"}), 0.0);
+        Assert.assertEquals(30.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "source_input_rows_per_second",
+                new String[]{LABEL_QUERY_NAME, LABEL_QUERY_ID, SourceProgressMetrics.LABEL_SOURCE},
+                new String[]{"kafka", id.toString(), description}), 0.0);
+
+        listener.onQueryProgress(progressEvent(id, "kafka", 1, new SourceProgress(description,
+                "{\"signals\":{\"0\":110,\"1\":110,\"2\":140}}",
+                "{\"signals\":{\"0\":115,\"1\":115,\"2\":145}}", 15, 15.0, 15.0)));
+        Assert.assertEquals(45.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "source_partition_offsets_total",
+                partitionLabels, new String[]{"kafka", id.toString(), "signals", "2"}), 0.0);
+
+        listener.onQueryTerminated(new StreamingQueryListener.QueryTerminatedEvent(id, UUID.randomUUID(),
+                scala.Option.<String>apply(null)));
+        Assert.assertNull(registry.getSampleValue(SPARK_METRIC_PREFIX + "source_partition_offsets_total",
+                partitionLabels, new String[]{"kafka", id.toString(), "signals", "2"}));
+    }
+
+    @Test
+    public void stateOperatorsAreReportedPerOperator() {
+        UUID id = UUID.randomUUID();
+        SourceProgress source = new SourceProgress("RateSource", "10", "20", 10, 10.0, 10.0);
+        listener.onQueryProgress(progressEvent(id, "stateful", 0, new StateOperatorProgress[]{
+                new StateOperatorProgress(26500, 100, 1 << 20), new StateOperatorProgress(10, 1, 1024)}, source));
+
+        String[] operatorLabels = {LABEL_QUERY_NAME, LABEL_QUERY_ID, StateOperatorMetrics.LABEL_OPERATOR};
+        Assert.assertEquals(26500.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "state_rows",
+                operatorLabels, new String[]{"stateful", id.toString(), "0"}), 0.0);
+        Assert.assertEquals(1024.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "state_memory_used_bytes",
+                operatorLabels, new String[]{"stateful", id.toString(), "1"}), 0.0);
+        // no growth from a single batch
+        Assert.assertTrue(Double.isNaN(registry.getSampleValue(SPARK_METRIC_PREFIX + "state_rows_growth_per_second",
+                operatorLabels, new String[]{"stateful", id.toString(), "0"})));
+
+        listener.onQueryTerminated(new StreamingQueryListener.QueryTerminatedEvent(id, UUID.randomUUID(),
+                scala.Option.<String>apply(null)));
+        Assert.assertNull(registry.getSampleValue(SPARK_METRIC_PREFIX + "state_rows",
+                operatorLabels, new String[]{"stateful", id.toString(), "0"}));
+    }
+
+    @Test
+    public void stateGrowthIsTimedByTheBatchTimestamps() {
+        UUID id = UUID.randomUUID();
+        SourceProgress source = new SourceProgress("RateSource", "10", "20", 10, 10.0, 10.0);
+        // reported back to back, the batches ran 10 s apart
+        listener.onQueryProgress(progressEvent(id, "growing", 0, "2017-09-01T17:00:00.000Z",
+                new StateOperatorProgress[]{new StateOperatorProgress(100, 100, 1024)}, source));
+        listener.onQueryProgress(progressEvent(id, "growing", 1, "2017-09-01T17:00:10.000Z",
+                new StateOperatorProgress[]{new StateOperatorProgress(1100, 1000, 1024)}, source));
+
+        Assert.assertEquals(100.0, registry.getSampleValue(SPARK_METRIC_PREFIX + "state_rows_growth_per_second",
+                new String[]{LABEL_QUERY_NAME, LABEL_QUERY_ID, StateOperatorMetrics.LABEL_OPERATOR},
+                new String[]{"growing", id.toString(), "0"}), 0.0);
+    }
+
+    @Test
+    public void eventTimeAndWatermarkLag() {
+        UUID id = UUID.randomUUID();
+        StreamingQueryListener.QueryProgressEvent event = progressEvent(id, "fresh", 0, 10);
+        event.progress().eventTime().put(MonitorConsts.SPARK_EVENT_TIME_KEY_MAX, "2017-09-01T17:00:29.203Z");
+        event.progress().eventTime().put(MonitorConsts.SPARK_EVENT_TIME_KEY_WATERMARK, "2017-09-01T16:00:27.128Z");
+        long before = System.currentTimeMillis();
+        listener.onQueryProgress(event);
+
+        Assert.assertEquals(3602075.0, value("watermark_lag_ms", "fresh", id), 0.0);
+        double lag = value("event_time_lag_ms", "fresh", id);
+        long maxEventTime = IsoTimestamp.parseMillis("2017-09-01T17:00:29.203Z");
+        Assert.assertTrue(String.valueOf(lag), lag >= before - maxEventTime
+                && lag <= System.currentTimeMillis() - maxEventTime);
+    }
+
+    @Test
+    public void eventTimeLagKeepsGrowingOverEmptyBatches() throws InterruptedException {
+        UUID id = UUID.randomUUID();
+        StreamingQueryListener.QueryProgressEvent event = progressEvent(id, "idle", 0, 10);
+        event.progress().eventTime().put(MonitorConsts.SPARK_EVENT_TIME_KEY_MAX, "2017-09-01T17:00:29.203Z");
+        listener.onQueryProgress(event);
+        double lag = value("event_time_lag_ms", "idle", id);
+
+        Thread.sleep(5);
+        // no max event time in an empty batch
+        listener.onQueryProgress(progressEvent(id, "idle", 1, 0));
+        Assert.assertTrue(value("event_time_lag_ms", "idle", id) > lag);
+    }
+
+    @Test
+    public void noWatermarkYet() {
+        UUID id = UUID.randomUUID();
+        StreamingQueryListener.QueryProgressEvent event = progressEvent(id, "early", 0, 10);
+        event.progress().eventTime().put(MonitorConsts.SPARK_EVENT_TIME_KEY_MAX, "2017-09-01T17:00:29.203Z");
+        event.progress().eventTime().put(MonitorConsts.SPARK_EVENT_TIME_KEY_WATERMARK, "1970-01-01T00:00:00.000Z");
+        listener.onQueryProgress(event);
+        Assert.assertEquals(0.0, value("watermark_lag_ms", "early", id), 0.0);
+    }
+
+    @Test
+    public void historyIsServedAsJson() throws IOException {
+        System.setProperty(MonitorConsts.SPARK_QUERY_MONITOR_HISTORY_PORT, "0");
+        PrometheusStreamingQueryListener served;
+        try {
+            served = new PrometheusStreamingQueryListener(new SparkConf(), "historyIsServedAsJson");
+        } finally {
+            System.clearProperty(MonitorConsts.SPARK_QUERY_MONITOR_HISTORY_PORT);
+        }
+        try {
+            served.onQueryProgress(progressEvent(UUID.randomUUID(), "served", 42, 10));
+            URL url = new URL("http://localhost:" + served.getHistoryEndpoint().getPort()
+                    + ProgressHistoryEndpoint.DEFAULT_PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            Scanner scanner = new Scanner(connection.getInputStream(), "UTF-8").useDelimiter("\\A");
+            String json = scanner.next();
+            scanner.close();
+            Assert.assertTrue(json, json.startsWith("[{\"name\":\"served\""));
+            Assert.assertTrue(json, json.contains("\"lastBatchId\":42"));
+        } finally {
+            served.close();
+        }
+    }
+
+    private Double value(String name, String queryName, UUID queryId) {
+        return registry.getSampleValue(SPARK_METRIC_PREFIX + name, QUERY_LABELS,
+                new String[]{queryName, queryId.toString()});
+    }
+
+    static StreamingQueryListener.QueryProgressEvent progressEvent(UUID id, String name, long batchId, long rows) {
+        return progressEvent(id, name, batchId,
+                new SourceProgress("KafkaSource[Subscribe[test]]", null, null, rows, rows, rows));
+    }
+
+    static StreamingQueryListener.QueryProgressEvent progressEvent(UUID id, String name, long batchId,
+                                                                   SourceProgress source) {
+        return progressEvent(id, name, batchId, new StateOperatorProgress[0], source);
+    }
+
+    static StreamingQueryListener.QueryProgressEvent progressEvent(UUID id, String name, long batchId,
+                                                                   StateOperatorProgress[] stateOperators,
+                                                                   SourceProgress source) {
+        return progressEvent(id, name, batchId, "2017-09-01T17:00:29.206Z", stateOperators, source);
+    }
+
+    static StreamingQueryListener.QueryProgressEvent progressEvent(UUID id, String name, long batchId,
+                                                                   String timestamp,
+                                                                   StateOperatorProgress[] stateOperators,
+                                                                   SourceProgress source) {
+        Map<String, Long> durationMs = new HashMap<String, Long>();
+        durationMs.put(MonitorConsts.SPARK_DURATION_KEY_TRIGGER_EXECUTION, 100L);
+        durationMs.put(MonitorConsts.SPARK_DURATION_KEY_GET_BATCH, 10L);
+        durationMs.put(MonitorConsts.SPARK_DURATION_KEY_ADD_BATCH, 85L);
+        return new StreamingQueryListener.QueryProgressEvent(new StreamingQueryProgress(id, UUID.randomUUID(), name,
+                timestamp, batchId, durationMs, new HashMap<String, String>(),
+                stateOperators, new SourceProgress[]{source}, new SinkProgress("test")));
+    }
+}
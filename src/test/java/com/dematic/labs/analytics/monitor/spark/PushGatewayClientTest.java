@@ -0,0 +1,308 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pushes to a local fake push gateway.
+ */
+public final class PushGatewayClientTest {
+    private HttpServer gateway;
+    private final List<String> paths = new ArrayList<String>();
+    private final List<String> bodies = new ArrayList<String>();
+    private final List<Integer> clientPorts = new ArrayList<Integer>();
+
+    @Before
+    public void startGateway() throws IOException {
+        gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        gateway.createContext("/metrics", exchange -> {
+            synchronized (bodies) {
+                paths.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath());
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                bodies.add(read(in));
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+            }
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+        });
+        gateway.start();
+    }
+
+    @After
+    public void stopGateway() {
+        gateway.stop(0);
+    }
+
+    @Test
+    public void registriesArePushedInOneRequestOverOneConnection() throws IOException {
+        CollectorRegistry jvm = new CollectorRegistry();
+        Gauge.build().name("jvm_test").help("Jvm test.").register(jvm).set(1);
+        CollectorRegistry spark = new CollectorRegistry();
+        Gauge.build().name("spark_test").help("Spark test.").register(spark).set(2);
+
+        PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000, 1000);
+        Map<String, String> groupingKey = new LinkedHashMap<String, String>();
+        groupingKey.put(PrometheusConfig.LABEL_DRIVER_NAME, "my app");
+        groupingKey.put(PrometheusConfig.LABEL_EXECUTOR, "5");
+
+        client.pushAdd(PrometheusConfig.JOB_NAME, groupingKey, jvm, spark);
+        client.pushAdd(PrometheusConfig.JOB_NAME, groupingKey, jvm, spark);
+
+        Assert.assertEquals(2, bodies.size());
+        Assert.assertEquals("POST /metrics/job/spark-push-gateway/driver/my+app/executor/5", paths.get(0));
+        Assert.assertTrue(bodies.get(0), bodies.get(0).contains("jvm_test 1.0"));
+        Assert.assertTrue(bodies.get(0), bodies.get(0).contains("spark_test 2.0"));
+        // kept alive, second push reuses the socket
+        Assert.assertEquals(clientPorts.get(0), clientPorts.get(1));
+    }
+
+    @Test
+    public void largeBodiesAreGzipped() throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge gauge = Gauge.build().name("executor_metric").help("Executor metric.").labelNames("index")
+                .register(registry);
+        for (int i = 0; i < 200; i++) {
+            gauge.labels(String.valueOf(i)).set(i);
+        }
+        CollectorRegistry small = new CollectorRegistry();
+        Gauge.build().name("small").help("Small.").register(small).set(1);
+
+        PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000, 1000,
+                true, 1024);
+        client.pushAdd(PrometheusConfig.JOB_NAME, null, registry);
+        Assert.assertTrue(bodies.get(0), bodies.get(0).contains("executor_metric{index=\"199\",} 199.0"));
+        Assert.assertTrue(client.getCompressionReport(), client.getSentBytes() < client.getPayloadBytes() / 2);
+
+        // below the threshold the body goes out as is
+        long sentBefore = client.getSentBytes();
+        long payloadBefore = client.getPayloadBytes();
+        client.pushAdd(PrometheusConfig.JOB_NAME, null, small);
+        Assert.assertEquals(client.getPayloadBytes() - payloadBefore, client.getSentBytes() - sentBefore);
+        Assert.assertTrue(bodies.get(1), bodies.get(1).contains("small 1.0"));
+    }
+
+    @Test
+    public void pushReplacesTheGroup() throws IOException {
+        PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000, 1000);
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("left").help("Left.").register(registry).set(1);
+        client.pushAdd(PrometheusConfig.JOB_NAME, null, registry);
+        client.push(PrometheusConfig.JOB_NAME, null, registry);
+        Assert.assertEquals(Arrays.asList("POST /metrics/job/spark-push-gateway", "PUT /metrics/job/spark-push-gateway"),
+                paths);
+    }
+
+    @Test(expected = IOException.class)
+    public void errorResponseFails() throws IOException {
+        gateway.createContext("/metrics/job/failing", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000, 1000);
+        client.pushAdd("failing", null, new CollectorRegistry());
+    }
+
+    @Test
+    public void pushesFailingWhileGatewayIsDownAreReplayedInOrder() throws IOException {
+        boolean[] available = {false};
+        List<String> received = new ArrayList<String>();
+        gateway.createContext("/metrics/job/flaky", exchange -> {
+            // always drain the body, else the kept alive connection is reset on the next push
+            String body = read(exchange.getRequestBody());
+            if (exchange.getRequestHeaders().containsKey("Content-Encoding")) {
+                // the client doesn't gzip, not even spooled pushes
+                exchange.sendResponseHeaders(415, -1);
+            } else if (available[0]) {
+                received.add(body);
+                exchange.sendResponseHeaders(202, -1);
+            } else {
+                exchange.sendResponseHeaders(503, -1);
+            }
+            exchange.close();
+        });
+        File spoolFile = Files.createTempFile("push-spool", ".bin").toFile();
+        PushSpool spool = new PushSpool(spoolFile, 64 * 1024);
+        try {
+            PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000,
+                    1000);
+            client.setSpool(spool, 2);
+            CollectorRegistry registry = new CollectorRegistry();
+            Gauge batch = Gauge.build().name("batch").help("Batch.").register(registry);
+
+            for (int i = 0; i < 3; i++) {
+                batch.set(i);
+                try {
+                    client.pushAdd("flaky", null, registry);
+                    Assert.fail("gateway is down");
+                } catch (IOException expected) {
+                    // spooled
+                }
+            }
+            Assert.assertEquals(3, spool.size());
+
+            available[0] = true;
+            batch.set(3);
+            // replays at most 2 per push, the live one queues up behind the older ones
+            client.pushAdd("flaky", null, registry);
+            Assert.assertEquals(2, received.size());
+            client.pushAdd("flaky", null, registry);
+            Assert.assertEquals(4, received.size());
+            for (int i = 0; i < 4; i++) {
+                Assert.assertTrue(received.get(i), received.get(i).contains("batch " + i + ".0"));
+            }
+            // the second live push is still queued
+            Assert.assertEquals(1, spool.size());
+            client.pushAdd("flaky", null, registry);
+            Assert.assertTrue(spool.isEmpty());
+            Assert.assertEquals(6, spool.getReplayedCount());
+        } finally {
+            spool.close();
+            Assert.assertFalse(spoolFile.exists());
+        }
+    }
+
+    @Test
+    public void pushLargerThanTheSpoolFails() throws IOException {
+        boolean[] available = {false};
+        List<String> received = new ArrayList<String>();
+        gateway.createContext("/metrics/job/small", exchange -> {
+            String body = read(exchange.getRequestBody());
+            if (available[0]) {
+                received.add(body);
+            }
+            exchange.sendResponseHeaders(available[0] ? 202 : 503, -1);
+            exchange.close();
+        });
+        File spoolFile = Files.createTempFile("push-spool", ".bin").toFile();
+        PushSpool spool = new PushSpool(spoolFile, 512);
+        try {
+            PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000,
+                    1000);
+            client.setSpool(spool, 2);
+            CollectorRegistry registry = new CollectorRegistry();
+            Gauge.build().name("batch").help("Batch.").register(registry).set(1);
+            try {
+                client.pushAdd("small", null, registry);
+                Assert.fail("gateway is down");
+            } catch (IOException expected) {
+                Assert.assertEquals(1, spool.size());
+            }
+
+            available[0] = true;
+            Gauge.build().name("large").help(new String(new char[1024]).replace('\0', 'x')).register(registry);
+            try {
+                client.pushAdd("small", null, registry);
+                Assert.fail("push doesn't fit the spool");
+            } catch (IOException expected) {
+                // not delivered, though the older one was
+                Assert.assertEquals(1, received.size());
+                Assert.assertTrue(spool.isEmpty());
+            }
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void openCircuitSkipsPushes() throws IOException {
+        int[] requests = {0};
+        gateway.createContext("/metrics/job/down", exchange -> {
+            requests[0]++;
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000, 1000);
+        client.setCircuitBreaker(new GatewayCircuitBreaker(2, 60000, 60000));
+        for (int i = 0; i < 5; i++) {
+            try {
+                client.pushAdd("down", null, new CollectorRegistry());
+                Assert.fail("gateway is down");
+            } catch (PushGatewayClient.CircuitOpenException expected) {
+                Assert.assertTrue(i >= 2);
+            } catch (IOException expected) {
+                Assert.assertTrue(i < 2);
+            }
+        }
+        Assert.assertEquals(2, requests[0]);
+        Assert.assertEquals(3, client.getCircuitBreaker().getSkippedCount());
+    }
+
+    @Test
+    public void collectorThrowingDuringProbeReleasesIt() throws IOException {
+        boolean[] available = {false};
+        int[] requests = {0};
+        gateway.createContext("/metrics/job/probe", exchange -> {
+            requests[0]++;
+            read(exchange.getRequestBody());
+            exchange.sendResponseHeaders(available[0] ? 202 : 503, -1);
+            exchange.close();
+        });
+        long[] now = {0};
+        PushGatewayClient client = new PushGatewayClient("localhost:" + gateway.getAddress().getPort(), 1000, 1000);
+        client.setCircuitBreaker(new GatewayCircuitBreaker(1, 1000, 1000, () -> now[0], new Random(7)));
+        try {
+            client.pushAdd("probe", null, new CollectorRegistry());
+            Assert.fail("gateway is down");
+        } catch (IOException expected) {
+            Assert.assertTrue(client.getCircuitBreaker().isOpen());
+        }
+
+        now[0] += 1000;
+        CollectorRegistry broken = new CollectorRegistry();
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                throw new IllegalStateException("gauge failed");
+            }
+        }.register(broken);
+        try {
+            client.pushAdd("probe", null, broken);
+            Assert.fail("collector throws");
+        } catch (IllegalStateException expected) {
+            // nothing was sent
+        }
+
+        // the probe is due again instead of skipped forever
+        available[0] = true;
+        client.pushAdd("probe", null, new CollectorRegistry());
+        Assert.assertEquals(2, requests[0]);
+        Assert.assertFalse(client.getCircuitBreaker().isOpen());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
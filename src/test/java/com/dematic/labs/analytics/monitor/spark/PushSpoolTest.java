@@ -0,0 +1,113 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Ring wrap around, eviction and the file lifecycle of a small spool.
+ */
+public final class PushSpoolTest {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("push-spool", ".bin").toFile();
+    }
+
+    @After
+    public void deleteFile() {
+        // closing a spool deletes it already
+        file.delete();
+    }
+
+    @Test
+    public void payloadsComeBackOldestFirstAcrossTheRingEnd() throws IOException {
+        PushSpool spool = new PushSpool(file, 256);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(spool.append(i % 3 == 0 ? "PUT" : "POST", "http://gateway/" + i,
+                        body("payload " + i), i % 2 == 0));
+                if (spool.size() == 3) {
+                    Assert.assertEquals("http://gateway/" + (i - 2), spool.peekOldest().url);
+                    Assert.assertEquals("payload " + (i - 2), new String(spool.peekOldest().body,
+                            StandardCharsets.UTF_8));
+                    Assert.assertEquals((i - 2) % 2 == 0, spool.peekOldest().gzipped);
+                    Assert.assertEquals((i - 2) % 3 == 0 ? "PUT" : "POST", spool.peekOldest().method);
+                    spool.onReplayed();
+                }
+            }
+            Assert.assertEquals(2, spool.size());
+            Assert.assertEquals(18, spool.getReplayedCount());
+            Assert.assertEquals(0, spool.getDroppedCount());
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void fullSpoolEvictsOldest() throws IOException {
+        PushSpool spool = new PushSpool(file, 128);
+        try {
+            for (int i = 0; i < 10; i++) {
+                spool.append("POST", "u" + i, body("0123456789"), true);
+            }
+            // 4 + 4 + 2 + 1 + 4 + 10 bytes per record in 108 bytes of ring
+            Assert.assertEquals(4, spool.size());
+            Assert.assertEquals(6, spool.getDroppedCount());
+            Assert.assertEquals("u6", spool.peekOldest().url);
+
+            Assert.assertFalse(spool.append("POST", "too large", body(new String(new char[200])), true));
+            Assert.assertEquals(7, spool.getDroppedCount());
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void closeDeletesTheFile() throws IOException {
+        PushSpool spool = new PushSpool(file, 1024);
+        spool.append("POST", "first", body("1"), false);
+        spool.close();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void openingSweepsSpoolsOfExitedJvms() throws IOException {
+        File directory = Files.createTempDirectory("push-spools").toFile();
+        File exited = new File(directory, "push-spool-gateway_9091-123_exited.bin");
+        File otherGateway = new File(directory, "push-spool-other_9091-123_exited.bin");
+        Assert.assertTrue(exited.createNewFile());
+        Assert.assertTrue(otherGateway.createNewFile());
+        // locked, like the spool of a JVM still running
+        PushSpool running = new PushSpool(new File(directory, "push-spool-gateway_9091-456_running.bin"), 1024);
+        PushSpool opened = PushSpool.forGateway(directory, "gateway:9091", 1024);
+        try {
+            Assert.assertFalse(exited.exists());
+            Assert.assertTrue(running.getFile().exists());
+            Assert.assertTrue(otherGateway.exists());
+        } finally {
+            opened.close();
+            running.close();
+            Assert.assertTrue(otherGateway.delete());
+            Assert.assertTrue(new File(directory, PushSpool.DIRECTORY_LOCK).delete());
+            Assert.assertTrue(directory.delete());
+        }
+    }
+
+    private static ByteArrayOutputStream body(String text) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(text.getBytes(StandardCharsets.UTF_8));
+        return body;
+    }
+}
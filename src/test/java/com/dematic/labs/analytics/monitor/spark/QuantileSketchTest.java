@@ -0,0 +1,95 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Quantiles against the exact ones of skewed task durations.
+ */
+public final class QuantileSketchTest {
+    private static final double ACCURACY = QuantileSketch.DEFAULT_RELATIVE_ACCURACY;
+
+    @Test
+    public void quantilesAreWithinRelativeAccuracy() {
+        Random random = new Random(42);
+        double[] values = new double[10000];
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        for (int i = 0; i < values.length; i++) {
+            // long tail like task durations in ms
+            values[i] = Math.exp(3 + 2 * random.nextGaussian());
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        Assert.assertEquals(values.length, sketch.getCount());
+        Assert.assertEquals(values[values.length - 1], sketch.getMax(), 0.0);
+        for (double quantile : new double[]{0.01, 0.5, 0.9, 0.99, 1}) {
+            double exact = values[(int) (quantile * (values.length - 1))];
+            Assert.assertEquals("quantile " + quantile, exact, sketch.quantile(quantile), exact * ACCURACY);
+        }
+    }
+
+    @Test
+    public void mergeEqualsAddingAll() {
+        QuantileSketch first = new QuantileSketch(ACCURACY);
+        QuantileSketch second = new QuantileSketch(ACCURACY);
+        QuantileSketch all = new QuantileSketch(ACCURACY);
+        for (int i = 1; i <= 1000; i++) {
+            (i % 2 == 0 ? first : second).add(i);
+            all.add(i);
+        }
+        // far below the first sketch's buckets, it must grow downwards
+        second.add(0.001);
+        all.add(0.001);
+
+        first.merge(second);
+        Assert.assertEquals(all.getCount(), first.getCount());
+        Assert.assertEquals(all.getMax(), first.getMax(), 0.0);
+        for (double quantile : new double[]{0, 0.25, 0.5, 0.75, 0.99}) {
+            Assert.assertEquals(all.quantile(quantile), first.quantile(quantile), 0.0);
+        }
+    }
+
+    @Test
+    public void countAboveAndZeros() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        for (int i = 0; i < 10; i++) {
+            sketch.add(0);
+        }
+        Assert.assertEquals(0.0, sketch.quantile(0.5), 0.0);
+        for (int i = 0; i < 90; i++) {
+            sketch.add(100);
+        }
+        sketch.add(1000);
+        sketch.add(5000);
+
+        Assert.assertEquals(102, sketch.getCount());
+        Assert.assertEquals(92, sketch.countAbove(0));
+        Assert.assertEquals(2, sketch.countAbove(150));
+        Assert.assertEquals(1, sketch.countAbove(2000));
+        Assert.assertEquals(0, sketch.countAbove(5000));
+        Assert.assertEquals(100.0, sketch.quantile(0.5), 100 * ACCURACY);
+    }
+
+    @Test
+    public void emptyAndCleared() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        Assert.assertTrue(Double.isNaN(sketch.quantile(0.5)));
+        Assert.assertEquals(0, sketch.countAbove(1));
+        sketch.add(10);
+        sketch.clear();
+        Assert.assertEquals(0, sketch.getCount());
+        Assert.assertTrue(Double.isNaN(sketch.getMax()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeOfOtherAccuracyFails() {
+        new QuantileSketch(ACCURACY).merge(new QuantileSketch(0.05));
+    }
+}
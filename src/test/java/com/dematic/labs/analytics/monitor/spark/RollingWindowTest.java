@@ -0,0 +1,35 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Growth rate over the recent values.
+ */
+public final class RollingWindowTest {
+
+    @Test
+    public void rateIsOverTheWindowOnly() {
+        RollingWindow window = new RollingWindow(3);
+        window.add(0, 100);
+        Assert.assertTrue(Double.isNaN(window.ratePerSecond()));
+
+        window.add(1000, 200);
+        Assert.assertEquals(100.0, window.ratePerSecond(), 0.0);
+        window.add(2000, 400);
+        Assert.assertEquals(150.0, window.ratePerSecond(), 0.0);
+
+        // first value evicted, 200 -> 400 -> 400
+        window.add(3000, 400);
+        Assert.assertEquals(3, window.size());
+        Assert.assertEquals(100.0, window.ratePerSecond(), 0.0);
+
+        // shrinking state is a negative rate
+        window.add(4000, 100);
+        window.add(5000, 100);
+        Assert.assertEquals(-150.0, window.ratePerSecond(), 0.0);
+    }
+}
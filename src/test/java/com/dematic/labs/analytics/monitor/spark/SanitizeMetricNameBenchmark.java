@@ -0,0 +1,55 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import com.dematic.labs.analytics.monitor.spark.dropwizard.DropwizardSparkExports;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Meant to be run manually, compares the original split/regex sanitizer with the single pass memoized one over a
+ * set of names shaped like a spark executor registry.
+ */
+public final class SanitizeMetricNameBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SanitizeMetricNameBenchmark.class);
+    private static final int NAMES = 2000;
+    private static final int ROUNDS = 200;
+
+    @Test
+    @Ignore
+    public void compareSanitizers() {
+        String[] names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            names[i] = "application_1495474513333_0001." + (i % 50) + ".executor.shuffle.Metric" + i + ".bytesRead";
+        }
+
+        // warm up both so the JIT compiled versions are measured
+        run(names, true);
+        run(names, false);
+
+        long legacyNanos = run(names, true);
+        long memoizedNanos = run(names, false);
+        LOGGER.info(String.format("legacy %d ns/name, memoized %d ns/name",
+                legacyNanos / ((long) NAMES * ROUNDS), memoizedNanos / ((long) NAMES * ROUNDS)));
+    }
+
+    private static long run(String[] names, boolean legacy) {
+        int checksum = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String name : names) {
+                String sanitized = legacy ? DropWizardNameConversionTest.legacySanitizeMetricName(name)
+                        : DropwizardSparkExports.sanitizeMetricName(name);
+                checksum += sanitized.length();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 0) {
+            throw new IllegalStateException("names were optimized away");
+        }
+        return elapsed;
+    }
+}
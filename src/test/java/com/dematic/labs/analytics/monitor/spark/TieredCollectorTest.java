@@ -0,0 +1,58 @@
+/* Copyright 2018, Dematic, Corp.
+   Licensed under the MIT Open Source License: https://opensource.org/licenses/MIT */
+
+package com.dematic.labs.analytics.monitor.spark;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cached samples between refreshes, driven by a fake clock.
+ */
+public final class TieredCollectorTest {
+    private long now = 1000;
+
+    @Test
+    public void servesCachedSamplesWithinTier() {
+        CountingCollector counting = new CountingCollector();
+        TieredCollector tiered = new TieredCollector(counting, 10000, () -> now);
+        CollectorRegistry registry = new CollectorRegistry();
+        tiered.register(registry);
+
+        Assert.assertEquals(1.0, registry.getSampleValue("expensive"), 0.0);
+        now += 9999;
+        Assert.assertEquals(1.0, registry.getSampleValue("expensive"), 0.0);
+        Assert.assertEquals(1, counting.collections);
+
+        now += 1;
+        Assert.assertEquals(2.0, registry.getSampleValue("expensive"), 0.0);
+        Assert.assertEquals(2, tiered.getRefreshCount());
+    }
+
+    @Test
+    public void everyPushTierAlwaysCollects() {
+        CountingCollector counting = new CountingCollector();
+        TieredCollector tiered = new TieredCollector(counting, TieredCollector.EVERY_PUSH, () -> now);
+        tiered.collect();
+        tiered.collect();
+        Assert.assertEquals(2, counting.collections);
+        Assert.assertEquals(2, tiered.getRefreshCount());
+    }
+
+    private static final class CountingCollector extends Collector {
+        private long collections;
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            collections++;
+            return Collections.singletonList(new MetricFamilySamples("expensive", Type.GAUGE, "Collections so far.",
+                    Collections.singletonList(new MetricFamilySamples.Sample("expensive",
+                            Collections.<String>emptyList(), Collections.<String>emptyList(), collections))));
+        }
+    }
+}